@@ -0,0 +1,75 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work done for every key of a recursive command, one key per operation. Keys cycle through a fixed set so the cost does not depend
+ * on allocating inputs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class S3KeyBenchmark {
+
+  private static final int KEYS = 4096;
+  private static final String PREFIX = "data/2024/";
+  private static final String INCLUDE = "**/*.csv";
+  private static final String EXCLUDE = "**/sub3/**";
+
+  private final String[] keys = new String[KEYS];
+  private final String[] relative = new String[KEYS];
+  private final Path[] paths = new Path[KEYS];
+  private S3Filter filter;
+  private int index = 0;
+
+  @Setup
+  public void setup() {
+    for (int i = 0; i < KEYS; i++) {
+      relative[i] = "dir" + (i % 37) + "/sub" + (i % 11) + "/file" + i + (i % 3 == 0 ? ".csv" : ".txt");
+      keys[i] = PREFIX + relative[i] + (i % 5 == 0 ? "/" : "");
+      paths[i] = Paths.get(relative[i]);
+    }
+    filter = S3Filter.of(INCLUDE, EXCLUDE);
+  }
+
+  private int next() {
+    index = (index + 1) & (KEYS - 1);
+    return index;
+  }
+
+  @Benchmark
+  public String normalize() {
+    return S3Utils.normalize(keys[next()]);
+  }
+
+  @Benchmark
+  public boolean incExc() {
+    return S3Utils.incExc(paths[next()], INCLUDE, EXCLUDE);
+  }
+
+  @Benchmark
+  public boolean filterMatches() {
+    return filter.matches(relative[next()]);
+  }
+
+  // the rewrite S3CpCommandsHandler and S3RmCommandsHandler apply to each listed key
+  @Benchmark
+  public String rewriteKey() {
+    return S3Utils.normalize(keys[next()]).replaceAll("^" + PREFIX, "");
+  }
+}
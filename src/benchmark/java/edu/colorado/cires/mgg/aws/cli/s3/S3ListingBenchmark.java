@@ -0,0 +1,121 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import edu.colorado.cires.mgg.aws.cli.s3.S3RmCommands.S3RmCommandsHandler;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing and deleting a whole prefix against an in-memory bucket, so the time is the CLI's own per-key cost. Each operation covers
+ * every key, run with {@code -p keys=10000000} to see how it scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class S3ListingBenchmark {
+
+  private static final String BUCKET = "bench-bucket";
+  private static final String PREFIX = "data";
+
+  @Param({"100000", "1000000"})
+  private int keys;
+
+  @Param({"1000"})
+  private int pageSize;
+
+  private S3OperationsImpl operations;
+  private S3Output output;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    output = new S3Output(new ByteArrayOutputStream(), S3Output.Format.QUIET);
+    S3TransferConfig config = new S3TransferConfig().withPageSize(pageSize).withProgressBar(false);
+    operations = new S3OperationsImpl(new InMemoryS3(keys), config, null, output);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    operations.close();
+    output.close();
+  }
+
+  @Benchmark
+  public long forEachKey() {
+    LongAdder count = new LongAdder();
+    operations.forEachKey(BUCKET, PREFIX + "/", key -> count.increment());
+    return count.sum();
+  }
+
+  // listing, filtering, key rewriting and batching for a recursive rm, with deletes answered immediately
+  @Benchmark
+  public long rmRecursive() {
+    // the stats count every object deleted since setup, the result is this invocation's share
+    long before = operations.getStats().getObjects();
+    new S3RmCommandsHandler(operations, "s3://" + BUCKET + "/" + PREFIX, true, S3Filter.of("**/*.csv", null), 4, null).run();
+    return operations.getStats().getObjects() - before;
+  }
+
+  /**
+   * Serves generated keys in order, a page per request, without holding them in memory. Keys are spread over {@link #DIRS} directories
+   * in consecutive runs, so the i-th key is also the i-th in S3's lexicographic order.
+   */
+  private static final class InMemoryS3 extends AbstractAmazonS3 {
+
+    private static final int DIRS = 1000;
+
+    private final int keys;
+    private final int keysPerDir;
+
+    private InMemoryS3(int keys) {
+      this.keys = keys;
+      keysPerDir = (keys + DIRS - 1) / DIRS;
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+      int start = request.getContinuationToken() == null ? 0 : Integer.parseInt(request.getContinuationToken());
+      int end = Math.min(keys, start + request.getMaxKeys());
+      ListObjectsV2Result result = new ListObjectsV2Result();
+      result.setBucketName(request.getBucketName());
+      for (int i = start; i < end; i++) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName(request.getBucketName());
+        summary.setKey(String.format("%s/dir%03d/file%09d.%s", PREFIX, i / keysPerDir, i, i % 2 == 0 ? "csv" : "txt"));
+        summary.setSize(i);
+        result.getObjectSummaries().add(summary);
+      }
+      result.setKeyCount(end - start);
+      result.setTruncated(end < keys);
+      result.setNextContinuationToken(end < keys ? Integer.toString(end) : null);
+      return result;
+    }
+
+    @Override
+    public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+      return new DeleteObjectsResult(Collections.emptyList());
+    }
+  }
+}
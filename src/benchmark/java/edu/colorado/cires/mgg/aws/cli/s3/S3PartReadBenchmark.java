@@ -0,0 +1,102 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.internal.ResettableInputStream;
+import com.amazonaws.services.s3.internal.InputSubstream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading one part of a file the way the HTTP client consumes a request body, into a small array, through the SDK's file stream and
+ * through {@link S3MappedPartStream}. The file is read once in setup so both read from the page cache and the time is the CPU spent per
+ * part. A 64 MiB part at N ms/op is N * 16 ms of CPU per GiB. Run with {@code -prof gc} to compare the allocation per part.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class S3PartReadBenchmark {
+
+  private static final int PARTS = 4;
+  // the size of the writes Apache HttpClient makes to the socket
+  private static final int SINK_SIZE = 8 * 1024;
+
+  @Param({"67108864"})
+  private long partSize;
+
+  private Path file;
+  private final byte[] sink = new byte[SINK_SIZE];
+  private final Semaphore mappings = new Semaphore(1);
+  private int part = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    file = Files.createTempFile("part-read", ".bin");
+    byte[] block = new byte[1024 * 1024];
+    ThreadLocalRandom.current().nextBytes(block);
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      for (long written = 0L; written < partSize * PARTS; written += block.length) {
+        raf.write(block);
+      }
+    }
+    try (InputStream in = Files.newInputStream(file)) {
+      while (in.read(block) != -1) {
+        // warm the page cache
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  private long nextOffset() {
+    part = (part + 1) % PARTS;
+    return part * partSize;
+  }
+
+  private long drain(InputStream in) throws IOException {
+    long total = 0L;
+    int read;
+    while ((read = in.read(sink, 0, sink.length)) != -1) {
+      total += read;
+    }
+    return total;
+  }
+
+  // what the SDK does for UploadPartRequest.withFile(file).withFileOffset(offset)
+  @Benchmark
+  public long fileStream() throws IOException {
+    try (InputStream in = new InputSubstream(new ResettableInputStream(file.toFile()), nextOffset(), partSize, true)) {
+      return drain(in);
+    }
+  }
+
+  @Benchmark
+  public long mappedStream() throws IOException {
+    try (InputStream in = S3MappedPartStream.open(file, nextOffset(), partSize, mappings)) {
+      return drain(in);
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree with a fork/join pool, reading several directories at once. Each directory is a task that forks one task per
+ * subdirectory, and the attributes read while listing a directory are the only ones used, so no entry is looked at twice.
+ * <p>
+ * Files are handed out through a bounded queue as soon as they are found, in no particular order, so a consumer can start on the first
+ * files while the walk continues and the walk pauses when the consumer falls behind. Symbolic links are followed to files but not to
+ * directories, and directories rejected by the predicate are not read. A root that is a file is the only file of its walk.
+ */
+public final class ParallelFileWalker implements Iterator<S3LocalFile>, AutoCloseable {
+
+  public static final int DEFAULT_PARALLELISM = 8;
+  private static final int QUEUE_CAPACITY = 1000;
+  private static final S3LocalFile END = new S3LocalFile("", null, 0, 0);
+
+  private final Predicate<String> descend;
+  private final ForkJoinPool pool;
+  private final BlockingQueue<S3LocalFile> files = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicReference<Throwable> error = new AtomicReference<>();
+  private volatile boolean closed = false;
+  private S3LocalFile next;
+  private boolean done = false;
+
+  public ParallelFileWalker(Path root, int parallelism, Predicate<String> descend) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    this.descend = descend;
+    AtomicInteger count = new AtomicInteger();
+    pool = new ForkJoinPool(parallelism, p -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+      thread.setName("s3-walk-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }, null, false);
+    if (Files.isDirectory(root)) {
+      pending.incrementAndGet();
+      pool.execute(new DirectoryTask(this, root, ""));
+    } else if (Files.isRegularFile(root)) {
+      // a file walks to itself, keyed by its name
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(root, BasicFileAttributes.class);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read file: " + root.toAbsolutePath().toString(), e);
+      }
+      files.add(new S3LocalFile(String.valueOf(root.getFileName()), root, attributes.size(), attributes.lastModifiedTime().toMillis()));
+      files.add(END);
+    } else {
+      done = true;
+    }
+  }
+
+  private void read(Path dir, String prefix) throws IOException, InterruptedException {
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+      for (Path child : children) {
+        if (closed) {
+          return;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attributes.isSymbolicLink()) {
+          attributes = Files.readAttributes(child, BasicFileAttributes.class);
+          if (!attributes.isRegularFile()) {
+            continue;
+          }
+        }
+        String key = prefix + String.valueOf(child.getFileName());
+        if (attributes.isDirectory()) {
+          if (descend.test(key)) {
+            pending.incrementAndGet();
+            new DirectoryTask(this, child, key + "/").fork();
+          }
+        } else if (attributes.isRegularFile()) {
+          files.put(new S3LocalFile(key, child, attributes.size(), attributes.lastModifiedTime().toMillis()));
+        }
+      }
+    }
+  }
+
+  // the first failure ends the walk and is thrown to the consumer in place of the files still queued
+  private void fail(Throwable e) {
+    if (error.compareAndSet(null, e)) {
+      closed = true;
+      // walkers blocked on a full queue may still add a file each, clear again until the end marker fits
+      do {
+        files.clear();
+      } while (!files.offer(END));
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !done) {
+      try {
+        next = files.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      if (next == END) {
+        next = null;
+        done = true;
+        Throwable e = error.get();
+        if (e instanceof Error) {
+          throw (Error) e;
+        }
+        if (e != null) {
+          throw (RuntimeException) e;
+        }
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public S3LocalFile next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    S3LocalFile file = next;
+    next = null;
+    return file;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    pool.shutdownNow();
+  }
+
+  private static final class DirectoryTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ParallelFileWalker walker;
+    private final transient Path dir;
+    private final String prefix;
+
+    private DirectoryTask(ParallelFileWalker walker, Path dir, String prefix) {
+      this.walker = walker;
+      this.dir = dir;
+      this.prefix = prefix;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        if (!walker.closed) {
+          walker.read(dir, prefix);
+        }
+      } catch (IOException e) {
+        walker.fail(new RuntimeException("Unable to read directory: " + dir.toAbsolutePath().toString(), e));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (RuntimeException | Error e) {
+        walker.fail(e);
+      } finally {
+        if (walker.pending.decrementAndGet() == 0 && !walker.closed) {
+          try {
+            walker.files.put(END);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The compressed form of a stream, read in blocks of {@link #BLOCK_SIZE} that are compressed on an executor a window ahead of the block
+ * being read, like pigz. Blocks are read in the order they were written, see {@link S3Compression}.
+ */
+final class S3BlockCompressor extends InputStream {
+
+  static final int BLOCK_SIZE = 1024 * 1024;
+
+  private final InputStream source;
+  private final S3Compression compression;
+  private final Executor executor;
+  private final int window;
+  private final Deque<CompletableFuture<byte[]>> pending;
+  private boolean ended = false;
+  private boolean empty = true;
+  private byte[] block = new byte[0];
+  private int position = 0;
+
+  /**
+   * @param window the number of blocks compressed ahead
+   */
+  S3BlockCompressor(InputStream source, S3Compression compression, Executor executor, int window) {
+    this.source = source;
+    this.compression = compression;
+    this.executor = executor;
+    this.window = Math.max(1, window);
+    pending = new ArrayDeque<>(this.window);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] bytes = new byte[1];
+    return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (position == block.length) {
+      submit();
+      if (pending.isEmpty()) {
+        return -1;
+      }
+      block = take(pending.remove());
+      position = 0;
+    }
+    int count = Math.min(len, block.length - position);
+    System.arraycopy(block, position, bytes, off, count);
+    position += count;
+    return count;
+  }
+
+  private void submit() throws IOException {
+    while (!ended && pending.size() < window) {
+      byte[] data = new byte[BLOCK_SIZE];
+      int length = 0;
+      int read;
+      while (length < BLOCK_SIZE && (read = source.read(data, length, BLOCK_SIZE - length)) != -1) {
+        length += read;
+      }
+      ended = length < BLOCK_SIZE;
+      // an empty stream is still one block, so the result is valid compressed data
+      if (length > 0 || empty) {
+        empty = false;
+        int blockLength = length;
+        pending.add(CompletableFuture.supplyAsync(() -> compression.compress(data, blockLength), executor));
+      }
+    }
+  }
+
+  private static byte[] take(CompletableFuture<byte[]> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+}
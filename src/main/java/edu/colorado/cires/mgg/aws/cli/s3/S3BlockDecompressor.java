@@ -0,0 +1,122 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * The decompressed form of a stream of blocks written by {@link S3BlockCompressor}. Blocks are split apart by the lengths in their
+ * headers and decompressed on an executor a window ahead of the block being read. Data that is not split into blocks with lengths, from
+ * another tool, is decompressed on the calling thread from the point where the blocks end.
+ */
+final class S3BlockDecompressor extends InputStream {
+
+  private final PushbackInputStream source;
+  private final S3Compression compression;
+  private final Executor executor;
+  private final int window;
+  private final Deque<CompletableFuture<byte[]>> pending;
+  private boolean ended = false;
+  private InputStream decoder;
+  private byte[] block = new byte[0];
+  private int position = 0;
+
+  /**
+   * @param window the number of blocks decompressed ahead
+   */
+  S3BlockDecompressor(InputStream source, S3Compression compression, Executor executor, int window) {
+    this.source = new PushbackInputStream(source, compression.getHeaderLength());
+    this.compression = compression;
+    this.executor = executor;
+    this.window = Math.max(1, window);
+    pending = new ArrayDeque<>(this.window);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] bytes = new byte[1];
+    return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (position == block.length) {
+      submit();
+      if (pending.isEmpty()) {
+        return decoder == null ? -1 : decoder.read(bytes, off, len);
+      }
+      block = take(pending.remove());
+      position = 0;
+    }
+    int count = Math.min(len, block.length - position);
+    System.arraycopy(block, position, bytes, off, count);
+    position += count;
+    return count;
+  }
+
+  private void submit() throws IOException {
+    while (!ended && decoder == null && pending.size() < window) {
+      byte[] header = new byte[compression.getHeaderLength()];
+      int read = readFully(header, 0, header.length);
+      if (read == 0) {
+        ended = true;
+        return;
+      }
+      int length = read < header.length ? -1 : compression.blockLength(header);
+      if (length == -1) {
+        source.unread(header, 0, read);
+        decoder = compression.decoder(source);
+        return;
+      }
+      byte[] compressed = new byte[length];
+      System.arraycopy(header, 0, compressed, 0, header.length);
+      if (readFully(compressed, header.length, length - header.length) != length - header.length) {
+        throw new IOException("Truncated " + compression.getContentEncoding() + " block");
+      }
+      pending.add(CompletableFuture.supplyAsync(() -> {
+        try {
+          return compression.decompress(compressed);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, executor));
+    }
+  }
+
+  private int readFully(byte[] bytes, int off, int len) throws IOException {
+    int total = 0;
+    int read;
+    while (total < len && (read = source.read(bytes, off + total, len - total)) != -1) {
+      total += read;
+    }
+    return total;
+  }
+
+  private static byte[] take(CompletableFuture<byte[]> future) throws IOException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+}
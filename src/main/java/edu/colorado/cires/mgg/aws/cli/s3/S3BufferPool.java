@@ -0,0 +1,266 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A fixed amount of memory for holding object parts in transit, handed out as 1 MiB chunks that are reused once released. Acquiring
+ * blocks until enough chunks are free, so the parts in flight never take more memory than the pool was created with whatever the part
+ * size or number of threads.
+ */
+final class S3BufferPool {
+
+  static final int CHUNK_SIZE = 1024 * 1024;
+
+  private final int chunks;
+  private final Semaphore available;
+  private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param capacity the most bytes held at once, rounded up to a whole chunk
+   */
+  S3BufferPool(long capacity) {
+    chunks = (int) Math.max(1L, (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    available = new Semaphore(chunks, true);
+  }
+
+  long getCapacity() {
+    return (long) chunks * CHUNK_SIZE;
+  }
+
+  /**
+   * Waits for enough free chunks to hold the given number of bytes.
+   */
+  Buffer acquire(long bytes) {
+    int needed = chunks(bytes);
+    available.acquireUninterruptibly(needed);
+    return new Buffer(take(needed), null);
+  }
+
+  /**
+   * Sets memory aside for a reader that holds the buffers it has read ahead while it takes the next one, so it never waits on memory
+   * other readers hold while holding some itself. Waits for the chunks of one buffer, holding nothing yet, and adds the chunks of up to
+   * count - 1 more buffers if they are free.
+   */
+  Reservation reserve(long bytes, int count) {
+    int needed = chunks(bytes);
+    available.acquireUninterruptibly(needed);
+    int reserved = needed;
+    for (int i = 1; i < count && available.tryAcquire(needed); i++) {
+      reserved += needed;
+    }
+    return new Reservation(reserved);
+  }
+
+  private int chunks(long bytes) {
+    int needed = (int) ((bytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    if (needed > chunks) {
+      throw new IllegalArgumentException("A part of " + bytes + " bytes does not fit in a stream buffer of " + getCapacity() + " bytes");
+    }
+    return needed;
+  }
+
+  private byte[][] take(int needed) {
+    byte[][] held = new byte[needed][];
+    for (int i = 0; i < needed; i++) {
+      byte[] chunk = free.poll();
+      held[i] = chunk == null ? new byte[CHUNK_SIZE] : chunk;
+    }
+    return held;
+  }
+
+  private void release(byte[][] held, Reservation reservation) {
+    for (byte[] chunk : held) {
+      free.add(chunk);
+    }
+    if (reservation == null || !reservation.release(held.length)) {
+      available.release(held.length);
+    }
+  }
+
+  /**
+   * Chunks set aside for one reader. Buffers taken from it return to it until it is closed, and to the pool after.
+   */
+  final class Reservation implements AutoCloseable {
+
+    private int unused;
+    private boolean closed = false;
+
+    private Reservation(int reserved) {
+      unused = reserved;
+    }
+
+    /**
+     * @return how many buffers of the given size fit in the chunks not taken
+     */
+    synchronized int fits(long bytes) {
+      return unused / chunks(bytes);
+    }
+
+    /**
+     * Takes a buffer without waiting.
+     *
+     * @throws IllegalStateException if the reserved chunks not taken cannot hold the bytes
+     */
+    synchronized Buffer acquire(long bytes) {
+      int needed = chunks(bytes);
+      if (closed || needed > unused) {
+        throw new IllegalStateException("A part of " + bytes + " bytes does not fit in the memory reserved");
+      }
+      unused -= needed;
+      return new Buffer(take(needed), this);
+    }
+
+    // false once closed, the chunks then go back to the pool
+    private synchronized boolean release(int count) {
+      if (closed) {
+        return false;
+      }
+      unused += count;
+      return true;
+    }
+
+    @Override
+    public void close() {
+      int count;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        count = unused;
+        unused = 0;
+      }
+      available.release(count);
+    }
+  }
+
+  /**
+   * Chunks held for one part. Filled once from a stream and then read any number of times, so a retried request can send the part
+   * again.
+   */
+  final class Buffer implements AutoCloseable {
+
+    private final byte[][] held;
+    private final Reservation reservation;
+    private long length = 0L;
+    private boolean closed = false;
+
+    private Buffer(byte[][] held, Reservation reservation) {
+      this.held = held;
+      this.reservation = reservation;
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    /**
+     * Reads until the stream ends or the buffer holds the given number of bytes.
+     */
+    void fill(InputStream in, long limit) throws IOException {
+      long capacity = Math.min(limit, (long) held.length * CHUNK_SIZE);
+      int read;
+      while (length < capacity) {
+        byte[] chunk = held[(int) (length / CHUNK_SIZE)];
+        int offset = (int) (length % CHUNK_SIZE);
+        read = in.read(chunk, offset, (int) Math.min(CHUNK_SIZE - offset, capacity - length));
+        if (read == -1) {
+          return;
+        }
+        length += read;
+      }
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      for (long written = 0L; written < length; ) {
+        int count = (int) Math.min(CHUNK_SIZE, length - written);
+        out.write(held[(int) (written / CHUNK_SIZE)], 0, count);
+        written += count;
+      }
+    }
+
+    void digest(S3Checksum.Digest digest) {
+      for (long read = 0L; read < length; ) {
+        int count = (int) Math.min(CHUNK_SIZE, length - read);
+        digest.update(held[(int) (read / CHUNK_SIZE)], 0, count);
+        read += count;
+      }
+    }
+
+    /**
+     * @return a stream of the bytes filled, supporting mark and reset
+     */
+    InputStream newInputStream() {
+      return new InputStream() {
+
+        private long position = 0L;
+        private long mark = 0L;
+
+        @Override
+        public int read() {
+          if (position >= length) {
+            return -1;
+          }
+          int value = held[(int) (position / CHUNK_SIZE)][(int) (position % CHUNK_SIZE)] & 0xff;
+          position++;
+          return value;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+          if (len == 0) {
+            return 0;
+          }
+          if (position >= length) {
+            return -1;
+          }
+          int offset = (int) (position % CHUNK_SIZE);
+          int count = (int) Math.min(Math.min(len, CHUNK_SIZE - offset), length - position);
+          System.arraycopy(held[(int) (position / CHUNK_SIZE)], offset, bytes, off, count);
+          position += count;
+          return count;
+        }
+
+        @Override
+        public long skip(long n) {
+          long skipped = Math.max(0L, Math.min(n, length - position));
+          position += skipped;
+          return skipped;
+        }
+
+        @Override
+        public int available() {
+          return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+          return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+          mark = position;
+        }
+
+        @Override
+        public void reset() {
+          position = mark;
+        }
+      };
+    }
+
+    @Override
+    public synchronized void close() {
+      if (!closed) {
+        closed = true;
+        release(held, reservation);
+      }
+    }
+  }
+}
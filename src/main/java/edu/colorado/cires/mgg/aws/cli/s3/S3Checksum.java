@@ -0,0 +1,251 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.util.BinaryUtils;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Checksums computed from the bytes of a transfer as they pass through, one part at a time, so the parts of a multipart transfer are
+ * checksummed in parallel and combined afterwards.
+ * <p>
+ * An md5 checksum is written like an ETag: the hex MD5 of the object, or for an object uploaded in parts the hex MD5 of the parts' MD5s
+ * followed by "-" and the number of parts, so it can be compared with the ETag S3 reports. A sha256 checksum is the base64 SHA-256,
+ * for parts the base64 SHA-256 of the parts' SHA-256s and the number of parts, the form S3 uses for composite checksums. A crc32c
+ * checksum is the base64 CRC-32C of the whole object however it was split, as CRCs of parts combine exactly.
+ */
+public final class S3Checksum {
+
+  public enum Algorithm {
+    CRC32C,
+    SHA256,
+    MD5;
+
+    public static Algorithm parse(String value) {
+      for (Algorithm algorithm : values()) {
+        if (algorithm.name().equalsIgnoreCase(value.trim())) {
+          return algorithm;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported checksum: " + value);
+    }
+
+    /**
+     * @return the object tag the checksum is stored in, or null for md5 which S3 reports as the ETag
+     */
+    public String getTag() {
+      return this == MD5 ? null : "checksum-" + name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   * The checksum of one part, in the order bytes were given.
+   */
+  public static final class Digest {
+
+    private final MessageDigest messageDigest;
+    private final S3Crc32c crc;
+    private long length = 0L;
+    private byte[] value;
+
+    private Digest(Algorithm algorithm) {
+      if (algorithm == Algorithm.CRC32C) {
+        crc = new S3Crc32c();
+        messageDigest = null;
+      } else {
+        crc = null;
+        try {
+          messageDigest = MessageDigest.getInstance(algorithm == Algorithm.MD5 ? "MD5" : "SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+          throw new IllegalStateException("Missing digest algorithm: " + algorithm, e);
+        }
+      }
+    }
+
+    public void update(byte[] bytes, int offset, int count) {
+      if (crc != null) {
+        crc.update(bytes, offset, count);
+      } else {
+        messageDigest.update(bytes, offset, count);
+      }
+      length += count;
+    }
+
+    /**
+     * Reads the remaining bytes of a buffer, leaving its position at the limit.
+     */
+    public void update(ByteBuffer buffer) {
+      length += buffer.remaining();
+      if (crc != null) {
+        crc.update(buffer);
+      } else {
+        messageDigest.update(buffer);
+      }
+    }
+
+    long getLength() {
+      return length;
+    }
+
+    // completes the digest, no more bytes can be added
+    byte[] value() {
+      if (value == null) {
+        if (crc != null) {
+          int c = crc.getValue();
+          value = new byte[]{(byte) (c >>> 24), (byte) (c >>> 16), (byte) (c >>> 8), (byte) c};
+        } else {
+          value = messageDigest.digest();
+        }
+      }
+      return value.clone();
+    }
+  }
+
+  private S3Checksum() {
+
+  }
+
+  public static Digest digest(Algorithm algorithm) {
+    return new Digest(algorithm);
+  }
+
+  /**
+   * Checksums a part of a file through memory mappings, for a part that is not transferred, such as one an earlier run uploaded.
+   */
+  static Digest digest(Algorithm algorithm, Path file, long offset, long length) {
+    Digest digest = new Digest(algorithm);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      for (long position = offset; position < offset + length; ) {
+        long count = Math.min(S3MappedPartStream.MAX_LENGTH, offset + length - position);
+        digest.update(channel.map(MapMode.READ_ONLY, position, count));
+        position += count;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read file: " + file.toAbsolutePath().toString(), e);
+    }
+    return digest;
+  }
+
+  /**
+   * Checksums the bytes of a stream as they are read, so a part is read from disk once as it is sent. Each byte is checksummed once even
+   * if the stream is reset and read again, as when a request is retried.
+   */
+  static InputStream digesting(InputStream in, Digest digest) {
+    return new DigestingInputStream(in, digest);
+  }
+
+  private static final class DigestingInputStream extends FilterInputStream {
+
+    private final Digest digest;
+    private long position = 0L;
+    // the bytes checksummed so far, beyond the position after a reset
+    private long digested = 0L;
+    private long mark = 0L;
+
+    private DigestingInputStream(InputStream in, Digest digest) {
+      super(in);
+      this.digest = digest;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] bytes = new byte[1];
+      return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+      int count = in.read(bytes, off, len);
+      if (count > 0) {
+        if (position + count > digested) {
+          int seen = (int) Math.max(0L, digested - position);
+          digest.update(bytes, off + seen, count - seen);
+          digested = position + count;
+        }
+        position += count;
+      }
+      return count;
+    }
+
+    // skipped bytes are read so they are checksummed
+    @Override
+    public long skip(long n) throws IOException {
+      byte[] bytes = new byte[(int) Math.min(n, 8192)];
+      long skipped = 0L;
+      int count;
+      while (skipped < n && (count = read(bytes, 0, (int) Math.min(bytes.length, n - skipped))) != -1) {
+        skipped += count;
+      }
+      return skipped;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+      in.mark(readLimit);
+      mark = position;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      in.reset();
+      position = mark;
+    }
+  }
+
+  /**
+   * @param parts the finished digests of every part in order
+   * @param multipart true if the object is stored in parts, even a single part
+   */
+  public static String combine(Algorithm algorithm, List<Digest> parts, boolean multipart) {
+    if (algorithm == Algorithm.CRC32C) {
+      int crc = 0;
+      for (int i = 0; i < parts.size(); i++) {
+        int part = ByteBuffer.wrap(parts.get(i).value()).getInt();
+        crc = i == 0 ? part : S3Crc32c.combine(crc, part, parts.get(i).getLength());
+      }
+      return BinaryUtils.toBase64(ByteBuffer.allocate(4).putInt(crc).array());
+    }
+    if (!multipart && parts.size() == 1) {
+      return encode(algorithm, parts.get(0).value());
+    }
+    Digest composite = new Digest(algorithm);
+    for (Digest part : parts) {
+      byte[] value = part.value();
+      composite.update(value, 0, value.length);
+    }
+    return encode(algorithm, composite.value()) + "-" + parts.size();
+  }
+
+  private static String encode(Algorithm algorithm, byte[] value) {
+    return algorithm == Algorithm.MD5 ? BinaryUtils.toHex(value) : BinaryUtils.toBase64(value);
+  }
+
+  /**
+   * @return true if the checksum depends on how the object was split into parts
+   */
+  public static boolean dependsOnParts(Algorithm algorithm) {
+    return algorithm != Algorithm.CRC32C;
+  }
+
+  /**
+   * @param expected the checksum S3 reported or stored, for md5 an ETag possibly in quotes
+   * @throws RuntimeException if they differ
+   */
+  public static void verify(String object, Algorithm algorithm, String expected, String computed) {
+    String normalized = algorithm == Algorithm.MD5 ? expected.replace("\"", "").toLowerCase(Locale.ROOT) : expected;
+    if (!normalized.equals(computed)) {
+      throw new RuntimeException(
+          "Checksum mismatch for " + object + ": " + algorithm.name().toLowerCase(Locale.ROOT) + " expected " + normalized + " but was "
+              + computed);
+    }
+  }
+}
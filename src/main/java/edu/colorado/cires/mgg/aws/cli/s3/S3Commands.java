@@ -10,7 +10,8 @@ import picocli.CommandLine.Spec;
     mixinStandardHelpOptions = true,
     subcommands = {
         S3CpCommands.class,
-        S3RmCommands.class
+        S3RmCommands.class,
+        S3SyncCommands.class
     })
 public class S3Commands implements Runnable {
 
@@ -0,0 +1,204 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A compression applied to objects as they are uploaded, stored as the object's Content-Encoding.
+ * <p>
+ * Data is compressed as independent blocks, each a complete gzip member or zstd frame, so blocks are compressed and decompressed in
+ * parallel and the object is still an ordinary gzip or zstd stream. Each block carries its compressed length where other decoders
+ * ignore it, in a gzip extra field or a zstd skippable frame before it, so blocks can be split apart without decompressing them.
+ */
+public enum S3Compression {
+  GZIP,
+  ZSTD;
+
+  // the largest block or decompressed block accepted, a header claiming more is taken as corrupt
+  private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+  // gzip member header with FEXTRA set, holding one "S3" subfield with the member length
+  private static final int GZIP_HEADER_LENGTH = 20;
+  private static final int GZIP_TRAILER_LENGTH = 8;
+  private static final byte[] GZIP_HEADER = {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 4, 0, 0, 0, 0, 0, (byte) 0xff, 8, 0, 'S', '3', 4, 0
+  };
+
+  // skippable frame holding the length of the zstd frame after it
+  private static final int ZSTD_HEADER_LENGTH = 12;
+  private static final int ZSTD_SKIPPABLE_MAGIC = 0x184D2A53;
+  private static final int ZSTD_LEVEL = 3;
+
+  public static S3Compression parse(String value) {
+    for (S3Compression compression : values()) {
+      if (compression.name().equalsIgnoreCase(value.trim())) {
+        return compression;
+      }
+    }
+    throw new IllegalArgumentException("Unsupported compression: " + value);
+  }
+
+  /**
+   * @return the compression of an object stored with the Content-Encoding, or null if it is not one of these
+   */
+  public static S3Compression fromContentEncoding(String contentEncoding) {
+    if (contentEncoding != null) {
+      for (S3Compression compression : values()) {
+        if (compression.getContentEncoding().equalsIgnoreCase(contentEncoding.trim())) {
+          return compression;
+        }
+      }
+    }
+    return null;
+  }
+
+  public String getContentEncoding() {
+    return name().toLowerCase(Locale.ROOT);
+  }
+
+  int getHeaderLength() {
+    return this == GZIP ? GZIP_HEADER_LENGTH : ZSTD_HEADER_LENGTH;
+  }
+
+  /**
+   * @return the block with its header
+   */
+  byte[] compress(byte[] data, int length) {
+    if (this == ZSTD) {
+      byte[] block = new byte[ZSTD_HEADER_LENGTH + (int) Zstd.compressBound(length)];
+      long compressed = Zstd.compressByteArray(block, ZSTD_HEADER_LENGTH, block.length - ZSTD_HEADER_LENGTH, data, 0, length, ZSTD_LEVEL);
+      if (Zstd.isError(compressed)) {
+        throw new IllegalStateException("Unable to compress: " + Zstd.getErrorName(compressed));
+      }
+      writeInt(block, 0, ZSTD_SKIPPABLE_MAGIC);
+      writeInt(block, 4, 4);
+      writeInt(block, 8, (int) compressed);
+      return Arrays.copyOf(block, ZSTD_HEADER_LENGTH + (int) compressed);
+    }
+    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      byte[] block = new byte[GZIP_HEADER_LENGTH + length + length / 1000 + 64 + GZIP_TRAILER_LENGTH];
+      int size = GZIP_HEADER_LENGTH;
+      while (!deflater.finished()) {
+        if (size == block.length - GZIP_TRAILER_LENGTH) {
+          block = Arrays.copyOf(block, block.length * 2);
+        }
+        size += deflater.deflate(block, size, block.length - GZIP_TRAILER_LENGTH - size);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      System.arraycopy(GZIP_HEADER, 0, block, 0, GZIP_HEADER.length);
+      writeInt(block, GZIP_HEADER.length, size + GZIP_TRAILER_LENGTH);
+      writeInt(block, size, (int) crc.getValue());
+      writeInt(block, size + 4, length);
+      return Arrays.copyOf(block, size + GZIP_TRAILER_LENGTH);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * @param header the first {@link #getHeaderLength()} bytes of a block
+   * @return the length of the block including its header, or -1 if the bytes are not the header of a block
+   */
+  int blockLength(byte[] header) throws IOException {
+    long length;
+    if (this == ZSTD) {
+      if (readInt(header, 0) != ZSTD_SKIPPABLE_MAGIC || readInt(header, 4) != 4) {
+        return -1;
+      }
+      length = ZSTD_HEADER_LENGTH + (readInt(header, 8) & 0xffffffffL);
+    } else {
+      for (int i = 0; i < GZIP_HEADER.length; i++) {
+        // the modification time, extra flags and operating system may be anything
+        if (i >= 4 && i < 10) {
+          continue;
+        }
+        if (header[i] != GZIP_HEADER[i]) {
+          return -1;
+        }
+      }
+      length = readInt(header, GZIP_HEADER.length) & 0xffffffffL;
+    }
+    if (length < getHeaderLength() || length > MAX_BLOCK_SIZE) {
+      throw new IOException("Invalid " + getContentEncoding() + " block length: " + length);
+    }
+    return (int) length;
+  }
+
+  /**
+   * @param block a whole block with its header
+   */
+  byte[] decompress(byte[] block) throws IOException {
+    if (this == ZSTD) {
+      long size = Zstd.getFrameContentSize(block, ZSTD_HEADER_LENGTH, block.length - ZSTD_HEADER_LENGTH);
+      if (size < 0 || size > MAX_BLOCK_SIZE) {
+        throw new IOException("Invalid zstd block");
+      }
+      byte[] data = new byte[(int) size];
+      long decompressed = Zstd.decompressByteArray(data, 0, data.length, block, ZSTD_HEADER_LENGTH, block.length - ZSTD_HEADER_LENGTH);
+      if (Zstd.isError(decompressed) || decompressed != size) {
+        throw new IOException("Invalid zstd block");
+      }
+      return data;
+    }
+    int size = readInt(block, block.length - 4);
+    if (size < 0 || size > MAX_BLOCK_SIZE) {
+      throw new IOException("Invalid gzip block");
+    }
+    byte[] data = new byte[size];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(block, GZIP_HEADER_LENGTH, block.length - GZIP_HEADER_LENGTH - GZIP_TRAILER_LENGTH);
+      // once the data is full, inflating further must only reach the end of the block
+      byte[] overflow = new byte[1];
+      int inflated = 0;
+      while (inflated <= size && !inflater.finished()) {
+        int count = inflated < size ? inflater.inflate(data, inflated, size - inflated) : inflater.inflate(overflow);
+        if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += count;
+      }
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, inflated);
+      if (inflated != size || !inflater.finished() || (int) crc.getValue() != readInt(block, block.length - 8)) {
+        throw new IOException("Invalid gzip block");
+      }
+      return data;
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid gzip block", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * @return a decoder for data not split into blocks with lengths, such as an object compressed by another tool
+   */
+  InputStream decoder(InputStream in) throws IOException {
+    return this == ZSTD ? new ZstdInputStream(in) : new GZIPInputStream(in);
+  }
+
+  private static void writeInt(byte[] bytes, int offset, int value) {
+    bytes[offset] = (byte) value;
+    bytes[offset + 1] = (byte) (value >>> 8);
+    bytes[offset + 2] = (byte) (value >>> 16);
+    bytes[offset + 3] = (byte) (value >>> 24);
+  }
+
+  private static int readInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+  }
+}
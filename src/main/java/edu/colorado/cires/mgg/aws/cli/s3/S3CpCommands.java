@@ -2,14 +2,30 @@ package edu.colorado.cires.mgg.aws.cli.s3;
 
 import com.amazonaws.services.s3.AmazonS3URI;
 import edu.colorado.cires.mgg.aws.cli.AwsCommands;
-import java.io.IOException;
-import java.nio.file.Files;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.apache.commons.lang3.StringUtils;
+import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
@@ -20,57 +36,141 @@ import picocli.CommandLine.Parameters;
     mixinStandardHelpOptions = true)
 public class S3CpCommands implements Runnable {
 
-  @Parameters(index = "0", description = "A file path or S3 URL to copy from ex. s3://mybucket/test.txt or mydir/test2.txt")
+  @Parameters(index = "0", description = "A file path or S3 URL to copy from ex. s3://mybucket/test.txt or mydir/test2.txt, or - for standard input")
   private String source;
 
-  @Parameters(index = "1", description = "A file path or S3 URL to copy to ex. s3://mybucket/test.txt or mydir/test2.txt")
+  @Parameters(index = "1", description = "A file path or S3 URL to copy to ex. s3://mybucket/test.txt or mydir/test2.txt, or - for standard output")
   private String target;
 
   @Option(names = {"-r", "--recursive"}, description = "Command is  performed  on all files or objects under the specified directory or prefix.")
   private boolean recursive = false;
 
-  @Option(names = {"-i", "--include"}, description = "When recursive, don't exclude files or objects in the command that match the specified pattern. See https://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob")
-  private String include;
+  @ArgGroup(exclusive = true, multiplicity = "0..*")
+  private List<S3FilterRule> filterRules = new ArrayList<>();
 
-  @Option(names = {"-e", "--exclude"}, description = "When recursive, exclude all files or objects from the command that matches the specified pattern. See https://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob")
-  private String exclude;
+  @Option(names = {"-c", "--concurrency"}, description = "When recursive, the number of objects transferred in parallel. Default: ${DEFAULT-VALUE}")
+  private int concurrency = 1;
+
+  @Option(names = {"--walk-parallelism"}, description = "When recursive, the number of local directories read at once while uploading. Default: ${DEFAULT-VALUE}")
+  private int walkParallelism = ParallelFileWalker.DEFAULT_PARALLELISM;
+
+  @Option(names = {"--journal"}, description = "A file recording finished objects and multipart upload parts. Running the same command again with the same journal skips finished objects and continues interrupted multipart uploads.")
+  private Path journalFile;
+
+  @Option(names = {"--compress"}, description = "Compress uploads as gzip or zstd, in blocks compressed in parallel on every core, and set the Content-Encoding. Objects with a gzip or zstd Content-Encoding are decompressed when downloaded.")
+  private String compress;
+
+  @Option(names = {"--pack"}, description = "When uploading recursively, pack small files into uncompressed tar archives of about this size, ex. 64MB, with an index of where each file is under .s3pack/ in the target prefix.")
+  private String pack;
+
+  @Option(names = {"--pack-max-file"}, description = "With --pack, the largest file packed, larger files are uploaded as objects of their own. Default: ${DEFAULT-VALUE}")
+  private String packMaxFile = "1MB";
+
+  @Option(names = {"--unpack"}, description = "When downloading, also download the files packed by --pack, each read from its archive with a ranged request.")
+  private boolean unpack = false;
+
+  @Mixin
+  private S3ListOptions listOptions = new S3ListOptions();
+
+  @Mixin
+  private S3TransferOptions transferOptions = new S3TransferOptions();
+
+  @Mixin
+  private S3SourceOptions sourceOptions = new S3SourceOptions();
+
+  @Mixin
+  private S3OutputOptions outputOptions = new S3OutputOptions();
+
+  @Mixin
+  private S3StatsOptions statsOptions = new S3StatsOptions();
 
   @Override
   public void run() {
-    new S3CpCommandsHandler(new S3OperationsImpl(AwsCommands.getS3()),
-        source,
-        target,
-        recursive,
-        include,
-        exclude,
-        path -> {
-          try {
-            return Files.walk(path).filter(f -> !Files.isDirectory(f));
-          } catch (IOException e) {
-            throw new RuntimeException(e);
+    S3TransferConfig config = outputOptions.apply(sourceOptions.apply(transferOptions.apply(listOptions.apply(new S3TransferConfig()))));
+    if (compress != null) {
+      config.withCompression(S3Compression.parse(compress));
+    }
+    S3Filter filter = S3Filter.compile(filterRules);
+    // with the object on standard output, everything else is printed on standard error
+    try (S3Output output = S3CpCommandsHandler.STANDARD_STREAM.equals(StringUtils.trim(target)) ? outputOptions.createOutput(System.err)
+        : outputOptions.createOutput();
+        S3Journal journal = journalFile == null ? null : new S3Journal(journalFile);
+        S3OperationsImpl s3 = new S3OperationsImpl(AwsCommands.getS3(), sourceOptions.createS3(), config, journal, output)) {
+      statsOptions.run(s3.getStats(), output, () -> new S3CpCommandsHandler(s3,
+          source,
+          target,
+          recursive,
+          filter,
+          concurrency,
+          journal,
+          path -> {
+            ParallelFileWalker walker = new ParallelFileWalker(path, walkParallelism, filter::mayMatchUnder);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walker, Spliterator.NONNULL), false)
+                .onClose(walker::close);
           }
-        }
-    ).run();
+      ).withPack(pack == null ? 0L : S3Utils.parseSize(pack), S3Utils.parseSize(packMaxFile))
+          .withUnpack(unpack)
+          .run());
+    }
   }
 
   static class S3CpCommandsHandler {
 
+    static final String STANDARD_STREAM = "-";
+
+    // room for a full listing page beyond what the workers hold, so the next page can be listed while the current one transfers
+    private static final int LISTING_QUEUE_CAPACITY = 1000;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
     private final S3Operations s3;
     private final String source;
     private final String target;
     private final boolean recursive;
-    private final String include;
-    private final String exclude;
-    private final Function<Path, Stream<Path>> listPaths;
+    private final S3Filter filter;
+    private final int concurrency;
+    private final S3Journal journal;
+    private final Function<Path, Stream<S3LocalFile>> listFiles;
+    private long packSize = 0L;
+    private long packMaxFile = 0L;
+    private boolean unpack = false;
+
+    S3CpCommandsHandler(S3Operations s3, String source, String target, boolean recursive, String include, String exclude, Function<Path, Stream<S3LocalFile>> listFiles) {
+      this(s3, source, target, recursive, include, exclude, 1, listFiles);
+    }
 
-    S3CpCommandsHandler(S3Operations s3, String source, String target, boolean recursive, String include, String exclude, Function<Path, Stream<Path>> listPaths) {
+    S3CpCommandsHandler(S3Operations s3, String source, String target, boolean recursive, String include, String exclude, int concurrency,
+        Function<Path, Stream<S3LocalFile>> listFiles) {
+      this(s3, source, target, recursive, S3Filter.of(include, exclude), concurrency, null, listFiles);
+    }
+
+    /**
+     * @param listFiles walks a directory, the key of each file is its path relative to the directory and its attributes are not read again
+     */
+    S3CpCommandsHandler(S3Operations s3, String source, String target, boolean recursive, S3Filter filter, int concurrency,
+        S3Journal journal, Function<Path, Stream<S3LocalFile>> listFiles) {
       this.s3 = s3;
       this.source = source;
       this.target = target;
       this.recursive = recursive;
-      this.include = include;
-      this.exclude = exclude;
-      this.listPaths = listPaths;
+      this.filter = filter;
+      this.concurrency = concurrency;
+      this.journal = journal;
+      this.listFiles = listFiles;
+    }
+
+    /**
+     * @param packSize the size of the archives small files are packed into when uploading recursively, 0 to not pack
+     * @param packMaxFile the largest file packed
+     */
+    S3CpCommandsHandler withPack(long packSize, long packMaxFile) {
+      this.packSize = packSize;
+      this.packMaxFile = packMaxFile;
+      return this;
+    }
+
+    S3CpCommandsHandler withUnpack(boolean unpack) {
+      this.unpack = unpack;
+      return this;
     }
 
     public void run() {
@@ -85,7 +185,9 @@ public class S3CpCommands implements Runnable {
       String s = source.trim();
       String t = target.trim();
 
-      if (!isS3Uri(s) && isS3Uri(t)) {
+      if (STANDARD_STREAM.equals(s) || STANDARD_STREAM.equals(t)) {
+        stream(s, t);
+      } else if (!isS3Uri(s) && isS3Uri(t)) {
         upload(s, t);
       } else if (isS3Uri(s) && !isS3Uri(t)) {
         download(s, t);
@@ -98,8 +200,45 @@ public class S3CpCommands implements Runnable {
     }
 
 
-    private boolean incExc(Path path) {
-      return S3Utils.incExc(path, include, exclude);
+    // objects finished by an earlier run with the same journal
+    private boolean skip(String object) {
+      if (journal != null && journal.isDone(object)) {
+        s3.skip(object, "already transferred");
+        return true;
+      }
+      return false;
+    }
+
+    private Runnable journaled(String object, Runnable task) {
+      return () -> {
+        task.run();
+        if (journal != null) {
+          journal.done(object);
+        }
+      };
+    }
+
+    private void submit(S3WorkerPool pool, String object, Runnable task) {
+      if (!skip(object)) {
+        pool.submit(object, journaled(object, task));
+      }
+    }
+
+    private void transfer(String object, Runnable task) {
+      if (!skip(object)) {
+        journaled(object, task).run();
+      }
+    }
+
+    // lists only the prefixes the filter can include
+    private void forEachKey(String bucket, String prefix, Consumer<String> consumer) {
+      for (String filterPrefix : filter.listPrefixes()) {
+        s3.forEachKey(bucket, prefix + filterPrefix, consumer);
+      }
+    }
+
+    private S3WorkerPool listingPool() {
+      return new S3WorkerPool(concurrency, concurrency * 2 + LISTING_QUEUE_CAPACITY);
     }
 
     private void copy(String s, String t) {
@@ -115,20 +254,41 @@ public class S3CpCommands implements Runnable {
       if (recursive) {
         String sourcePrefix = sourceKey.isEmpty() ? sourceKey : sourceKey + "/";
         String targetPrefix = targetKey.isEmpty() ? targetKey : targetKey + "/";
-        s3.forEachKey(sourceBucket, sourcePrefix, key -> {
-          String relativePath = sourcePrefix.isEmpty() ? key : S3Utils.normalize(key).replaceAll("^" + sourcePrefix, "");
-          String targetPath = targetPrefix.isEmpty() ? relativePath : targetPrefix + relativePath;
-          if(incExc(Paths.get(relativePath))) {
-            s3.copy(sourceBucket, key, targetBucket, targetPath);
-          }
+        try (S3WorkerPool pool = listingPool()) {
+          forEachKey(sourceBucket, sourcePrefix, key -> {
+            String relativePath = S3Utils.relativePath(sourcePrefix, key);
+            String targetPath = targetPrefix.isEmpty() ? relativePath : targetPrefix + relativePath;
+            if (filter.matches(relativePath)) {
+              submit(pool, "s3://" + targetBucket + "/" + targetPath, () -> s3.copy(sourceBucket, key, targetBucket, targetPath));
+            }
 
-        });
+          });
+          pool.awaitCompletion(s3::failed);
+        }
       } else {
-        s3.copy(sourceBucket, sourceKey, targetBucket, targetKey);
+        transfer("s3://" + targetBucket + "/" + targetKey, () -> s3.copy(sourceBucket, sourceKey, targetBucket, targetKey));
       }
 
     }
 
+    // a single object from standard input or to standard output, never journaled as the stream can differ between runs
+    private void stream(String s, String t) {
+      if (recursive) {
+        throw new RuntimeException("standard input and output cannot be used with --recursive");
+      }
+      if (STANDARD_STREAM.equals(s) && isS3Uri(t)) {
+        AmazonS3URI uri = new AmazonS3URI(t);
+        s3.uploadStream(System.in, uri.getBucket(), S3Utils.normalize(uri.getKey()));
+      } else if (isS3Uri(s) && STANDARD_STREAM.equals(t)) {
+        AmazonS3URI uri = new AmazonS3URI(s);
+        // System.out would hide write errors such as a closed pipe
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), STREAM_BUFFER_SIZE);
+        s3.downloadStream(uri.getBucket(), S3Utils.normalize(uri.getKey()), out);
+      } else {
+        throw new RuntimeException("standard input can only be copied to a S3 URI and a S3 URI to standard output");
+      }
+    }
+
     private void download(String s, String t) {
       AmazonS3URI s3Uri = new AmazonS3URI(s);
       String sourceBucket = s3Uri.getBucket();
@@ -137,43 +297,193 @@ public class S3CpCommands implements Runnable {
 
       if (recursive) {
         String prefix = sourceKey.isEmpty() ? sourceKey : sourceKey + "/";
-        s3.forEachKey(sourceBucket, prefix, key -> {
-          if (!key.endsWith("/")) {
-            String resolvedPath = prefix.isEmpty() ? key : S3Utils.normalize(key).replaceAll("^" + prefix, "");
-          if (incExc(Paths.get(resolvedPath))) {
-            Path destFile = dest.resolve(resolvedPath);
-            s3.download(sourceBucket, key, destFile);
+        List<String> indexKeys = new ArrayList<>();
+        // only kept when unpacking, to tell packed members from objects of their own
+        Set<String> downloaded = unpack ? new HashSet<>() : null;
+        try (S3WorkerPool pool = listingPool()) {
+          forEachKey(sourceBucket, prefix, key -> {
+            if (!key.endsWith("/")) {
+              String resolvedPath = S3Utils.relativePath(prefix, key);
+              if (unpack && S3Pack.isPacked(resolvedPath)) {
+                // packs nested below the prefix, the pack at the prefix is listed on its own
+                if (S3Pack.isIndex(resolvedPath) && !S3Pack.prefixOf(resolvedPath).isEmpty()) {
+                  indexKeys.add(key);
+                }
+              } else if (filter.matches(resolvedPath)) {
+                Path destFile = dest.resolve(resolvedPath);
+                if (downloaded != null) {
+                  downloaded.add(resolvedPath);
+                }
+                submit(pool, "s3://" + sourceBucket + "/" + key, () -> s3.download(sourceBucket, key, destFile));
+              }
+            }
+          });
+          if (unpack) {
+            indexKeys.addAll(packIndexKeys(sourceBucket, prefix));
+            packedMembers(sourceBucket, prefix, indexKeys).forEach((resolvedPath, member) -> {
+              // an object of its own was uploaded separately and is downloaded instead
+              if (!downloaded.contains(resolvedPath) && filter.matches(resolvedPath)) {
+                Path destFile = dest.resolve(resolvedPath);
+                submit(pool, "s3://" + sourceBucket + "/" + member.getKey(),
+                    () -> s3.downloadRange(sourceBucket, member.getKey(), member.getOffset(), member.getSize(), destFile));
+              }
+            });
           }
+          pool.awaitCompletion(s3::failed);
         }
-        });
       } else {
-        s3.download(sourceBucket, sourceKey, dest);
+        PackedMember member = null;
+        if (unpack) {
+          int slash = sourceKey.lastIndexOf('/');
+          String prefix = sourceKey.substring(0, slash + 1);
+          member = packedMembers(sourceBucket, prefix, packIndexKeys(sourceBucket, prefix)).get(sourceKey.substring(slash + 1));
+        }
+        if (member == null) {
+          transfer("s3://" + sourceBucket + "/" + sourceKey, () -> s3.download(sourceBucket, sourceKey, dest));
+        } else {
+          PackedMember packed = member;
+          transfer("s3://" + sourceBucket + "/" + packed.getKey(),
+              () -> s3.downloadRange(sourceBucket, packed.getKey(), packed.getOffset(), packed.getSize(), dest));
+        }
       }
 
 
     }
 
+    // the indexes of the packs at the prefix and every prefix above it, which can hold files under the prefix
+    private List<String> packIndexKeys(String bucket, String prefix) {
+      List<String> indexKeys = new ArrayList<>();
+      String packPrefix = prefix;
+      while (true) {
+        s3.forEachKey(bucket, packPrefix + S3Pack.DIRECTORY, key -> {
+          if (S3Pack.isIndex(key)) {
+            indexKeys.add(key);
+          }
+        });
+        if (packPrefix.isEmpty()) {
+          return indexKeys;
+        }
+        packPrefix = packPrefix.substring(0, packPrefix.lastIndexOf('/', packPrefix.length() - 2) + 1);
+      }
+    }
+
+    /**
+     * @return the members under the prefix by their path relative to it, a member of a later upload replacing one of an earlier upload
+     */
+    private Map<String, PackedMember> packedMembers(String bucket, String prefix, List<String> indexKeys) {
+      // indexes are named by the time of their upload, see S3Pack
+      List<String> ordered = new ArrayList<>(indexKeys);
+      ordered.sort(Comparator.comparing((String key) -> key.substring(key.lastIndexOf('/') + 1)).thenComparing(Comparator.naturalOrder()));
+      Map<String, PackedMember> members = new TreeMap<>(S3Utils::compareKeys);
+      for (String indexKey : ordered) {
+        String packPrefix = S3Pack.prefixOf(indexKey);
+        for (S3Pack.Member member : S3Pack.readIndex(s3.downloadBytes(bucket, indexKey))) {
+          String key = packPrefix + member.getPath();
+          if (key.startsWith(prefix)) {
+            members.put(key.substring(prefix.length()), new PackedMember(packPrefix + S3Pack.DIRECTORY + member.getArchive(), member));
+          }
+        }
+      }
+      return members;
+    }
+
+    private static final class PackedMember {
+
+      private final String key;
+      private final S3Pack.Member member;
+
+      private PackedMember(String key, S3Pack.Member member) {
+        this.key = key;
+        this.member = member;
+      }
+
+      // the key of the archive
+      private String getKey() {
+        return key;
+      }
+
+      private long getOffset() {
+        return member.getOffset();
+      }
+
+      private long getSize() {
+        return member.getSize();
+      }
+    }
+
+    // files up to the largest size packed are gathered into archives of about the pack size, each indexed once it is uploaded
+    private void uploadPacked(Path source, String targetBucket, String targetKey) {
+      String packPrefix = targetKey.isEmpty() ? targetKey : targetKey + "/";
+      String runId = S3Pack.newRunId();
+      List<S3Pack.Member> batch = new ArrayList<>();
+      long batchSize = 0L;
+      int archives = 0;
+      try (S3WorkerPool pool = new S3WorkerPool(concurrency); Stream<S3LocalFile> files = listFiles.apply(source)) {
+        Iterator<S3LocalFile> iterator = files.iterator();
+        while (iterator.hasNext()) {
+          S3LocalFile file = iterator.next();
+          String tail = file.getKey();
+          if (filter.matches(tail)) {
+            S3Pack.Member member = S3Pack.member(file, packMaxFile);
+            if (member == null) {
+              String tk = packPrefix + tail;
+              submit(pool, "s3://" + targetBucket + "/" + tk, () -> s3.upload(file, targetBucket, tk));
+              continue;
+            }
+            if (!batch.isEmpty() && batchSize + member.getArchiveLength() > packSize) {
+              submitArchive(pool, batch, runId, archives++, targetBucket, packPrefix);
+              batch = new ArrayList<>();
+              batchSize = 0L;
+            }
+            batch.add(member);
+            batchSize += member.getArchiveLength();
+          }
+        }
+        if (!batch.isEmpty()) {
+          submitArchive(pool, batch, runId, archives, targetBucket, packPrefix);
+        }
+        pool.awaitCompletion(s3::failed);
+      }
+    }
+
+    /*
+     * Archives are new objects on every run, so they are not journaled. The index of an archive is uploaded after it, so an archive that
+     * failed is never indexed, and its members are not held once both are uploaded.
+     */
+    private void submitArchive(S3WorkerPool pool, List<S3Pack.Member> members, String runId, int number, String targetBucket,
+        String packPrefix) {
+      String archiveKey = S3Pack.archiveKey(packPrefix, runId, number);
+      String archive = archiveKey.substring(archiveKey.lastIndexOf('/') + 1);
+      pool.submit("s3://" + targetBucket + "/" + archiveKey, () -> {
+        s3.uploadArchive(members, archive, targetBucket, archiveKey);
+        s3.uploadBytes(S3Pack.index(members), targetBucket, S3Pack.indexKey(packPrefix, runId, number));
+      });
+    }
+
     private void upload(String s, String t) {
       AmazonS3URI s3Uri = new AmazonS3URI(t);
       String targetBucket = s3Uri.getBucket();
       String targetKey = S3Utils.normalize(s3Uri.getKey());
       Path source = Paths.get(s);
 
-      if (recursive) {
-        try (Stream<Path> paths = listPaths.apply(source)) {
-          paths.forEach(path -> {
+      if (recursive && packSize > 0L) {
+        uploadPacked(source, targetBucket, targetKey);
+      } else if (recursive) {
+        try (S3WorkerPool pool = new S3WorkerPool(concurrency); Stream<S3LocalFile> files = listFiles.apply(source)) {
+          files.forEach(file -> {
 
-            Path tail = source.relativize(path);
+            String tail = file.getKey();
 
-            if(incExc(tail)) {
-              String tk = targetKey.isEmpty() ? tail.toString() : targetKey + "/" + tail.toString();
-              s3.upload(path, targetBucket, tk);
+            if (filter.matches(tail)) {
+              String tk = targetKey.isEmpty() ? tail : targetKey + "/" + tail;
+              submit(pool, "s3://" + targetBucket + "/" + tk, () -> s3.upload(file, targetBucket, tk));
             }
 
           });
+          pool.awaitCompletion(s3::failed);
         }
       } else {
-        s3.upload(source, targetBucket, targetKey);
+        transfer("s3://" + targetBucket + "/" + targetKey, () -> s3.upload(source, targetBucket, targetKey));
       }
     }
 
@@ -0,0 +1,24 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+public class S3Failure {
+
+  private final String object;
+  private final String message;
+
+  public S3Failure(String object, Exception cause) {
+    this(object, cause.getMessage() == null ? cause.getClass().getName() : cause.getMessage());
+  }
+
+  public S3Failure(String object, String message) {
+    this.object = object;
+    this.message = message;
+  }
+
+  public String getObject() {
+    return object;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+}
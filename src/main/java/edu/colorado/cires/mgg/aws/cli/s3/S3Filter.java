@@ -0,0 +1,340 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Decides which relative paths or keys a command acts on. Patterns use the same glob syntax as {@link java.nio.file.PathMatcher} and are
+ * compiled once, then matched directly against '/' separated strings. A filter is immutable and can be shared between threads.
+ * <p>
+ * Rules are evaluated in the order given and the last one that matches decides. A key that matches no rule is included, unless the first
+ * rule is an include, in which case it is excluded. A single include and exclude therefore behave as before: only keys matching the
+ * include, minus those matching the exclude.
+ * <p>
+ * The rules are also analyzed to avoid work that could only produce excluded keys: {@link #listPrefixes()} narrows what is listed and
+ * {@link #mayMatchUnder(String)} decides which directories are walked.
+ */
+public final class S3Filter {
+
+  private static final int MAX_PREFIXES = 100;
+
+  public static final S3Filter ALL = new S3Filter(Collections.emptyList());
+
+  private final List<Rule> rules;
+  private final boolean includeUnmatched;
+
+  private S3Filter(List<Rule> rules) {
+    this.rules = rules;
+    includeUnmatched = rules.isEmpty() || !rules.get(0).include;
+  }
+
+  public static S3Filter of(String include, String exclude) {
+    return compile(Collections.singletonList(new S3FilterRule(include, exclude)));
+  }
+
+  public static S3Filter compile(List<S3FilterRule> filterRules) {
+    List<Rule> rules = new ArrayList<>();
+    for (S3FilterRule filterRule : filterRules) {
+      if (StringUtils.isNotBlank(filterRule.getInclude())) {
+        rules.add(new Rule(true, filterRule.getInclude().trim()));
+      }
+      if (StringUtils.isNotBlank(filterRule.getExclude())) {
+        rules.add(new Rule(false, filterRule.getExclude().trim()));
+      }
+    }
+    return rules.isEmpty() ? ALL : new S3Filter(rules);
+  }
+
+  /**
+   * @param key a path relative to the source directory or prefix, separated with '/'
+   */
+  public boolean matches(String key) {
+    for (int i = rules.size() - 1; i >= 0; i--) {
+      Rule rule = rules.get(i);
+      if (rule.pattern.matcher(key).matches()) {
+        return rule.include;
+      }
+    }
+    return includeUnmatched;
+  }
+
+  /**
+   * Returns the literal prefixes every included key starts with, so only they need to be listed. Leading groups such as
+   * {@code {cruise1,cruise2}/**} are expanded into one prefix per alternative. No prefix starts with another, so listing each of them
+   * returns every key once, and listing them in the returned order returns keys in the same order as one listing of the whole prefix.
+   *
+   * @return relative prefixes, a single empty prefix when everything must be listed
+   */
+  public List<String> listPrefixes() {
+    if (includeUnmatched) {
+      return Collections.singletonList("");
+    }
+    List<String> prefixes = new ArrayList<>();
+    for (Rule rule : rules) {
+      if (rule.include) {
+        expand(rule.glob, prefixes);
+      }
+    }
+    prefixes.sort(S3Utils::compareKeys);
+    List<String> distinct = new ArrayList<>();
+    for (String prefix : prefixes) {
+      if (distinct.isEmpty() || !prefix.startsWith(distinct.get(distinct.size() - 1))) {
+        distinct.add(prefix);
+      }
+    }
+    return distinct;
+  }
+
+  // adds the literal text before the first wildcard, once for every alternative of the groups found on the way
+  private static void expand(String glob, List<String> prefixes) {
+    StringBuilder literal = new StringBuilder();
+    int i = 0;
+    while (i < glob.length()) {
+      char c = glob.charAt(i++);
+      if (c == '\\' && i < glob.length()) {
+        literal.append(glob.charAt(i++));
+      } else if (c == '*' || c == '?' || c == '[') {
+        break;
+      } else if (c == '{') {
+        int end = closingBrace(glob, i);
+        List<String> alternatives = alternatives(glob.substring(i, end));
+        if (prefixes.size() + alternatives.size() > MAX_PREFIXES) {
+          break;
+        }
+        for (String alternative : alternatives) {
+          expand(glob.substring(0, i - 1) + alternative + glob.substring(end + 1), prefixes);
+        }
+        return;
+      } else {
+        literal.append(c);
+      }
+    }
+    prefixes.add(literal.toString());
+  }
+
+  private static int closingBrace(String glob, int start) {
+    for (int i = start; i < glob.length(); i++) {
+      if (glob.charAt(i) == '\\') {
+        i++;
+      } else if (glob.charAt(i) == '}') {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Missing '}' in pattern: " + glob);
+  }
+
+  private static List<String> alternatives(String group) {
+    List<String> alternatives = new ArrayList<>();
+    int start = 0;
+    for (int i = 0; i < group.length(); i++) {
+      if (group.charAt(i) == '\\') {
+        i++;
+      } else if (group.charAt(i) == ',') {
+        alternatives.add(group.substring(start, i));
+        start = i + 1;
+      }
+    }
+    alternatives.add(group.substring(start));
+    return alternatives;
+  }
+
+  /**
+   * Decides whether a directory can hold an included key, so a walk can skip the directories that cannot.
+   *
+   * @param dir a directory relative to the source, separated with '/' and without a trailing '/'
+   * @return false only if every key under the directory is excluded
+   */
+  public boolean mayMatchUnder(String dir) {
+    String[] names = dir.split("/");
+    for (int i = rules.size() - 1; i >= 0; i--) {
+      Rule rule = rules.get(i);
+      if (rule.covers(names)) {
+        return rule.include;
+      }
+      if (rule.mayMatchUnder(names)) {
+        return true;
+      }
+    }
+    return includeUnmatched;
+  }
+
+  // splits a glob at each '/', or returns null if a group holds a '/' and the levels cannot be told apart
+  private static List<String> levels(String glob) {
+    List<String> levels = new ArrayList<>();
+    boolean inGroup = false;
+    int start = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '{') {
+        inGroup = true;
+      } else if (c == '}') {
+        inGroup = false;
+      } else if (c == '/') {
+        if (inGroup) {
+          return null;
+        }
+        levels.add(glob.substring(start, i));
+        start = i + 1;
+      }
+    }
+    levels.add(glob.substring(start));
+    return levels;
+  }
+
+  /**
+   * Translates a glob to a regular expression with the rules of {@link java.nio.file.FileSystem#getPathMatcher(String)}: '*' and '?' stay
+   * within a directory level, '**' crosses levels, '[...]' is a character class ('!' negates) and '{a,b}' a group of alternatives.
+   */
+  static String toRegex(String glob) {
+    StringBuilder regex = new StringBuilder("^");
+    boolean inGroup = false;
+    int i = 0;
+    while (i < glob.length()) {
+      char c = glob.charAt(i++);
+      switch (c) {
+        case '\\':
+          if (i == glob.length()) {
+            throw new IllegalArgumentException("No character to escape in pattern: " + glob);
+          }
+          regex.append(Pattern.quote(String.valueOf(glob.charAt(i++))));
+          break;
+        case '*':
+          if (i < glob.length() && glob.charAt(i) == '*') {
+            regex.append(".*");
+            i++;
+          } else {
+            regex.append("[^/]*");
+          }
+          break;
+        case '?':
+          regex.append("[^/]");
+          break;
+        case '[':
+          i = bracket(glob, i, regex);
+          break;
+        case '{':
+          if (inGroup) {
+            throw new IllegalArgumentException("Cannot nest groups in pattern: " + glob);
+          }
+          regex.append("(?:(?:");
+          inGroup = true;
+          break;
+        case '}':
+          if (inGroup) {
+            regex.append("))");
+            inGroup = false;
+          } else {
+            regex.append('}');
+          }
+          break;
+        case ',':
+          regex.append(inGroup ? ")|(?:" : ",");
+          break;
+        default:
+          if ("^$.|+()".indexOf(c) >= 0) {
+            regex.append('\\');
+          }
+          regex.append(c);
+      }
+    }
+    if (inGroup) {
+      throw new IllegalArgumentException("Missing '}' in pattern: " + glob);
+    }
+    return regex.append('$').toString();
+  }
+
+  // a character class never matches '/'
+  private static int bracket(String glob, int start, StringBuilder regex) {
+    int i = start;
+    regex.append("[[^/]&&[");
+    if (i < glob.length() && glob.charAt(i) == '^') {
+      regex.append("\\^");
+      i++;
+    } else if (i < glob.length() && glob.charAt(i) == '!') {
+      regex.append('^');
+      i++;
+    }
+    boolean first = true;
+    while (i < glob.length()) {
+      char c = glob.charAt(i++);
+      if (c == ']' && !first) {
+        regex.append("]]");
+        return i;
+      }
+      if (c == '/') {
+        throw new IllegalArgumentException("Explicit '/' in character class in pattern: " + glob);
+      }
+      if (c == '\\' || c == '[' || c == '&' && i < glob.length() && glob.charAt(i) == '&') {
+        regex.append('\\');
+      }
+      regex.append(c);
+      first = false;
+    }
+    throw new IllegalArgumentException("Missing ']' in pattern: " + glob);
+  }
+
+  private static final class Rule {
+
+    private final boolean include;
+    private final String glob;
+    private final Pattern pattern;
+    private final List<String> levelGlobs;
+    private final List<Pattern> levels;
+
+    private Rule(boolean include, String glob) {
+      this.include = include;
+      this.glob = glob;
+      pattern = Pattern.compile(toRegex(glob));
+      levelGlobs = levels(glob);
+      if (levelGlobs == null) {
+        levels = null;
+      } else {
+        levels = new ArrayList<>(levelGlobs.size());
+        for (String level : levelGlobs) {
+          levels.add(Pattern.compile(toRegex(level)));
+        }
+      }
+    }
+
+    // true unless no key under the directory can match, a '**' matches any depth so everything after it is unknown
+    private boolean mayMatchUnder(String[] dir) {
+      if (levels == null) {
+        return true;
+      }
+      for (int i = 0; i < dir.length; i++) {
+        if (i == levels.size()) {
+          return false;
+        }
+        if (levelGlobs.get(i).contains("**")) {
+          return true;
+        }
+        if (!levels.get(i).matcher(dir[i]).matches()) {
+          return false;
+        }
+      }
+      return levels.size() > dir.length;
+    }
+
+    // true if every key under the directory matches, as with 'dir/**'
+    private boolean covers(String[] dir) {
+      if (levels == null) {
+        return false;
+      }
+      for (int i = 0; i < levels.size(); i++) {
+        String level = levelGlobs.get(i);
+        if (i == levels.size() - 1) {
+          return level.equals("**");
+        }
+        if (i == dir.length || level.contains("**") || !levels.get(i).matcher(dir[i]).matches()) {
+          return false;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import picocli.CommandLine.Option;
+
+/**
+ * One --include or --exclude pattern. Used as a repeating argument group so the patterns keep the order they were given in.
+ */
+public class S3FilterRule {
+
+  @Option(names = {"-i", "--include"}, required = true, description = "Include files or objects that match the specified pattern. May be repeated and combined with --exclude, the last matching pattern decides. When the first pattern is an include, files or objects that match no pattern are excluded. See https://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob")
+  private String include;
+
+  @Option(names = {"-e", "--exclude"}, required = true, description = "Exclude files or objects that match the specified pattern. May be repeated and combined with --include, the last matching pattern decides. IMPORTANT: Pay attention to the difference between '**' and '*'. Using '*' only matches within one directory level, '**' matches across them. See https://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob")
+  private String exclude;
+
+  public S3FilterRule() {
+
+  }
+
+  public S3FilterRule(String include, String exclude) {
+    this.include = include;
+    this.exclude = exclude;
+  }
+
+  public String getInclude() {
+    return include;
+  }
+
+  public String getExclude() {
+    return exclude;
+  }
+}
@@ -0,0 +1,338 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.util.BinaryUtils;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the MD5 of local files between runs, keyed by their path relative to the synced directory, so a file is only hashed again
+ * when its size, modification time or inode changed.
+ * <p>
+ * The index is a single file of records sorted by key followed by a table of record offsets. It is memory mapped and searched in place,
+ * so opening it costs the same for a few entries or millions. New and changed entries are held in memory and merged with the existing
+ * records into a replacement file whenever enough of them have piled up and on {@link #close()}, so a crash loses little work. A file that
+ * is not a complete index is ignored and rebuilt.
+ */
+public final class S3FingerprintIndex implements AutoCloseable {
+
+  private static final int MAGIC = 0x53334650;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int TRAILER_SIZE = 12;
+  private static final int MD5_SIZE = 16;
+  // the size, modification time, inode and MD5 after a record's key
+  private static final int FIELDS_SIZE = 3 * 8 + MD5_SIZE;
+  private static final int FLUSH_UPDATES = 10000;
+
+  private final Path file;
+  private final TreeMap<String, Fingerprint> updates = new TreeMap<>(S3Utils::compareKeys);
+  // the rest is guarded by updates
+  private Records records;
+  private boolean rebuild;
+  private boolean prune = false;
+
+  public S3FingerprintIndex(Path file) {
+    this.file = file;
+    records = Files.isRegularFile(file) ? open(file) : null;
+    rebuild = records == null && Files.exists(file);
+  }
+
+  // null if the file is not a complete index
+  private static Records open(Path file) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new RuntimeException("Fingerprint index is too large: " + file.toAbsolutePath().toString());
+      }
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      int limit = mapped.limit();
+      if (limit < HEADER_SIZE + TRAILER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+        return null;
+      }
+      int count = mapped.getInt(limit - TRAILER_SIZE);
+      long tableOffset = mapped.getLong(limit - TRAILER_SIZE + 4);
+      // the offset table must end exactly at the trailer, which a truncated or partly written file does not
+      if (count < 0 || tableOffset < HEADER_SIZE || tableOffset + count * 4L + TRAILER_SIZE != limit) {
+        return null;
+      }
+      return new Records(mapped, count, (int) tableOffset);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read fingerprint index: " + file.toAbsolutePath().toString(), e);
+    }
+  }
+
+  /**
+   * Returns the MD5 of a file as hex, reading the file only if it is not in the index with the same size, modification time and inode.
+   */
+  public String md5Hex(S3LocalFile local) {
+    long inode = inode(local.getPath());
+    Fingerprint fingerprint = get(local.getKey());
+    if (fingerprint != null && fingerprint.size == local.getSize() && fingerprint.lastModified == local.getLastModified()
+        && fingerprint.inode == inode) {
+      return BinaryUtils.toHex(fingerprint.md5);
+    }
+    String md5 = S3Utils.md5Hex(local.getPath());
+    synchronized (updates) {
+      updates.put(local.getKey(), new Fingerprint(local.getSize(), local.getLastModified(), inode, BinaryUtils.fromHex(md5)));
+      if (updates.size() >= Math.max(FLUSH_UPDATES, records == null ? 0 : records.count / 4)) {
+        write(false);
+      }
+    }
+    return md5;
+  }
+
+  /**
+   * Marks a file as still present, see {@link #pruneUnseen()}.
+   */
+  public void seen(String key) {
+    get(key);
+  }
+
+  /**
+   * Drops the entries of files that were neither hashed nor marked {@link #seen(String)} when the index is next written. Call once a walk
+   * of every file has completed.
+   */
+  public void pruneUnseen() {
+    synchronized (updates) {
+      prune = true;
+    }
+  }
+
+  private static long inode(Path path) {
+    try {
+      Object inode = Files.getAttribute(path, "unix:ino");
+      return inode instanceof Number ? ((Number) inode).longValue() : 0L;
+    } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+      return 0L;
+    }
+  }
+
+  private Fingerprint get(String key) {
+    synchronized (updates) {
+      Fingerprint updated = updates.get(key);
+      if (updated != null || records == null) {
+        return updated;
+      }
+      byte[] search = key.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer buffer = records.buffer.duplicate();
+      int low = 0;
+      int high = records.count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int offset = records.offset(buffer, mid);
+        int cmp = compare(buffer, offset, search);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          records.seen.set(mid);
+          return read(buffer, offset).getValue();
+        }
+      }
+      return null;
+    }
+  }
+
+  // unsigned byte order of UTF-8 is the code point order used by S3Utils.compareKeys
+  private static int compare(ByteBuffer buffer, int offset, byte[] key) {
+    int length = buffer.getInt(offset);
+    int start = offset + 4;
+    for (int i = 0; i < Math.min(length, key.length); i++) {
+      int cmp = Integer.compare(buffer.get(start + i) & 0xff, key[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(length, key.length);
+  }
+
+  private static Map.Entry<String, Fingerprint> read(ByteBuffer buffer, int offset) {
+    int length = buffer.getInt(offset);
+    byte[] key = new byte[length];
+    buffer.position(offset + 4);
+    buffer.get(key);
+    long size = buffer.getLong();
+    long lastModified = buffer.getLong();
+    long inode = buffer.getLong();
+    byte[] md5 = new byte[MD5_SIZE];
+    buffer.get(md5);
+    return new SimpleImmutableEntry<>(new String(key, StandardCharsets.UTF_8),
+        new Fingerprint(size, lastModified, inode, md5));
+  }
+
+  /**
+   * Writes the index if any entry was added, changed or pruned, or the file has to be rebuilt.
+   */
+  @Override
+  public void close() {
+    synchronized (updates) {
+      boolean pruned = prune && records != null && records.seen.cardinality() < records.count;
+      if (!updates.isEmpty() || rebuild || pruned) {
+        write(prune);
+      }
+    }
+  }
+
+  /*
+   * Merges the updates with the existing records into a new file that replaces the old one atomically, so an interrupted run leaves the
+   * previous index intact, then maps the new file in place of the old one.
+   */
+  private void write(boolean pruneUnseen) {
+    Path dir = file.toAbsolutePath().getParent();
+    if (dir == null) {
+      throw new RuntimeException("Invalid fingerprint index: " + file.toAbsolutePath().toString());
+    }
+    Path temp = null;
+    try {
+      Files.createDirectories(dir);
+      temp = Files.createTempFile(dir, String.valueOf(file.getFileName()), ".tmp");
+      BitSet seen = write(temp, pruneUnseen);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      records = open(file);
+      if (records == null) {
+        throw new IOException("The written index is invalid");
+      }
+      records.seen.or(seen);
+      updates.clear();
+      rebuild = false;
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write fingerprint index: " + file.toAbsolutePath().toString(), e);
+    } finally {
+      if (temp != null) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException e) {
+          // the index was written, only the temporary file is left behind
+        }
+      }
+    }
+  }
+
+  // returns which of the written records were seen in this run
+  private BitSet write(Path temp, boolean pruneUnseen) throws IOException {
+    int[] offsets = new int[16];
+    BitSet seen = new BitSet();
+    int written = 0;
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024))) {
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
+      ByteBuffer buffer = records == null ? null : records.buffer.duplicate();
+      int index = 0;
+      Map.Entry<String, Fingerprint> existing = next(buffer, index);
+      Iterator<Map.Entry<String, Fingerprint>> changed = updates.entrySet().iterator();
+      Map.Entry<String, Fingerprint> update = changed.hasNext() ? changed.next() : null;
+      while (existing != null || update != null) {
+        Map.Entry<String, Fingerprint> entry;
+        boolean entrySeen = true;
+        int cmp = existing == null ? 1 : update == null ? -1 : S3Utils.compareKeys(existing.getKey(), update.getKey());
+        if (cmp < 0) {
+          entry = existing;
+          entrySeen = records.seen.get(index);
+          existing = next(buffer, ++index);
+          if (pruneUnseen && !entrySeen) {
+            continue;
+          }
+        } else {
+          entry = update;
+          update = changed.hasNext() ? changed.next() : null;
+          if (cmp == 0) {
+            existing = next(buffer, ++index);
+          }
+        }
+        if (written == offsets.length) {
+          offsets = Arrays.copyOf(offsets, written * 2);
+        }
+        seen.set(written, entrySeen);
+        offsets[written++] = data.size();
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        Fingerprint fingerprint = entry.getValue();
+        data.writeInt(key.length);
+        data.write(key);
+        data.writeLong(fingerprint.size);
+        data.writeLong(fingerprint.lastModified);
+        data.writeLong(fingerprint.inode);
+        data.write(fingerprint.md5);
+      }
+      int table = data.size();
+      if (table < 0 || (long) table + written * 4L + TRAILER_SIZE > Integer.MAX_VALUE) {
+        throw new IOException("Fingerprint index is too large");
+      }
+      for (int i = 0; i < written; i++) {
+        data.writeInt(offsets[i]);
+      }
+      data.writeInt(written);
+      data.writeLong(table);
+      data.flush();
+      // the data must be on disk before the rename makes it the index
+      channel.force(true);
+    }
+    return seen;
+  }
+
+  private Map.Entry<String, Fingerprint> next(ByteBuffer buffer, int index) {
+    if (buffer == null || index >= records.count) {
+      return null;
+    }
+    return read(buffer, records.offset(buffer, index));
+  }
+
+  /**
+   * The records of the mapped file and which of them were seen in this run.
+   */
+  private static final class Records {
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int tableOffset;
+    private final BitSet seen;
+
+    private Records(ByteBuffer buffer, int count, int tableOffset) {
+      this.buffer = buffer;
+      this.count = count;
+      this.tableOffset = tableOffset;
+      seen = new BitSet(count);
+    }
+
+    // the offset of a record, checked to lie within the records
+    private int offset(ByteBuffer buffer, int index) {
+      int offset = buffer.getInt(tableOffset + index * 4);
+      if (offset < HEADER_SIZE || offset > tableOffset - 4 || buffer.getInt(offset) < 0
+          || (long) offset + 4 + buffer.getInt(offset) + FIELDS_SIZE > tableOffset) {
+        throw new RuntimeException("Invalid fingerprint index record: " + index);
+      }
+      return offset;
+    }
+  }
+
+  private static class Fingerprint {
+
+    private final long size;
+    private final long lastModified;
+    private final long inode;
+    private final byte[] md5;
+
+    private Fingerprint(long size, long lastModified, long inode, byte[] md5) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.inode = inode;
+      this.md5 = md5;
+    }
+  }
+}
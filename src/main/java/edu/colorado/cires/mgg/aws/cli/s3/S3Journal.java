@@ -0,0 +1,345 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the progress of a command so that a re-run after a crash can skip finished objects and continue multipart uploads.
+ * <p>
+ * The journal is an append-only text file with one tab separated record per line: {@code D} for a finished object, {@code U} for a
+ * started multipart upload and {@code P} for each uploaded part. Every record is flushed as it is written, so a killed process loses at
+ * most the record being written. Records made obsolete by a finished upload are dropped by rewriting the file once they outnumber the
+ * live ones, and the file is also rewritten when opened, which discards a partly written last line.
+ * <p>
+ * Started uploads are synced to disk as they are written, so they survive a power loss as well as a killed process. Other records are
+ * synced in groups, once {@link #SYNC_RECORDS} have been written or a second has passed since the last sync, so a power loss forgets at
+ * most that much finished work, which is simply done again. {@link #doneAll(Collection)} records a batch with a single sync.
+ */
+public final class S3Journal implements AutoCloseable {
+
+  private static final String DONE = "D";
+  private static final String UPLOAD = "U";
+  private static final String PART = "P";
+  private static final int MIN_COMPACT_RECORDS = 1000;
+  static final int SYNC_RECORDS = 1000;
+  private static final long SYNC_NANOS = TimeUnit.SECONDS.toNanos(1L);
+
+  private final Path file;
+  private final Set<String> done = new HashSet<>();
+  private final Map<String, Upload> uploads = new HashMap<>();
+  private FileChannel channel;
+  private Writer writer;
+  private int live = 0;
+  private int obsolete = 0;
+  private int unsynced = 0;
+  private long lastSync = System.nanoTime();
+
+  public S3Journal(Path file) {
+    this.file = file;
+    if (Files.isRegularFile(file)) {
+      try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+        boolean complete = endsWithNewline(file);
+        String previous = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (previous != null) {
+            load(previous.split("\t", -1));
+          }
+          previous = line;
+        }
+        // a last line without a newline was cut short by a crash, the work it recorded is simply done again
+        if (previous != null && complete) {
+          load(previous.split("\t", -1));
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read journal: " + file.toAbsolutePath().toString(), e);
+      }
+    }
+    compact();
+  }
+
+  private void load(String[] fields) {
+    try {
+      if (DONE.equals(fields[0]) && fields.length == 2) {
+        String object = unescape(fields[1]);
+        uploads.remove(object);
+        done.add(object);
+      } else if (UPLOAD.equals(fields[0]) && fields.length == 6) {
+        uploads.put(unescape(fields[1]),
+            new Upload(fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4]), Long.parseLong(fields[5])));
+      } else if (PART.equals(fields[0]) && fields.length == 4) {
+        Upload upload = uploads.get(unescape(fields[1]));
+        if (upload != null) {
+          upload.parts.put(Integer.parseInt(fields[2]), fields[3]);
+        }
+      }
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Invalid journal: " + file.toAbsolutePath().toString(), e);
+    }
+  }
+
+  private static boolean endsWithNewline(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() == 0) {
+        return true;
+      }
+      ByteBuffer last = ByteBuffer.allocate(1);
+      channel.read(last, channel.size() - 1);
+      return last.get(0) == '\n';
+    }
+  }
+
+  public synchronized boolean isDone(String object) {
+    return done.contains(object);
+  }
+
+  public synchronized void done(String object) {
+    if (markDone(object)) {
+      sync(false);
+    }
+  }
+
+  /**
+   * Records a batch of finished objects, such as the keys of one DeleteObjects request, with a single sync.
+   */
+  public synchronized void doneAll(Collection<String> objects) {
+    boolean written = false;
+    for (String object : objects) {
+      written |= markDone(object);
+    }
+    if (written) {
+      sync(true);
+    }
+  }
+
+  private boolean markDone(String object) {
+    Upload upload = uploads.remove(object);
+    if (upload != null) {
+      live -= 1 + upload.parts.size();
+      obsolete += 1 + upload.parts.size();
+    }
+    if (done.add(object)) {
+      append(DONE, escape(object));
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return the multipart upload in progress for an object, or null
+   */
+  public synchronized Upload getUpload(String object) {
+    Upload upload = uploads.get(object);
+    return upload == null ? null : upload.copy();
+  }
+
+  public synchronized void startUpload(String object, String uploadId, long size, long lastModified, long partSize) {
+    Upload previous = uploads.put(object, new Upload(uploadId, size, lastModified, partSize));
+    if (previous != null) {
+      live -= 1 + previous.parts.size();
+      obsolete += 1 + previous.parts.size();
+    }
+    append(UPLOAD, escape(object), uploadId, Long.toString(size), Long.toString(lastModified), Long.toString(partSize));
+    sync(true);
+  }
+
+  public synchronized void partDone(String object, String uploadId, int partNumber, String eTag) {
+    Upload upload = uploads.get(object);
+    if (upload != null && upload.uploadId.equals(uploadId) && upload.parts.put(partNumber, eTag) == null) {
+      append(PART, escape(object), Integer.toString(partNumber), eTag);
+      sync(false);
+    }
+  }
+
+  private void append(String... fields) {
+    try {
+      write(writer, fields);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write journal: " + file.toAbsolutePath().toString(), e);
+    }
+    live++;
+    unsynced++;
+  }
+
+  // flushes the records appended so far and syncs them when asked to or once a group is due
+  private void sync(boolean force) {
+    long now = System.nanoTime();
+    try {
+      writer.flush();
+      if (force || unsynced >= SYNC_RECORDS || now - lastSync >= SYNC_NANOS) {
+        channel.force(false);
+        unsynced = 0;
+        lastSync = now;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write journal: " + file.toAbsolutePath().toString(), e);
+    }
+    if (obsolete >= MIN_COMPACT_RECORDS && obsolete > live) {
+      compact();
+    }
+  }
+
+  private static void write(Writer out, String... fields) throws IOException {
+    out.write(String.join("\t", fields));
+    out.write('\n');
+  }
+
+  // rewrites the live records to a new file that atomically replaces the journal
+  private void compact() {
+    Path dir = file.toAbsolutePath().getParent();
+    if (dir == null) {
+      throw new RuntimeException("Invalid journal: " + file.toAbsolutePath().toString());
+    }
+    try {
+      close();
+      Files.createDirectories(dir);
+      Path temp = Files.createTempFile(dir, String.valueOf(file.getFileName()), ".tmp");
+      try (FileChannel tempChannel = FileChannel.open(temp, StandardOpenOption.WRITE);
+          BufferedWriter out = new BufferedWriter(Channels.newWriter(tempChannel, StandardCharsets.UTF_8.newEncoder(), -1))) {
+        for (String object : done) {
+          write(out, DONE, escape(object));
+        }
+        for (Map.Entry<String, Upload> entry : uploads.entrySet()) {
+          Upload upload = entry.getValue();
+          String object = escape(entry.getKey());
+          write(out, UPLOAD, object, upload.uploadId, Long.toString(upload.size), Long.toString(upload.lastModified),
+              Long.toString(upload.partSize));
+          for (Map.Entry<Integer, String> part : upload.parts.entrySet()) {
+            write(out, PART, object, Integer.toString(part.getKey()), part.getValue());
+          }
+        }
+        out.flush();
+        // the records must be on disk before the rename makes them the journal
+        tempChannel.force(true);
+      }
+      live = done.size();
+      for (Upload upload : uploads.values()) {
+        live += 1 + upload.parts.size();
+      }
+      obsolete = 0;
+      unsynced = 0;
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), -1));
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write journal: " + file.toAbsolutePath().toString(), e);
+    }
+  }
+
+  private static String escape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String unescape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        char next = value.charAt(++i);
+        sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (writer != null) {
+      // closing the writer closes the channel
+      try (Writer closing = writer) {
+        closing.flush();
+        channel.force(false);
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to write journal: " + file.toAbsolutePath().toString(), e);
+      } finally {
+        writer = null;
+        channel = null;
+      }
+    }
+  }
+
+  /**
+   * A multipart upload in progress: its id, the size, modification time and part size of the file when it was started and the ETags of
+   * the parts uploaded so far.
+   */
+  public static final class Upload {
+
+    private final String uploadId;
+    private final long size;
+    private final long lastModified;
+    private final long partSize;
+    private final Map<Integer, String> parts = new TreeMap<>();
+
+    private Upload(String uploadId, long size, long lastModified, long partSize) {
+      this.uploadId = uploadId;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.partSize = partSize;
+    }
+
+    private Upload copy() {
+      Upload copy = new Upload(uploadId, size, lastModified, partSize);
+      copy.parts.putAll(parts);
+      return copy;
+    }
+
+    public String getUploadId() {
+      return uploadId;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public long getPartSize() {
+      return partSize;
+    }
+
+    public Map<Integer, String> getParts() {
+      return Collections.unmodifiableMap(parts);
+    }
+  }
+}
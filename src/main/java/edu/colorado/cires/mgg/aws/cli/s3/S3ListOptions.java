@@ -0,0 +1,22 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import picocli.CommandLine.Option;
+
+public class S3ListOptions {
+
+  @Option(names = {"--page-size"}, description = "The number of keys requested per LIST call, at most 1000. Smaller pages return sooner, larger pages need fewer requests. Default: ${DEFAULT-VALUE}")
+  private int pageSize = S3TransferConfig.DEFAULT_PAGE_SIZE;
+
+  @Option(names = {"--list-parallelism"}, description = "The number of LIST cursors used at once. Above 1, the common prefixes under the source are discovered with a '/' delimiter and listed concurrently. Default: ${DEFAULT-VALUE}")
+  private int listParallelism = 1;
+
+  @Option(names = {"--ordered"}, description = "With --list-parallelism, process keys in the same lexicographic order as a single LIST cursor.")
+  private boolean ordered = false;
+
+  public S3TransferConfig apply(S3TransferConfig config) {
+    return config
+        .withPageSize(pageSize)
+        .withListParallelism(listParallelism)
+        .withOrderedListing(ordered);
+  }
+}
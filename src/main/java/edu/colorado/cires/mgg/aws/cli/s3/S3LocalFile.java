@@ -0,0 +1,40 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.nio.file.Path;
+
+public class S3LocalFile {
+
+  private final String key;
+  private final Path path;
+  private final long size;
+  private final long lastModified;
+
+  public S3LocalFile(String key, Path path, long size, long lastModified) {
+    this.key = key;
+    this.path = path;
+    this.size = size;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * @return the path relative to the walked directory, always separated with '/'
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the last modified time in milliseconds since the epoch
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+}
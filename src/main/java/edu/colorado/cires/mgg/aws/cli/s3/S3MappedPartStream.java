@@ -0,0 +1,123 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A part of a file read through a memory mapping. Reads copy straight from the page cache into the caller's array, without the read
+ * calls, intermediate buffers and per-part streams of reading the file through {@code FileInputStream}. Mark and reset only move the
+ * position, so a retried request sends the part again without touching the file.
+ *
+ * <p>A mapping is only unmapped once its buffer is garbage collected, so each open stream holds a permit of the semaphore it was
+ * opened with until it is closed, which limits the mappings in use to the permits, one per transfer thread. Closing drops the buffer,
+ * so a closed part no longer keeps its mapping. A part that cannot be mapped, for instance because the process has run out of
+ * mappings or address space, is not opened at all and the caller reads it from the file instead.
+ */
+final class S3MappedPartStream extends InputStream {
+
+  // a mapping is indexed by int
+  static final long MAX_LENGTH = Integer.MAX_VALUE;
+
+  private final Semaphore permits;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private MappedByteBuffer buffer;
+  private int mark = 0;
+
+  private S3MappedPartStream(MappedByteBuffer buffer, Semaphore permits) {
+    this.buffer = buffer;
+    this.permits = permits;
+  }
+
+  /**
+   * Waits for a permit and maps the part.
+   *
+   * @param length at most {@link #MAX_LENGTH}
+   * @param permits held by the stream until it is closed
+   * @return the part, or null if it could not be mapped
+   */
+  static S3MappedPartStream open(Path file, long offset, long length, Semaphore permits) {
+    if (length > MAX_LENGTH) {
+      throw new IllegalArgumentException("Part too large to map: " + length);
+    }
+    permits.acquireUninterruptibly();
+    // the mapping stays valid after the channel is closed
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new S3MappedPartStream(channel.map(MapMode.READ_ONLY, offset, length), permits);
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      return null;
+    }
+  }
+
+  private MappedByteBuffer buffer() throws IOException {
+    if (buffer == null) {
+      throw new IOException("Stream closed");
+    }
+    return buffer;
+  }
+
+  @Override
+  public int read() throws IOException {
+    MappedByteBuffer buffer = buffer();
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] bytes, int off, int len) throws IOException {
+    MappedByteBuffer buffer = buffer();
+    if (len == 0) {
+      return 0;
+    }
+    if (!buffer.hasRemaining()) {
+      return -1;
+    }
+    int count = Math.min(len, buffer.remaining());
+    buffer.get(bytes, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    MappedByteBuffer buffer = buffer();
+    int count = (int) Math.max(0L, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + count);
+    return count;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return buffer().remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public void mark(int readLimit) {
+    if (buffer != null) {
+      mark = buffer.position();
+    }
+  }
+
+  @Override
+  public void reset() throws IOException {
+    buffer().position(mark);
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      buffer = null;
+      permits.release();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+public class S3ObjectInfo {
+
+  private final String key;
+  private final long size;
+  private final long lastModified;
+  private final String eTag;
+
+  public S3ObjectInfo(String key, long size, long lastModified, String eTag) {
+    this.key = key;
+    this.size = size;
+    this.lastModified = lastModified;
+    this.eTag = eTag;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the last modified time in milliseconds since the epoch
+   */
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public String getETag() {
+    return eTag;
+  }
+}
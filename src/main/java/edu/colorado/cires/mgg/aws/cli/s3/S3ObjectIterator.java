@@ -0,0 +1,13 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.Iterator;
+
+/**
+ * A listing of objects that may hold background threads until closed.
+ */
+interface S3ObjectIterator extends Iterator<S3ObjectSummary>, AutoCloseable {
+
+  @Override
+  void close();
+}
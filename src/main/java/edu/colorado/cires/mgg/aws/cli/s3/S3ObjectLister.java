@@ -0,0 +1,114 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Iterates the objects under a prefix with ListObjectsV2. A background thread follows the continuation tokens and keeps up to
+ * {@code prefetchPages} pages queued, so the consumer only waits on a LIST round trip when it has caught up with the listing.
+ */
+class S3ObjectLister implements S3ObjectIterator {
+
+  private static final Page END = new Page(Collections.emptyList(), null);
+
+  private final BlockingQueue<Page> pages;
+  private final Thread producer;
+  private Iterator<S3ObjectSummary> current = Collections.emptyIterator();
+  private boolean done = false;
+  private volatile boolean closed = false;
+
+  S3ObjectLister(AmazonS3 s3, String bucket, String prefix, int pageSize, int prefetchPages) {
+    this(s3, bucket, prefix, pageSize, prefetchPages, new S3Stats());
+  }
+
+  S3ObjectLister(AmazonS3 s3, String bucket, String prefix, int pageSize, int prefetchPages, S3Stats stats) {
+    pages = new ArrayBlockingQueue<>(prefetchPages);
+    ListObjectsV2Request request = new ListObjectsV2Request()
+        .withBucketName(bucket)
+        .withPrefix(prefix)
+        .withMaxKeys(pageSize);
+    request.setGeneralProgressListener(stats.listener());
+    producer = new Thread(() -> list(s3, request, stats), "s3-list-" + bucket);
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  private void list(AmazonS3 s3, ListObjectsV2Request request, S3Stats stats) {
+    try {
+      ListObjectsV2Result result;
+      do {
+        result = stats.time(S3Stats.Operation.LIST, () -> s3.listObjectsV2(request));
+        pages.put(new Page(result.getObjectSummaries(), null));
+        request.setContinuationToken(result.getNextContinuationToken());
+      } while (result.isTruncated() && !closed);
+      pages.put(END);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException | Error e) {
+      try {
+        pages.put(new Page(Collections.emptyList(), e));
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!current.hasNext() && !done) {
+      Page page;
+      try {
+        page = pages.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      if (page.error instanceof Error) {
+        done = true;
+        throw (Error) page.error;
+      }
+      if (page.error != null) {
+        done = true;
+        throw (RuntimeException) page.error;
+      }
+      if (page == END) {
+        done = true;
+      }
+      current = page.objects.iterator();
+    }
+    return current.hasNext();
+  }
+
+  @Override
+  public S3ObjectSummary next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    producer.interrupt();
+  }
+
+  private static class Page {
+
+    private final List<S3ObjectSummary> objects;
+    private final Throwable error;
+
+    private Page(List<S3ObjectSummary> objects, Throwable error) {
+      this.objects = objects;
+      this.error = error;
+    }
+  }
+}
@@ -1,17 +1,90 @@
 package edu.colorado.cires.mgg.aws.cli.s3;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.function.Consumer;
 
 public interface S3Operations {
 
+  /**
+   * The most keys S3 accepts in a single multi-object delete request.
+   */
+  int MAX_DELETE_KEYS = 1000;
+
   void upload(Path source, String targetBucket, String targetKey);
 
+  /**
+   * Uploads a file found by a walk, using the size and modification time the walk read instead of reading them again.
+   */
+  void upload(S3LocalFile source, String targetBucket, String targetKey);
+
   void download(String sourceBucket, String sourceKey, Path target);
 
+  /**
+   * Uploads a stream of unknown length, such as standard input, reading it to the end. The stream is not closed.
+   */
+  void uploadStream(InputStream source, String targetBucket, String targetKey);
+
+  /**
+   * Writes an object to a stream, such as standard output, in order. The stream is flushed but not closed.
+   */
+  void downloadStream(String sourceBucket, String sourceKey, OutputStream target);
+
   void copy(String sourceBucket, String sourceKey, String targetBucket, String targetKey);
 
+  /**
+   * Uploads files as one tar archive, written as it is uploaded. Each member's archive and offset are set once the upload is done.
+   *
+   * @param archive the name the members record for the archive, see {@link S3Pack}
+   */
+  void uploadArchive(List<S3Pack.Member> members, String archive, String targetBucket, String targetKey);
+
+  /**
+   * Downloads a byte range of an object to a file, such as one member of an archive.
+   */
+  void downloadRange(String sourceBucket, String sourceKey, long offset, long length, Path target);
+
+  /**
+   * Uploads a small object held in memory, such as an index.
+   */
+  void uploadBytes(byte[] content, String targetBucket, String targetKey);
+
+  /**
+   * @return the content of a small object, such as an index
+   */
+  byte[] downloadBytes(String sourceBucket, String sourceKey);
+
   void forEachKey(String bucket, String prefix, Consumer<String> transfer);
 
+  /**
+   * Like {@link #forEachKey(String, String, Consumer)} but with the size, last modified time and ETag from the listing. Objects are always
+   * passed in key order.
+   */
+  void forEachObject(String bucket, String prefix, Consumer<S3ObjectInfo> consumer);
+
   void deleteObject(String bucket, String key);
+
+  /**
+   * Deletes keys with multi-object delete requests of up to {@link #MAX_DELETE_KEYS} keys each.
+   *
+   * @return the keys S3 reported as not deleted, empty if all were deleted
+   */
+  List<S3Failure> deleteObjects(String bucket, List<String> keys);
+
+  /**
+   * Deletes a local file, reported like a deleted object.
+   */
+  void deleteLocal(Path path);
+
+  /**
+   * Reports an object left alone, such as one an earlier run already transferred.
+   */
+  void skip(String object, String reason);
+
+  /**
+   * Reports an object that could not be transferred or deleted, once the command has finished with every other object.
+   */
+  void failed(String object, String error);
 }
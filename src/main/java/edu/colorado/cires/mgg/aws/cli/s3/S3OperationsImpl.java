@@ -1,39 +1,715 @@
 package edu.colorado.cires.mgg.aws.cli.s3;
 
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.ProgressListenerChain;
+import com.amazonaws.internal.ResettableInputStream;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.internal.Mimetypes;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.DeleteObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ObjectTagging;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.amazonaws.services.s3.transfer.Copy;
+import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
 import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.Transfer;
-import com.amazonaws.services.s3.transfer.Transfer.TransferState;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.TransferProgress;
-import com.amazonaws.services.s3.transfer.Upload;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Iterator;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
-public class S3OperationsImpl implements S3Operations {
+public class S3OperationsImpl implements S3Operations, AutoCloseable {
+
+  private static final String NO_SUCH_UPLOAD = "NoSuchUpload";
+
+  // parts of a stream of unknown length double in size after this many
+  private static final int STREAM_PARTS_PER_SIZE = 1000;
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final int COMPRESSION_THREADS = Runtime.getRuntime().availableProcessors();
 
   private final AmazonS3 s3;
+  private final AmazonS3 sourceS3;
+  private final S3BufferPool bufferPool;
+  private final S3TransferConfig config;
+  private final S3Journal journal;
+  private final ExecutorService executor;
+  private final ExecutorService compressionExecutor;
+  private final TransferManager transferManager;
+  private final S3PartSizer partSizer;
+  // one mapped part per transfer thread, see S3MappedPartStream
+  private final Semaphore mappings;
+  private final S3ProgressMonitor progress = new S3ProgressMonitor();
+  private final S3Stats stats = new S3Stats(progress);
+  // requests moving data report both their bytes and their retries
+  private final ProgressListener transferListener = new ProgressListenerChain(progress.listener(), stats.listener());
+  private final S3Output output;
+  private final boolean ownsOutput;
 
   public S3OperationsImpl(AmazonS3 s3) {
+    this(s3, new S3TransferConfig());
+  }
+
+  public S3OperationsImpl(AmazonS3 s3, S3TransferConfig config) {
+    this(s3, config, null);
+  }
+
+  public S3OperationsImpl(AmazonS3 s3, S3TransferConfig config, S3Journal journal) {
+    this(s3, config, journal, null);
+  }
+
+  public S3OperationsImpl(AmazonS3 s3, S3TransferConfig config, S3Journal journal, S3Output output) {
+    this(s3, null, config, journal, output);
+  }
+
+  /**
+   * @param s3 the client objects are written and deleted with
+   * @param sourceS3 if not null, the client objects are listed and read with, such as one for another endpoint or credentials. Copies
+   *     between two clients are streamed through memory.
+   * @param journal if not null, multipart uploads are recorded in it and an upload it holds for the same unchanged file is continued
+   * @param output where messages and results are printed, left open by {@link #close()}. If null, text is printed to standard output.
+   */
+  public S3OperationsImpl(AmazonS3 s3, AmazonS3 sourceS3, S3TransferConfig config, S3Journal journal, S3Output output) {
     this.s3 = s3;
+    this.sourceS3 = sourceS3 == null ? s3 : sourceS3;
+    bufferPool = new S3BufferPool(config.getStreamBufferSize());
+    this.config = config;
+    this.journal = journal;
+    ownsOutput = output == null;
+    this.output = ownsOutput ? new S3Output(System.out, S3Output.Format.TEXT) : output;
+    if (config.isProgressBar()) {
+      this.output.showProgress(progress);
+    }
+    executor = createExecutor(config);
+    compressionExecutor = createCompressionExecutor();
+    partSizer = new S3PartSizer(config.getPartSize(), config.getThreads());
+    mappings = new Semaphore(config.getThreads());
+    this.transferManager = TransferManagerBuilder.standard()
+        .withS3Client(this.sourceS3)
+        .withExecutorFactory(() -> executor)
+        .withShutDownThreadPools(true)
+        .withMultipartUploadThreshold(config.getMultipartThreshold())
+        .build();
+  }
+
+  // one pool for the lifetime of the command, a full queue pushes work back onto the submitting thread
+  private static ExecutorService createExecutor(S3TransferConfig config) {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory = r -> {
+      Thread thread = new Thread(r, "s3-transfer-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        config.getThreads(),
+        config.getThreads(),
+        60L,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(config.getQueueDepth()),
+        threadFactory,
+        new CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  // compression is bound by CPU rather than the network, so it has a thread per core apart from the transfer threads
+  private static ExecutorService createCompressionExecutor() {
+    AtomicInteger count = new AtomicInteger();
+    ThreadFactory threadFactory = r -> {
+      Thread thread = new Thread(r, "s3-compress-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        COMPRESSION_THREADS,
+        COMPRESSION_THREADS,
+        60L,
+        TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(),
+        threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * @return the progress of every transfer made through this instance
+   */
+  public S3ProgressMonitor getProgress() {
+    return progress;
+  }
+
+  /**
+   * @return the request latencies and totals of everything done through this instance
+   */
+  public S3Stats getStats() {
+    return stats;
+  }
+
+  @Override
+  public void close() {
+    compressionExecutor.shutdownNow();
+    try {
+      transferManager.shutdownNow(false);
+    } finally {
+      if (ownsOutput) {
+        output.close();
+      }
+    }
   }
 
   @Override
   public void upload(Path source, String targetBucket, String targetKey) {
-    System.out.println("Uploading " + source + " to " + "s3://" + targetBucket + "/" + targetKey);
-    TransferManager transferManager = TransferManagerBuilder.standard().withS3Client(s3).build();
-    Upload upload = transferManager.upload(targetBucket, targetKey, source.toFile());
-    transfer(upload);
-    transferManager.shutdownNow(false);
+    BasicFileAttributes attributes = attributes(source);
+    upload(new S3LocalFile(String.valueOf(source.getFileName()), source, attributes.size(), attributes.lastModifiedTime().toMillis()),
+        targetBucket, targetKey);
+  }
+
+  /*
+   * A single PUT is sent from a stream with the walked length, as a request for a file makes the SDK read the file's length again.
+   */
+  @Override
+  public void upload(S3LocalFile local, String targetBucket, String targetKey) {
+    Path source = local.getPath();
+    output.message("Uploading " + source + " to " + "s3://" + targetBucket + "/" + targetKey);
+    if (config.getCompression() != null) {
+      try (InputStream in = Files.newInputStream(source)) {
+        streamUpload(source.toString(), in, targetBucket, targetKey, config.getCompression());
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read file: " + source.toAbsolutePath().toString(), e);
+      }
+      return;
+    }
+    long size = local.getSize();
+    track("upload", "s3://" + targetBucket + "/" + targetKey, size, () -> {
+      if (singleRequest(size)) {
+        // with a checksum the file is checksummed as it is sent
+        S3Checksum.Digest digest = config.getChecksum() == null ? null : S3Checksum.digest(config.getChecksum());
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(size);
+        metadata.setContentType(Mimetypes.getInstance().getMimetype(source.toFile()));
+        PutObjectResult result;
+        InputStream file = fileStream(source, 0L);
+        try (InputStream in = digest == null ? file : S3Checksum.digesting(file, digest)) {
+          PutObjectRequest request = new PutObjectRequest(targetBucket, targetKey, in, metadata);
+          request.setGeneralProgressListener(transferListener);
+          result = stats.time(S3Stats.Operation.PUT, () -> s3.putObject(request));
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to read file: " + source.toAbsolutePath().toString(), e);
+        }
+        if (digest != null) {
+          checkDigested(source, digest, size);
+          storeChecksum(targetBucket, targetKey, result.getETag(), Collections.singletonList(digest), false);
+        }
+      } else {
+        multipartUpload(source, targetBucket, targetKey, size, local.getLastModified());
+      }
+    });
+  }
+
+  /*
+   * A stream of unknown length is read into part buffers from the pool one after another and each part is uploaded on the transfer
+   * threads while the next is read, so reading waits only when every buffer is in flight. Parts start at the part size and double every
+   * 1000 parts, so a stream of any length fits in the part limit. A stream shorter than one part is sent with a single PUT.
+   */
+  @Override
+  public void uploadStream(InputStream source, String targetBucket, String targetKey) {
+    output.message("Uploading standard input to " + "s3://" + targetBucket + "/" + targetKey);
+    streamUpload("standard input", source, targetBucket, targetKey, config.getCompression());
+  }
+
+  // with compression the stream is compressed in blocks on every core as it is read into parts, see S3BlockCompressor
+  private void streamUpload(String name, InputStream stream, String targetBucket, String targetKey, S3Compression compression) {
+    String object = "s3://" + targetBucket + "/" + targetKey;
+    InputStream source = compression == null ? stream : new S3BlockCompressor(stream, compression, compressionExecutor, COMPRESSION_THREADS * 2);
+    LongAdder read = new LongAdder();
+    track("upload", object, 0L, read::sum, () -> {
+      long partSize = Math.min(partSizer.streamPartSize(), bufferPool.getCapacity());
+      S3BufferPool.Buffer first = readPart(name, source, partSize, read);
+      if (first.getLength() < partSize) {
+        try (S3BufferPool.Buffer buffer = first) {
+          ObjectMetadata metadata = streamMetadata(compression);
+          metadata.setContentLength(buffer.getLength());
+          PutObjectRequest request = new PutObjectRequest(targetBucket, targetKey, buffer.newInputStream(), metadata);
+          request.setGeneralProgressListener(transferListener);
+          request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, buffer.getLength() + 1));
+          PutObjectResult result = stats.time(S3Stats.Operation.PUT, () -> s3.putObject(request));
+          if (config.getChecksum() != null) {
+            S3Checksum.Digest digest = S3Checksum.digest(config.getChecksum());
+            buffer.digest(digest);
+            storeChecksum(targetBucket, targetKey, result.getETag(), Collections.singletonList(digest), false);
+          }
+        }
+        return;
+      }
+      String uploadId;
+      try {
+        uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(targetBucket, targetKey, streamMetadata(compression))).getUploadId();
+      } catch (RuntimeException e) {
+        first.close();
+        throw e;
+      }
+      List<CompletableFuture<PartETag>> futures = new ArrayList<>();
+      List<S3Checksum.Digest> digests = new ArrayList<>();
+      try {
+        S3BufferPool.Buffer buffer = first;
+        while (buffer != null) {
+          S3Checksum.Digest digest = config.getChecksum() == null ? null : S3Checksum.digest(config.getChecksum());
+          digests.add(digest);
+          futures.add(uploadBuffer(buffer, digest, targetBucket, targetKey, uploadId, futures.size() + 1));
+          if (buffer.getLength() < partSize) {
+            break;
+          }
+          if (futures.size() % STREAM_PARTS_PER_SIZE == 0) {
+            partSize = Math.min(partSize * 2, Math.min(bufferPool.getCapacity(), S3PartSizer.MAX_PART_SIZE));
+          }
+          if (futures.size() == S3PartSizer.MAX_PARTS) {
+            throw new RuntimeException("Standard input is too long for " + S3PartSizer.MAX_PARTS + " parts of up to " + partSize + " bytes");
+          }
+          buffer = readPart(name, source, partSize, read);
+          if (buffer.getLength() == 0L) {
+            buffer.close();
+            buffer = null;
+          }
+        }
+        List<PartETag> partETags = new ArrayList<>(futures.size());
+        for (CompletableFuture<PartETag> future : futures) {
+          partETags.add(join(future));
+        }
+        CompleteMultipartUploadResult result = s3.completeMultipartUpload(
+            new CompleteMultipartUploadRequest(targetBucket, targetKey, uploadId, partETags));
+        if (config.getChecksum() != null) {
+          storeChecksum(targetBucket, targetKey, result.getETag(), digests, true);
+        }
+      } catch (RuntimeException e) {
+        // parts still in flight hold buffers, the upload is aborted once they are done
+        for (CompletableFuture<PartETag> future : futures) {
+          try {
+            future.join();
+          } catch (RuntimeException ignored) {
+            // the first failure is reported
+          }
+        }
+        try {
+          s3.abortMultipartUpload(new AbortMultipartUploadRequest(targetBucket, targetKey, uploadId));
+        } catch (RuntimeException abortError) {
+          e.addSuppressed(abortError);
+        }
+        throw e;
+      }
+    });
+  }
+
+  // archives are never compressed, as their members are read back by their offsets in the archive
+  @Override
+  public void uploadArchive(List<S3Pack.Member> members, String archive, String targetBucket, String targetKey) {
+    output.message("Uploading " + members.size() + " files to " + "s3://" + targetBucket + "/" + targetKey);
+    try (InputStream in = S3Pack.tar(members, archive)) {
+      streamUpload("archive " + archive, in, targetBucket, targetKey, null);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to close archive " + archive, e);
+    }
   }
 
+  @Override
+  public void uploadBytes(byte[] content, String targetBucket, String targetKey) {
+    String object = "s3://" + targetBucket + "/" + targetKey;
+    output.message("Uploading " + content.length + " bytes to " + object);
+    track("upload", object, content.length, () -> {
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setContentLength(content.length);
+      PutObjectRequest request = new PutObjectRequest(targetBucket, targetKey, new ByteArrayInputStream(content), metadata);
+      request.setGeneralProgressListener(transferListener);
+      stats.time(S3Stats.Operation.PUT, () -> s3.putObject(request));
+    });
+  }
+
+  private ObjectMetadata streamMetadata(S3Compression compression) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    if (compression != null) {
+      metadata.setContentEncoding(compression.getContentEncoding());
+    }
+    return metadata;
+  }
+
+  private S3BufferPool.Buffer readPart(String name, InputStream source, long partSize, LongAdder read) {
+    S3BufferPool.Buffer buffer = bufferPool.acquire(partSize);
+    try {
+      buffer.fill(source, partSize);
+    } catch (IOException e) {
+      buffer.close();
+      throw new RuntimeException("Unable to read " + name, e);
+    }
+    read.add(buffer.getLength());
+    progress.grow(buffer.getLength());
+    return buffer;
+  }
+
+  // uploads a part on the transfer threads, checksummed into the digest if not null, and releases its buffer once it is sent
+  private CompletableFuture<PartETag> uploadBuffer(S3BufferPool.Buffer buffer, S3Checksum.Digest digest, String bucket, String key,
+      String uploadId, int partNumber) {
+    try {
+      return CompletableFuture.supplyAsync(() -> {
+        try (S3BufferPool.Buffer part = buffer) {
+          if (digest != null) {
+            part.digest(digest);
+          }
+          UploadPartRequest request = new UploadPartRequest()
+              .withBucketName(bucket)
+              .withKey(key)
+              .withUploadId(uploadId)
+              .withPartNumber(partNumber)
+              .withInputStream(part.newInputStream())
+              .withPartSize(part.getLength());
+          request.setGeneralProgressListener(transferListener);
+          request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, part.getLength() + 1));
+          long start = System.nanoTime();
+          UploadPartResult result = stats.time(S3Stats.Operation.PART, () -> s3.uploadPart(request));
+          partSizer.record(part.getLength(), System.nanoTime() - start);
+          return result.getPartETag();
+        }
+      }, executor);
+    } catch (RuntimeException e) {
+      buffer.close();
+      throw e;
+    }
+  }
+
+  // counts the transfer in the progress and reports its result
+  private void track(String operation, String object, long size, Runnable transfer) {
+    track(operation, object, size, () -> size, transfer);
+  }
+
+  /**
+   * @param reported the size reported with the result, for a transfer that only learns its size as it runs
+   */
+  private void track(String operation, String object, long size, LongSupplier reported, Runnable transfer) {
+    progress.started(size);
+    long start = System.nanoTime();
+    try {
+      transfer.run();
+    } catch (RuntimeException | Error e) {
+      progress.finished(false);
+      output.result(operation, object, reported.getAsLong(), System.nanoTime() - start, S3Output.FAILED, String.valueOf(e.getMessage()));
+      throw e;
+    }
+    progress.finished(true);
+    stats.objectDone();
+    output.result(operation, object, reported.getAsLong(), System.nanoTime() - start, S3Output.OK, null);
+  }
+
+  private static BasicFileAttributes attributes(Path source) {
+    try {
+      return Files.readAttributes(source, BasicFileAttributes.class);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read file: " + source.toAbsolutePath().toString(), e);
+    }
+  }
+
+  /*
+   * Parts are uploaded on the transfer threads and, with a journal, each part is recorded as it completes. An upload found in the
+   * journal for a file with the same size and modification time only uploads the parts it is missing, keeping the part size it was
+   * started with. Without a journal a failed upload is aborted, with one it is left for the next run to continue. Parts are read
+   * through memory mappings unless disabled, at most one per transfer thread, and from the file when they cannot be mapped, see
+   * S3MappedPartStream. With a checksum each part is checksummed as it is sent, so it is read from disk once, and the checksums of the
+   * parts are combined once all are done.
+   */
+  private void multipartUpload(Path source, String bucket, String key, long size, long lastModified) {
+    String object = "s3://" + bucket + "/" + key;
+    S3Journal.Upload previous = journal == null ? null : journal.getUpload(object);
+    if (previous != null && previous.getSize() == size && previous.getLastModified() == lastModified
+        && previous.getPartSize() >= S3PartSizer.minimumPartSize(size)) {
+      try {
+        uploadParts(source, bucket, key, size, previous.getPartSize(), previous.getUploadId(), previous.getParts());
+        return;
+      } catch (AmazonS3Exception e) {
+        if (!NO_SUCH_UPLOAD.equals(e.getErrorCode())) {
+          throw e;
+        }
+      }
+    }
+    long partSize = partSizer.partSize(size);
+    String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+    if (journal != null) {
+      journal.startUpload(object, uploadId, size, lastModified, partSize);
+    }
+    try {
+      uploadParts(source, bucket, key, size, partSize, uploadId, Collections.emptyMap());
+    } catch (RuntimeException e) {
+      if (journal == null) {
+        try {
+          s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (RuntimeException abortError) {
+          e.addSuppressed(abortError);
+        }
+      }
+      throw e;
+    }
+  }
+
+  private void uploadParts(Path source, String bucket, String key, long size, long partSize, String uploadId,
+      Map<Integer, String> uploaded) {
+    String object = "s3://" + bucket + "/" + key;
+    int parts = (int) ((size + partSize - 1) / partSize);
+    S3Checksum.Algorithm checksum = config.getChecksum();
+    S3Checksum.Digest[] digests = new S3Checksum.Digest[checksum == null ? 0 : parts];
+    List<CompletableFuture<PartETag>> futures = new ArrayList<>(parts);
+    for (int i = 0; i < parts; i++) {
+      int partNumber = i + 1;
+      long offset = i * partSize;
+      long length = Math.min(partSize, size - offset);
+      String eTag = uploaded.get(partNumber);
+      if (eTag != null && checksum == null) {
+        progress.transferred(length);
+        futures.add(CompletableFuture.completedFuture(new PartETag(partNumber, eTag)));
+      } else if (eTag != null) {
+        // a part uploaded by an earlier run is still part of the object's checksum
+        progress.transferred(length);
+        int part = i;
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          digests[part] = S3Checksum.digest(checksum, source, offset, length);
+          return new PartETag(partNumber, eTag);
+        }, executor));
+      } else {
+        int part = i;
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          // the part is checksummed as it is sent
+          S3Checksum.Digest digest = checksum == null ? null : S3Checksum.digest(checksum);
+          UploadPartRequest request = new UploadPartRequest()
+              .withBucketName(bucket)
+              .withKey(key)
+              .withUploadId(uploadId)
+              .withPartNumber(partNumber)
+              .withPartSize(length);
+          S3MappedPartStream mapped = config.isMemoryMappedParts() && length <= S3MappedPartStream.MAX_LENGTH
+              ? S3MappedPartStream.open(source, offset, length, mappings) : null;
+          UploadPartResult result;
+          try {
+            if (mapped != null) {
+              request.setInputStream(digest == null ? mapped : S3Checksum.digesting(mapped, digest));
+              request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, length + 1));
+            } else if (digest != null) {
+              request.setInputStream(S3Checksum.digesting(fileStream(source, offset), digest));
+            } else {
+              request.withFile(source.toFile()).withFileOffset(offset);
+            }
+            request.setGeneralProgressListener(transferListener);
+            long start = System.nanoTime();
+            result = stats.time(S3Stats.Operation.PART, () -> s3.uploadPart(request));
+            partSizer.record(length, System.nanoTime() - start);
+          } finally {
+            if (mapped != null) {
+              mapped.close();
+            }
+          }
+          if (digest != null) {
+            checkDigested(source, digest, length);
+            digests[part] = digest;
+          }
+          if (journal != null) {
+            journal.partDone(object, uploadId, partNumber, result.getETag());
+          }
+          return result.getPartETag();
+        }, executor));
+      }
+    }
+    List<PartETag> partETags = new ArrayList<>(parts);
+    for (CompletableFuture<PartETag> future : futures) {
+      partETags.add(join(future));
+    }
+    CompleteMultipartUploadResult result = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+    if (checksum != null) {
+      storeChecksum(bucket, key, result.getETag(), Arrays.asList(digests), true);
+    }
+  }
+
+  // a stream of a file from an offset that the SDK can reset to retry a request
+  private static InputStream fileStream(Path source, long offset) {
+    try {
+      FileInputStream in = new FileInputStream(source.toFile());
+      try {
+        in.getChannel().position(offset);
+        return new ResettableInputStream(in);
+      } catch (IOException | RuntimeException e) {
+        in.close();
+        throw e;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read file: " + source.toAbsolutePath().toString(), e);
+    }
+  }
+
+  // a checksum taken as a request was sent only holds if the request read every byte
+  private static void checkDigested(Path source, S3Checksum.Digest digest, long length) {
+    if (digest.getLength() != length) {
+      throw new RuntimeException("Checksummed " + digest.getLength() + " of " + length + " bytes sent from " + source);
+    }
+  }
+
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * The checksum an object is expected to have and how it was split when the checksum was computed.
+   */
+  private static final class ExpectedChecksum {
+
+    private final String value;
+    private final boolean multipart;
+    // the part size a checksum that depends on the parts was computed over, otherwise 0
+    private final long partSize;
+
+    private ExpectedChecksum(String value, boolean multipart, long partSize) {
+      this.value = value;
+      this.multipart = multipart;
+      this.partSize = partSize;
+    }
+
+    // true if the checksum is of the whole object, computed from its bytes in order
+    private boolean isWhole() {
+      return partSize != 0L && !multipart;
+    }
+  }
+
+  /*
+   * An md5 checksum is the object's ETag, crc32c and sha256 are read from the tag written when the object was uploaded. A checksum that
+   * depends on the parts ends in the number of parts, and the size of the first part gives the size of every part but the last.
+   */
+  private ExpectedChecksum expectedChecksum(AmazonS3 client, String bucket, String key, ObjectMetadata metadata) {
+    S3Checksum.Algorithm algorithm = config.getChecksum();
+    String object = "s3://" + bucket + "/" + key;
+    String value = null;
+    if (algorithm == S3Checksum.Algorithm.MD5) {
+      value = metadata.getETag() == null ? null : metadata.getETag().replace("\"", "").toLowerCase(Locale.ROOT);
+    } else {
+      GetObjectTaggingRequest request = new GetObjectTaggingRequest(bucket, key);
+      request.setGeneralProgressListener(stats.listener());
+      for (Tag tag : client.getObjectTagging(request).getTagSet()) {
+        if (algorithm.getTag().equals(tag.getKey())) {
+          value = tag.getValue();
+        }
+      }
+    }
+    if (value == null) {
+      output.message("No " + algorithm.name().toLowerCase(Locale.ROOT) + " checksum stored for " + object + ", not verified");
+      return null;
+    }
+    if (!S3Checksum.dependsOnParts(algorithm)) {
+      return new ExpectedChecksum(value, false, 0L);
+    }
+    long size = metadata.getContentLength();
+    int dash = value.lastIndexOf('-');
+    if (dash < 0) {
+      return new ExpectedChecksum(value, false, Math.max(1L, size));
+    }
+    int parts;
+    try {
+      parts = Integer.parseInt(value.substring(dash + 1));
+    } catch (NumberFormatException e) {
+      throw new RuntimeException("Invalid checksum for " + object + ": " + value, e);
+    }
+    long partSize = size;
+    if (parts > 1) {
+      GetObjectMetadataRequest head = new GetObjectMetadataRequest(bucket, key).withPartNumber(1);
+      head.setGeneralProgressListener(stats.listener());
+      partSize = stats.time(S3Stats.Operation.HEAD, () -> client.getObjectMetadata(head)).getContentLength();
+    }
+    return new ExpectedChecksum(value, true, Math.max(1L, partSize));
+  }
+
+  private void verifyChecksum(String object, ExpectedChecksum expected, List<S3Checksum.Digest> parts) {
+    S3Checksum.Algorithm algorithm = config.getChecksum();
+    S3Checksum.verify(object, algorithm, expected.value, S3Checksum.combine(algorithm, parts, expected.multipart));
+  }
+
+  // an md5 checksum computed on upload is checked against the ETag S3 computed, the others are stored in a tag for downloads to check
+  private void storeChecksum(String bucket, String key, String eTag, List<S3Checksum.Digest> parts, boolean multipart) {
+    S3Checksum.Algorithm algorithm = config.getChecksum();
+    String value = S3Checksum.combine(algorithm, parts, multipart);
+    if (algorithm == S3Checksum.Algorithm.MD5) {
+      S3Checksum.verify("s3://" + bucket + "/" + key, algorithm, String.valueOf(eTag), value);
+    } else {
+      storeChecksumTag(bucket, key, value);
+    }
+  }
+
+  // setting tags replaces the whole tag set, so tags the object already has, such as ones a copy carried over, are kept
+  private void storeChecksumTag(String bucket, String key, String value) {
+    String name = config.getChecksum().getTag();
+    GetObjectTaggingRequest existing = new GetObjectTaggingRequest(bucket, key);
+    existing.setGeneralProgressListener(stats.listener());
+    List<Tag> tags = new ArrayList<>();
+    for (Tag tag : s3.getObjectTagging(existing).getTagSet()) {
+      if (!name.equals(tag.getKey())) {
+        tags.add(tag);
+      }
+    }
+    tags.add(new Tag(name, value));
+    SetObjectTaggingRequest request = new SetObjectTaggingRequest(bucket, key, new ObjectTagging(tags));
+    request.setGeneralProgressListener(stats.listener());
+    s3.setObjectTagging(request);
+  }
 
   private void createParent(Path target) {
     Path parent = target.getParent();
@@ -48,15 +724,335 @@ public class S3OperationsImpl implements S3Operations {
 
   @Override
   public void download(String sourceBucket, String sourceKey, Path target) {
-    System.out.println("Downloading " + "s3://" + sourceBucket + "/" + sourceKey + " to " + target);
+    output.message("Downloading " + "s3://" + sourceBucket + "/" + sourceKey + " to " + target);
     createParent(target);
-    TransferManager transferManager = TransferManagerBuilder.standard().withS3Client(s3).build();
-    Download download = transferManager.download(sourceBucket, sourceKey, target.toFile());
-    transfer(download);
-    transferManager.shutdownNow(false);
-    System.out.println();
+    GetObjectMetadataRequest head = new GetObjectMetadataRequest(sourceBucket, sourceKey);
+    head.setGeneralProgressListener(stats.listener());
+    ObjectMetadata metadata = stats.time(S3Stats.Operation.HEAD, () -> sourceS3.getObjectMetadata(head));
+    String object = "s3://" + sourceBucket + "/" + sourceKey;
+    ExpectedChecksum expected = config.getChecksum() == null ? null : expectedChecksum(sourceS3, sourceBucket, sourceKey, metadata);
+    S3Compression compression = S3Compression.fromContentEncoding(metadata.getContentEncoding());
+    track("download", object, metadata.getContentLength(), () -> {
+      if (compression != null) {
+        // the decompressed size is not known up front, so the file is written in order rather than as ranges at their offsets
+        List<S3Checksum.Digest> digests = new ArrayList<>();
+        try (OutputStream out = Files.newOutputStream(target)) {
+          readDecompressed(sourceBucket, sourceKey, metadata, expected, digests, compression, out);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to download " + object + " to " + target.toAbsolutePath().toString(), e);
+        }
+        if (expected != null) {
+          verifyChecksum(object, expected, digests);
+        }
+      } else if (expected != null && (expected.isWhole() || !expected.multipart && metadata.getContentLength() < config.getMultipartThreshold())) {
+        S3Checksum.Digest digest = S3Checksum.digest(config.getChecksum());
+        try (OutputStream out = Files.newOutputStream(target)) {
+          get(sourceBucket, sourceKey, metadata.getETag(), out, digest);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to download " + object + " to " + target.toAbsolutePath().toString(), e);
+        }
+        verifyChecksum(object, expected, Collections.singletonList(digest));
+      } else if (expected == null && metadata.getContentLength() < config.getMultipartThreshold()) {
+        GetObjectRequest request = new GetObjectRequest(sourceBucket, sourceKey);
+        request.setGeneralProgressListener(transferListener);
+        stats.time(S3Stats.Operation.GET, () -> waitForCompletion(transferManager.download(request, target.toFile())));
+      } else {
+        rangedDownload(sourceBucket, sourceKey, target, metadata.getContentLength(), metadata.getETag(), expected);
+      }
+    });
   }
 
+  @Override
+  public void downloadRange(String sourceBucket, String sourceKey, long offset, long length, Path target) {
+    String object = "s3://" + sourceBucket + "/" + sourceKey + " bytes " + offset + "-" + (offset + length - 1);
+    output.message("Downloading " + object + " to " + target);
+    createParent(target);
+    track("download", object, length, () -> {
+      try (OutputStream out = Files.newOutputStream(target)) {
+        if (length > 0L) {
+          GetObjectRequest request = new GetObjectRequest(sourceBucket, sourceKey).withRange(offset, offset + length - 1);
+          request.setGeneralProgressListener(transferListener);
+          S3Object s3Object = stats.time(S3Stats.Operation.GET, () -> sourceS3.getObject(request));
+          long written = 0L;
+          try (S3ObjectInputStream in = s3Object.getObjectContent()) {
+            byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(bytes)) != -1) {
+              out.write(bytes, 0, n);
+              written += n;
+            }
+          }
+          if (written != length) {
+            throw new RuntimeException("Incomplete range for " + object + ": " + written + " bytes");
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to download " + object + " to " + target.toAbsolutePath().toString(), e);
+      }
+    });
+  }
+
+  @Override
+  public byte[] downloadBytes(String sourceBucket, String sourceKey) {
+    GetObjectRequest request = new GetObjectRequest(sourceBucket, sourceKey);
+    request.setGeneralProgressListener(stats.listener());
+    S3Object s3Object = stats.time(S3Stats.Operation.GET, () -> sourceS3.getObject(request));
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try (S3ObjectInputStream in = s3Object.getObjectContent()) {
+      byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+      int n;
+      while ((n = in.read(bytes)) != -1) {
+        content.write(bytes, 0, n);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read s3://" + sourceBucket + "/" + sourceKey, e);
+    }
+    return content.toByteArray();
+  }
+
+  // copies the object version with the ETag to the stream as it is received, checksummed into the digest if not null
+  private void get(String bucket, String key, String eTag, OutputStream target, S3Checksum.Digest digest) throws IOException {
+    GetObjectRequest request = new GetObjectRequest(bucket, key).withMatchingETagConstraint(eTag);
+    request.setGeneralProgressListener(transferListener);
+    S3Object s3Object = stats.time(S3Stats.Operation.GET, () -> sourceS3.getObject(request));
+    if (s3Object == null) {
+      throw new RuntimeException("Object changed during download: s3://" + bucket + "/" + key);
+    }
+    try (S3ObjectInputStream in = s3Object.getObjectContent()) {
+      byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+      int n;
+      while ((n = in.read(bytes)) != -1) {
+        if (digest != null) {
+          digest.update(bytes, 0, n);
+        }
+        target.write(bytes, 0, n);
+      }
+    }
+  }
+
+  /*
+   * Objects below the multipart threshold are copied to the stream as they are received. Larger objects are fetched as ranges on the
+   * transfer threads, see RangeInputStream.
+   */
+  @Override
+  public void downloadStream(String sourceBucket, String sourceKey, OutputStream target) {
+    String object = "s3://" + sourceBucket + "/" + sourceKey;
+    output.message("Downloading " + object + " to standard output");
+    GetObjectMetadataRequest head = new GetObjectMetadataRequest(sourceBucket, sourceKey);
+    head.setGeneralProgressListener(stats.listener());
+    ObjectMetadata metadata = stats.time(S3Stats.Operation.HEAD, () -> sourceS3.getObjectMetadata(head));
+    long size = metadata.getContentLength();
+    ExpectedChecksum expected = config.getChecksum() == null ? null : expectedChecksum(sourceS3, sourceBucket, sourceKey, metadata);
+    S3Compression compression = S3Compression.fromContentEncoding(metadata.getContentEncoding());
+    track("download", object, size, () -> {
+      try {
+        List<S3Checksum.Digest> digests = new ArrayList<>();
+        if (compression != null) {
+          readDecompressed(sourceBucket, sourceKey, metadata, expected, digests, compression, target);
+        } else if (expected != null ? expected.isWhole() || !expected.multipart && size < config.getMultipartThreshold()
+            : size < config.getMultipartThreshold()) {
+          S3Checksum.Digest digest = expected == null ? null : S3Checksum.digest(config.getChecksum());
+          digests.add(digest);
+          get(sourceBucket, sourceKey, metadata.getETag(), target, digest);
+        } else {
+          try (RangeInputStream ranges = new RangeInputStream(sourceBucket, sourceKey, metadata, expected, digests)) {
+            ranges.writeTo(target);
+          }
+        }
+        target.flush();
+        if (expected != null) {
+          verifyChecksum(object, expected, digests);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to download " + object + " to standard output", e);
+      }
+    });
+  }
+
+  // an object with a gzip or zstd Content-Encoding is decompressed in parallel as it is written, see S3BlockDecompressor
+  private void readDecompressed(String bucket, String key, ObjectMetadata metadata, ExpectedChecksum expected,
+      List<S3Checksum.Digest> digests, S3Compression compression, OutputStream target) throws IOException {
+    try (InputStream in = new S3BlockDecompressor(new RangeInputStream(bucket, key, metadata, expected, digests), compression,
+        compressionExecutor, COMPRESSION_THREADS * 2)) {
+      byte[] bytes = new byte[STREAM_BUFFER_SIZE];
+      int n;
+      while ((n = in.read(bytes)) != -1) {
+        target.write(bytes, 0, n);
+      }
+    }
+  }
+
+  /*
+   * An object read as ranges fetched on the transfer threads into buffers, a window ahead of the range being read, and read strictly in
+   * order. The window is reserved from the pool when the stream is opened, see S3BufferPool.reserve, so taking the buffer for the next
+   * range never waits, even with other streams reading at the same time.
+   */
+  private final class RangeInputStream extends InputStream {
+
+    private final String bucket;
+    private final String key;
+    private final String eTag;
+    private final long size;
+    private final long partSize;
+    private final int parts;
+    private final int window;
+    private final ExpectedChecksum expected;
+    private final List<S3Checksum.Digest> digests;
+    private final Deque<CompletableFuture<S3BufferPool.Buffer>> pending;
+    private final S3BufferPool.Reservation reservation;
+    private int next = 0;
+    private int taken = 0;
+    private S3BufferPool.Buffer current;
+    private InputStream currentStream;
+
+    /**
+     * @param expected if not null each range is checksummed on the transfer threads and its digest added to digests
+     */
+    private RangeInputStream(String bucket, String key, ObjectMetadata metadata, ExpectedChecksum expected,
+        List<S3Checksum.Digest> digests) {
+      this.bucket = bucket;
+      this.key = key;
+      this.eTag = metadata.getETag();
+      this.expected = expected;
+      this.digests = digests;
+      size = metadata.getContentLength();
+      if (expected != null && expected.partSize != 0L) {
+        partSize = expected.partSize;
+        if (partSize > bufferPool.getCapacity()) {
+          throw new RuntimeException("Stream buffer too small to checksum parts of " + partSize + " bytes of s3://" + bucket + "/" + key);
+        }
+      } else {
+        partSize = Math.min(partSizer.partSize(size), bufferPool.getCapacity());
+      }
+      parts = (int) ((size + partSize - 1) / partSize);
+      reservation = bufferPool.reserve(partSize, (int) Math.max(1L, Math.min(Math.min(parts, config.getThreads() * 2L),
+          bufferPool.getCapacity() / partSize)));
+      window = reservation.fits(partSize);
+      pending = new ArrayDeque<>(window);
+    }
+
+    // the next range in order, or null after the last
+    private S3BufferPool.Buffer nextRange() {
+      if (taken == parts) {
+        return null;
+      }
+      while (next < parts && pending.size() < window) {
+        long offset = next * partSize;
+        long length = Math.min(partSize, size - offset);
+        S3BufferPool.Buffer buffer = reservation.acquire(length);
+        S3Checksum.Digest digest = expected == null ? null : S3Checksum.digest(config.getChecksum());
+        if (digest != null) {
+          digests.add(digest);
+        }
+        pending.add(fill(buffer, digest, bucket, key, offset, length, eTag));
+        next++;
+      }
+      taken++;
+      return join(pending.remove());
+    }
+
+    // writes every range straight from its buffer
+    private void writeTo(OutputStream target) throws IOException {
+      S3BufferPool.Buffer buffer;
+      while ((buffer = nextRange()) != null) {
+        try (S3BufferPool.Buffer range = buffer) {
+          range.writeTo(target);
+          progress.transferred(range.getLength());
+        }
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] bytes = new byte[1];
+      return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        if (currentStream != null) {
+          int n = currentStream.read(bytes, off, len);
+          if (n != -1) {
+            return n;
+          }
+          progress.transferred(current.getLength());
+          current.close();
+          current = null;
+          currentStream = null;
+        }
+        current = nextRange();
+        if (current == null) {
+          return -1;
+        }
+        currentStream = current.newInputStream();
+      }
+    }
+
+    @Override
+    public void close() {
+      if (current != null) {
+        current.close();
+        current = null;
+        currentStream = null;
+      }
+      // ranges fetched ahead of a failure are released once they arrive
+      for (CompletableFuture<S3BufferPool.Buffer> future : pending) {
+        future.whenComplete((buffer, e) -> {
+          if (buffer != null) {
+            buffer.close();
+          }
+        });
+      }
+      pending.clear();
+      reservation.close();
+    }
+  }
+
+  private CompletableFuture<S3BufferPool.Buffer> fill(S3BufferPool.Buffer buffer, S3Checksum.Digest digest, String bucket, String key,
+      long offset, long length, String eTag) {
+    try {
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          fetchInto(buffer, bucket, key, offset, length, eTag);
+          if (digest != null) {
+            buffer.digest(digest);
+          }
+          return buffer;
+        } catch (RuntimeException | Error e) {
+          buffer.close();
+          throw e;
+        }
+      }, executor);
+    } catch (RuntimeException e) {
+      buffer.close();
+      throw e;
+    }
+  }
+
+  // large objects are fetched as parallel byte ranges that survive a failed or interrupted run, see S3RangedDownload
+  private void rangedDownload(String bucket, String key, Path target, long size, String eTag, ExpectedChecksum expected) {
+    try (S3RangedDownload download = new S3RangedDownload(sourceS3, bucket, key, target, size, eTag, partSizer, progress::transferred,
+        stats)) {
+      if (expected != null) {
+        download.checksum(config.getChecksum(), expected.partSize);
+      }
+      join(download.start(executor));
+      download.complete();
+      if (expected != null) {
+        verifyChecksum("s3://" + bucket + "/" + key, expected, download.getDigests());
+      }
+    }
+  }
+
+
+  // a single PUT or CopyObject takes at most 5 GiB whatever the threshold
+  private boolean singleRequest(long size) {
+    return size < Math.min(config.getMultipartThreshold(), S3PartSizer.MAX_PART_SIZE);
+  }
 
   @Override
   public void copy(
@@ -65,78 +1061,369 @@ public class S3OperationsImpl implements S3Operations {
       String targetBucket,
       String targetKey) {
 
-    System.out.println("Copying " + "s3://" + sourceBucket + "/" + sourceKey + " to " + "s3://" + targetBucket + "/" + targetKey);
-    TransferManager transferManager = TransferManagerBuilder.standard().withS3Client(s3).build();
-    Copy copy = transferManager.copy(sourceBucket, sourceKey, targetBucket, targetKey);
-    transfer(copy);
-    transferManager.shutdownNow(false);
-    System.out.println();
+    output.message("Copying " + "s3://" + sourceBucket + "/" + sourceKey + " to " + "s3://" + targetBucket + "/" + targetKey);
+    GetObjectMetadataRequest head = new GetObjectMetadataRequest(sourceBucket, sourceKey);
+    head.setGeneralProgressListener(stats.listener());
+    ObjectMetadata metadata = stats.time(S3Stats.Operation.HEAD, () -> sourceS3.getObjectMetadata(head));
+    ExpectedChecksum expected = config.getChecksum() == null ? null : expectedChecksum(sourceS3, sourceBucket, sourceKey, metadata);
+    // a checksum that depends on the parts stays valid only if the target is split as the source was
+    boolean single = expected != null && expected.partSize != 0L ? !expected.multipart
+        : singleRequest(metadata.getContentLength());
+    long partSize = expected != null && expected.partSize != 0L ? expected.partSize : partSizer.partSize(metadata.getContentLength());
+    String target = "s3://" + targetBucket + "/" + targetKey;
+    // a copy sends no bytes through this process, the bytes copied are counted as each request completes
+    track("copy", target, metadata.getContentLength(), () -> {
+      if (sourceS3 != s3) {
+        streamingCopy(sourceBucket, sourceKey, targetBucket, targetKey, metadata, single, partSize, expected);
+      } else if (single) {
+        CopyObjectRequest request = new CopyObjectRequest(sourceBucket, sourceKey, targetBucket, targetKey)
+            .withMatchingETagConstraint(metadata.getETag());
+        request.setGeneralProgressListener(stats.listener());
+        CopyObjectResult result = stats.time(S3Stats.Operation.COPY, () -> s3.copyObject(request));
+        if (result == null) {
+          throw new RuntimeException("Object changed during copy: s3://" + sourceBucket + "/" + sourceKey);
+        }
+        progress.transferred(metadata.getContentLength());
+        // the tags holding other checksums are copied with the object
+        if (expected != null && config.getChecksum() == S3Checksum.Algorithm.MD5) {
+          S3Checksum.verify(target, config.getChecksum(), String.valueOf(result.getETag()), expected.value);
+        }
+      } else {
+        CompleteMultipartUploadResult result = multipartCopy(sourceBucket, sourceKey, targetBucket, targetKey, metadata, partSize);
+        if (expected != null && config.getChecksum() == S3Checksum.Algorithm.MD5) {
+          S3Checksum.verify(target, config.getChecksum(), String.valueOf(result.getETag()), expected.value);
+        } else if (expected != null) {
+          storeChecksumTag(targetBucket, targetKey, expected.value);
+        }
+      }
+    });
+  }
+
+  /*
+   * Large objects are copied as byte ranges of the source, UploadPartCopy requests made in parallel on the transfer threads. Every
+   * range must match the source ETag read before the copy started, so an object replaced during the copy fails it rather than mixing
+   * versions. A failed copy is aborted.
+   *
+   * @return the result of completing the copy
+   */
+  private CompleteMultipartUploadResult multipartCopy(String sourceBucket, String sourceKey, String targetBucket, String targetKey, ObjectMetadata metadata,
+      long partSize) {
+    long size = metadata.getContentLength();
+    String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(targetBucket, targetKey, copyMetadata(metadata)))
+        .getUploadId();
+    try {
+      int parts = (int) ((size + partSize - 1) / partSize);
+      List<CompletableFuture<PartETag>> futures = new ArrayList<>(parts);
+      for (int i = 0; i < parts; i++) {
+        int partNumber = i + 1;
+        long first = i * partSize;
+        long last = Math.min(size, first + partSize) - 1;
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          CopyPartRequest request = new CopyPartRequest()
+              .withSourceBucketName(sourceBucket)
+              .withSourceKey(sourceKey)
+              .withDestinationBucketName(targetBucket)
+              .withDestinationKey(targetKey)
+              .withUploadId(uploadId)
+              .withPartNumber(partNumber)
+              .withFirstByte(first)
+              .withLastByte(last)
+              .withMatchingETagConstraint(metadata.getETag());
+          request.setGeneralProgressListener(stats.listener());
+          CopyPartResult result = stats.time(S3Stats.Operation.PART_COPY, () -> s3.copyPart(request));
+          if (result == null) {
+            throw new RuntimeException("Object changed during copy: s3://" + sourceBucket + "/" + sourceKey);
+          }
+          progress.transferred(last - first + 1);
+          return result.getPartETag();
+        }, executor));
+      }
+      List<PartETag> partETags = new ArrayList<>(parts);
+      for (CompletableFuture<PartETag> future : futures) {
+        partETags.add(join(future));
+      }
+      return s3.completeMultipartUpload(new CompleteMultipartUploadRequest(targetBucket, targetKey, uploadId, partETags));
+    } catch (RuntimeException e) {
+      try {
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(targetBucket, targetKey, uploadId));
+      } catch (RuntimeException abortError) {
+        e.addSuppressed(abortError);
+      }
+      throw e;
+    }
   }
 
-  // prints a simple text progressbar: [#####     ]
-  public static void printProgressBar(double pct) {
-    // if bar_size changes, then change erase_bar (in eraseProgressBar) to
-    // match.
-    final int bar_size = 40;
-    final String empty_bar = "                                        ";
-    final String filled_bar = "########################################";
-    int amt_full = (int) (bar_size * (pct / 100.0));
-    System.out.format("  [%s%s]", filled_bar.substring(0, amt_full),
-        empty_bar.substring(0, bar_size - amt_full));
+  /*
+   * Copies between two clients, where S3 cannot copy server side. Each part is fetched with a ranged GET into memory from the buffer
+   * pool and uploaded from there, so nothing is staged on disk and the memory in use never exceeds the pool however many parts are in
+   * flight. A part is held until its upload completes, retries resend it from memory. With a checksum each part is checksummed in
+   * memory as it passes through, verified against the source and stored for the target.
+   */
+  private void streamingCopy(String sourceBucket, String sourceKey, String targetBucket, String targetKey, ObjectMetadata metadata,
+      boolean single, long copyPartSize, ExpectedChecksum expected) {
+    long size = metadata.getContentLength();
+    String source = "s3://" + sourceBucket + "/" + sourceKey;
+    boolean layout = expected != null && expected.partSize != 0L;
+    if (single && (layout || size <= bufferPool.getCapacity())) {
+      if (size > bufferPool.getCapacity()) {
+        throw new RuntimeException("Stream buffer too small to checksum " + source + " as a single part");
+      }
+      try (S3BufferPool.Buffer buffer = fetch(sourceBucket, sourceKey, 0L, size, metadata.getETag())) {
+        S3Checksum.Digest digest = null;
+        if (expected != null) {
+          digest = S3Checksum.digest(config.getChecksum());
+          buffer.digest(digest);
+          verifyChecksum(source, expected, Collections.singletonList(digest));
+        }
+        ObjectMetadata targetMetadata = copyMetadata(metadata);
+        targetMetadata.setContentLength(size);
+        PutObjectRequest request = new PutObjectRequest(targetBucket, targetKey, buffer.newInputStream(), targetMetadata);
+        request.setGeneralProgressListener(transferListener);
+        request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, size + 1));
+        PutObjectResult result = stats.time(S3Stats.Operation.PUT, () -> s3.putObject(request));
+        if (digest != null) {
+          storeChecksum(targetBucket, targetKey, result.getETag(), Collections.singletonList(digest), false);
+        }
+      }
+      return;
+    }
+    long partSize = layout ? copyPartSize : Math.min(copyPartSize, bufferPool.getCapacity());
+    if (partSize > bufferPool.getCapacity()) {
+      throw new RuntimeException("Stream buffer too small to checksum parts of " + partSize + " bytes of " + source);
+    }
+    if (partSize < S3PartSizer.minimumPartSize(size)) {
+      throw new RuntimeException("Stream buffer too small to copy " + source + " in 10000 parts");
+    }
+    S3Checksum.Digest[] digests = new S3Checksum.Digest[expected == null ? 0 : (int) ((size + partSize - 1) / partSize)];
+    String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(targetBucket, targetKey, copyMetadata(metadata)))
+        .getUploadId();
+    try {
+      int parts = (int) ((size + partSize - 1) / partSize);
+      List<CompletableFuture<PartETag>> futures = new ArrayList<>(parts);
+      for (int i = 0; i < parts; i++) {
+        int partNumber = i + 1;
+        long offset = i * partSize;
+        long length = Math.min(partSize, size - offset);
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          try (S3BufferPool.Buffer buffer = fetch(sourceBucket, sourceKey, offset, length, metadata.getETag())) {
+            if (expected != null) {
+              digests[partNumber - 1] = S3Checksum.digest(config.getChecksum());
+              buffer.digest(digests[partNumber - 1]);
+            }
+            UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(targetBucket)
+                .withKey(targetKey)
+                .withUploadId(uploadId)
+                .withPartNumber(partNumber)
+                .withInputStream(buffer.newInputStream())
+                .withPartSize(length);
+            request.setGeneralProgressListener(transferListener);
+            request.getRequestClientOptions().setReadLimit((int) Math.min(Integer.MAX_VALUE, length + 1));
+            long start = System.nanoTime();
+            UploadPartResult result = stats.time(S3Stats.Operation.PART, () -> s3.uploadPart(request));
+            partSizer.record(length, System.nanoTime() - start);
+            return result.getPartETag();
+          }
+        }, executor));
+      }
+      List<PartETag> partETags = new ArrayList<>(parts);
+      for (CompletableFuture<PartETag> future : futures) {
+        partETags.add(join(future));
+      }
+      // a copy that does not match the source is aborted rather than completed
+      if (expected != null) {
+        verifyChecksum(source, expected, Arrays.asList(digests));
+      }
+      CompleteMultipartUploadResult result = s3.completeMultipartUpload(
+          new CompleteMultipartUploadRequest(targetBucket, targetKey, uploadId, partETags));
+      if (expected != null) {
+        storeChecksum(targetBucket, targetKey, result.getETag(), Arrays.asList(digests), true);
+      }
+    } catch (RuntimeException e) {
+      try {
+        s3.abortMultipartUpload(new AbortMultipartUploadRequest(targetBucket, targetKey, uploadId));
+      } catch (RuntimeException abortError) {
+        e.addSuppressed(abortError);
+      }
+      throw e;
+    }
   }
 
-  // erases the progress bar.
-  public static void eraseProgressBar() {
-    // erase_bar is bar_size (from printProgressBar) + 4 chars.
-    final String erase_bar = "\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b\b";
-    System.out.format(erase_bar);
+  // reads a byte range of the source version being copied into a buffer, waiting for memory to be free
+  private S3BufferPool.Buffer fetch(String bucket, String key, long offset, long length, String eTag) {
+    S3BufferPool.Buffer buffer = bufferPool.acquire(length);
+    try {
+      fetchInto(buffer, bucket, key, offset, length, eTag);
+      return buffer;
+    } catch (RuntimeException | Error e) {
+      buffer.close();
+      throw e;
+    }
   }
 
-  private void transfer(Transfer transfer) {
-    printProgressBar(0.0);
-    do {
-      try {
-        Thread.sleep(100);
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        throw new RuntimeException(e);
-      }
-      TransferProgress progress = transfer.getProgress();
-      double pct = progress.getPercentTransferred();
-      eraseProgressBar();
-      printProgressBar(pct);
-    } while (transfer.isDone() == false);
-    TransferState state = transfer.getState();
-    System.out.println(": " + state);
-    if (state == TransferState.Failed || state == TransferState.Canceled) {
-      try {
-        transfer.waitForCompletion();
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
-        throw new RuntimeException("Transfer Failed", e);
+  private void fetchInto(S3BufferPool.Buffer buffer, String bucket, String key, long offset, long length, String eTag) {
+    if (length > 0L) {
+      GetObjectRequest request = new GetObjectRequest(bucket, key)
+          .withRange(offset, offset + length - 1)
+          .withMatchingETagConstraint(eTag);
+      request.setGeneralProgressListener(stats.listener());
+      stats.time(S3Stats.Operation.GET, () -> {
+        S3Object object = sourceS3.getObject(request);
+        if (object == null) {
+          throw new RuntimeException("Object changed during transfer: s3://" + bucket + "/" + key);
+        }
+        try (S3ObjectInputStream in = object.getObjectContent()) {
+          buffer.fill(in, length);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to read s3://" + bucket + "/" + key, e);
+        }
+      });
+      if (buffer.getLength() != length) {
+        throw new RuntimeException("Incomplete range " + offset + "-" + (offset + length - 1) + " for s3://" + bucket + "/" + key);
       }
     }
   }
 
+  // the headers a single CopyObject request would carry over, a multipart upload has to be given them
+  private static ObjectMetadata copyMetadata(ObjectMetadata source) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    if (source.getContentType() != null) {
+      metadata.setContentType(source.getContentType());
+    }
+    if (source.getContentEncoding() != null) {
+      metadata.setContentEncoding(source.getContentEncoding());
+    }
+    if (source.getContentDisposition() != null) {
+      metadata.setContentDisposition(source.getContentDisposition());
+    }
+    if (source.getContentLanguage() != null) {
+      metadata.setContentLanguage(source.getContentLanguage());
+    }
+    if (source.getCacheControl() != null) {
+      metadata.setCacheControl(source.getCacheControl());
+    }
+    if (source.getHttpExpiresDate() != null) {
+      metadata.setHttpExpiresDate(source.getHttpExpiresDate());
+    }
+    metadata.setUserMetadata(new HashMap<>(source.getUserMetadata()));
+    return metadata;
+  }
+
+  private static void waitForCompletion(Transfer transfer) {
+    try {
+      transfer.waitForCompletion();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Transfer Failed", e);
+    }
+  }
+
   @Override
   public void forEachKey(String bucket, String prefix, Consumer<String> transfer) {
-    ObjectListing objectListing = s3.listObjects(bucket, prefix);
-    while (true) {
-      Iterator<S3ObjectSummary> objIter = objectListing.getObjectSummaries().iterator();
-      while (objIter.hasNext()) {
-        transfer.accept(objIter.next().getKey());
-      }
-      if (objectListing.isTruncated()) {
-        objectListing = s3.listNextBatchOfObjects(objectListing);
-      } else {
-        break;
+    try (S3ObjectIterator objects = listObjects(bucket, prefix)) {
+      while (objects.hasNext()) {
+        transfer.accept(objects.next().getKey());
       }
     }
   }
 
+  @Override
+  public void forEachObject(String bucket, String prefix, Consumer<S3ObjectInfo> consumer) {
+    try (S3ObjectIterator objects = listObjects(bucket, prefix, true)) {
+      while (objects.hasNext()) {
+        S3ObjectSummary summary = objects.next();
+        consumer.accept(new S3ObjectInfo(summary.getKey(), summary.getSize(), summary.getLastModified().getTime(), summary.getETag()));
+      }
+    }
+  }
+
+  private S3ObjectIterator listObjects(String bucket, String prefix) {
+    return listObjects(bucket, prefix, config.isOrderedListing());
+  }
+
+  private S3ObjectIterator listObjects(String bucket, String prefix, boolean ordered) {
+    if (config.getListParallelism() > 1) {
+      return new S3PartitionedLister(sourceS3, bucket, prefix, config.getPageSize(), config.getPrefetchPages(), config.getListParallelism(),
+          ordered, stats);
+    }
+    return new S3ObjectLister(sourceS3, bucket, prefix, config.getPageSize(), config.getPrefetchPages(), stats);
+  }
+
   @Override
   public void deleteObject(String bucket, String key) {
-    System.out.println("Deleting " + "s3://" + bucket + "/" + key);
-    s3.deleteObject(bucket, key);
+    String object = "s3://" + bucket + "/" + key;
+    output.message("Deleting " + object);
+    long start = System.nanoTime();
+    try {
+      DeleteObjectRequest request = new DeleteObjectRequest(bucket, key);
+      request.setGeneralProgressListener(stats.listener());
+      stats.time(S3Stats.Operation.DELETE, () -> s3.deleteObject(request));
+    } catch (RuntimeException e) {
+      output.result("delete", object, 0L, System.nanoTime() - start, S3Output.FAILED, String.valueOf(e.getMessage()));
+      throw e;
+    }
+    stats.objectDone();
+    output.result("delete", object, 0L, System.nanoTime() - start, S3Output.OK, null);
+  }
+
+  @Override
+  public List<S3Failure> deleteObjects(String bucket, List<String> keys) {
+    List<S3Failure> failures = new ArrayList<>();
+    for (int start = 0; start < keys.size(); start += MAX_DELETE_KEYS) {
+      List<KeyVersion> batch = new ArrayList<>();
+      for (String key : keys.subList(start, Math.min(keys.size(), start + MAX_DELETE_KEYS))) {
+        output.message("Deleting " + "s3://" + bucket + "/" + key);
+        batch.add(new KeyVersion(key));
+      }
+      long started = System.nanoTime();
+      Map<String, String> errors = new HashMap<>();
+      try {
+        DeleteObjectsRequest request = new DeleteObjectsRequest(bucket).withKeys(batch).withQuiet(true);
+        request.setGeneralProgressListener(stats.listener());
+        stats.time(S3Stats.Operation.DELETE, () -> s3.deleteObjects(request));
+      } catch (MultiObjectDeleteException e) {
+        for (DeleteError error : e.getErrors()) {
+          String message = error.getCode() + ": " + error.getMessage();
+          errors.put(error.getKey(), message);
+          failures.add(new S3Failure("s3://" + bucket + "/" + error.getKey(), message));
+        }
+      }
+      // S3 deletes the batch as one request, every key is reported with its duration
+      long duration = System.nanoTime() - started;
+      for (KeyVersion key : batch) {
+        String error = errors.get(key.getKey());
+        if (error == null) {
+          stats.objectDone();
+        }
+        output.result("delete", "s3://" + bucket + "/" + key.getKey(), 0L, duration, error == null ? S3Output.OK : S3Output.FAILED, error);
+      }
+    }
+    return failures;
+  }
+
+  @Override
+  public void deleteLocal(Path path) {
+    output.message("Deleting " + path);
+    long start = System.nanoTime();
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      output.result("delete", path.toString(), 0L, System.nanoTime() - start, S3Output.FAILED, String.valueOf(e.getMessage()));
+      throw new RuntimeException("Unable to delete: " + path.toAbsolutePath().toString(), e);
+    }
+    stats.objectDone();
+    output.result("delete", path.toString(), 0L, System.nanoTime() - start, S3Output.OK, null);
+  }
+
+  @Override
+  public void skip(String object, String reason) {
+    output.message("Skipping " + object + ", " + reason);
+    output.result("skip", object, 0L, 0L, S3Output.SKIPPED, null);
+  }
+
+  @Override
+  public void failed(String object, String error) {
+    output.message("Failed " + object + ": " + error);
+    output.result("fail", object, 0L, 0L, S3Output.FAILED, error);
   }
 }
@@ -0,0 +1,275 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Everything a command prints about the objects it works on. Threads hand lines to a lock-free queue and a single writer thread drains it
+ * into a buffered stream, flushing only when the queue runs empty, so transfers never wait on the console. The writer also owns the
+ * progress status line, which it clears before printing a line and redraws at a fixed rate. The line is only redrawn on a terminal,
+ * as carriage returns would fill a log or pipe with every redraw, otherwise the final status alone is printed when the output is closed.
+ * <p>
+ * In {@link Format#TEXT} messages such as "Uploading ..." and the progress line are printed. {@link Format#JSONL} prints one JSON object per
+ * finished object instead and {@link Format#QUIET} prints nothing. A command working on many objects reports each one that failed after
+ * the others have finished, as a message or as a JSON object with the status {@link #FAILED}.
+ */
+public final class S3Output implements AutoCloseable {
+
+  public enum Format {
+    TEXT,
+    JSONL,
+    QUIET;
+
+    public static Format parse(String value) {
+      for (Format format : values()) {
+        if (format.name().equalsIgnoreCase(value)) {
+          return format;
+        }
+      }
+      throw new IllegalArgumentException("Unsupported output format: " + value);
+    }
+  }
+
+  public static final String OK = "ok";
+  public static final String FAILED = "failed";
+  public static final String SKIPPED = "skipped";
+
+  static final long REFRESH_MILLIS = 500L;
+  private static final int CAPACITY = 10000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long FULL_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100L);
+
+  private final Format format;
+  private final boolean redrawStatus;
+  private final Writer writer;
+  private final Queue<String> lines = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final Thread thread;
+  private volatile boolean waiting = false;
+  private volatile boolean closed = false;
+  private volatile S3ProgressMonitor progress;
+  private int statusLength = 0;
+
+  /**
+   * @param out is flushed but not closed
+   */
+  public S3Output(OutputStream out, Format format) {
+    this(out, format, System.console() != null);
+  }
+
+  /**
+   * @param out is flushed but not closed
+   * @param redrawStatus whether the progress status line is redrawn while the command runs
+   */
+  public S3Output(OutputStream out, Format format, boolean redrawStatus) {
+    this.format = format;
+    this.redrawStatus = redrawStatus;
+    writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+    thread = new Thread(this::drain, "s3-output");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public Format getFormat() {
+    return format;
+  }
+
+  /**
+   * Redraws the status of a progress monitor below the messages once its first transfer has started. Only in {@link Format#TEXT}.
+   */
+  public void showProgress(S3ProgressMonitor progress) {
+    if (format == Format.TEXT) {
+      this.progress = progress;
+    }
+  }
+
+  /**
+   * Prints a message for a person watching the command, only in {@link Format#TEXT}.
+   */
+  public void message(String message) {
+    if (format == Format.TEXT) {
+      enqueue(message);
+    }
+  }
+
+  /**
+   * Records the outcome of an operation on one object, only in {@link Format#JSONL}.
+   *
+   * @param operation what was done, such as upload or delete
+   * @param object the S3 URL or local path of the object
+   * @param error the failure message, null unless the status is {@link #FAILED}
+   */
+  public void result(String operation, String object, long bytes, long durationNanos, String status, String error) {
+    if (format == Format.JSONL) {
+      StringBuilder sb = new StringBuilder(128);
+      sb.append("{\"op\":");
+      quote(sb, operation);
+      sb.append(",\"key\":");
+      quote(sb, object);
+      sb.append(",\"bytes\":").append(bytes);
+      sb.append(",\"durationMs\":").append(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+      sb.append(",\"status\":");
+      quote(sb, status);
+      if (error != null) {
+        sb.append(",\"error\":");
+        quote(sb, error);
+      }
+      sb.append('}');
+      enqueue(sb.toString());
+    }
+  }
+
+  static void quote(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format("\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    sb.append('"');
+  }
+
+  // a full queue means the console cannot keep up, producers wait briefly rather than letting the backlog grow without bound
+  private void enqueue(String line) {
+    while (queued.get() >= CAPACITY && !closed) {
+      LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+    }
+    lines.add(line);
+    queued.incrementAndGet();
+    if (waiting) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void drain() {
+    long nextStatus = System.nanoTime();
+    boolean unflushed = false;
+    while (true) {
+      String line = lines.poll();
+      if (line != null) {
+        queued.decrementAndGet();
+        clearStatus();
+        write(line);
+        write("\n");
+        unflushed = true;
+        continue;
+      }
+      S3ProgressMonitor monitor = progress;
+      if (redrawStatus && monitor != null && monitor.isStarted()) {
+        long now = System.nanoTime();
+        if (now - nextStatus >= 0) {
+          monitor.sample();
+          nextStatus = now + TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS);
+          clearStatus();
+        }
+        if (statusLength == 0) {
+          drawStatus(monitor);
+          unflushed = true;
+        }
+      }
+      if (unflushed) {
+        flush();
+        unflushed = false;
+      }
+      if (closed && lines.isEmpty()) {
+        return;
+      }
+      waiting = true;
+      if (lines.isEmpty() && !closed) {
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS));
+      }
+      waiting = false;
+    }
+  }
+
+  private void clearStatus() {
+    if (statusLength > 0) {
+      StringBuilder sb = new StringBuilder(statusLength + 2);
+      sb.append('\r');
+      for (int i = 0; i < statusLength; i++) {
+        sb.append(' ');
+      }
+      sb.append('\r');
+      write(sb.toString());
+      statusLength = 0;
+    }
+  }
+
+  private void drawStatus(S3ProgressMonitor monitor) {
+    String status = monitor.status();
+    write(status);
+    statusLength = status.length();
+  }
+
+  // like System.out, a console that cannot be written to is not a reason to fail a transfer
+  private void write(String text) {
+    try {
+      writer.write(text);
+    } catch (IOException e) {
+      // nothing more can be reported
+    }
+  }
+
+  private void flush() {
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      // nothing more can be reported
+    }
+  }
+
+  /**
+   * Prints everything queued, then the final progress status on its own line.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    S3ProgressMonitor monitor = progress;
+    if (monitor != null && monitor.isStarted()) {
+      monitor.sample();
+      clearStatus();
+      drawStatus(monitor);
+      write("\n");
+    }
+    flush();
+  }
+}
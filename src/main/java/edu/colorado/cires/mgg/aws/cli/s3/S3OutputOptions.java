@@ -0,0 +1,32 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.OutputStream;
+import picocli.CommandLine.Option;
+
+public class S3OutputOptions {
+
+  @Option(names = {"-q", "--quiet"}, description = "Print nothing but failures, which are printed on standard error.")
+  private boolean quiet = false;
+
+  @Option(names = {"--output"}, description = "text to print progress for a person, or jsonl to print one JSON object per object with its key, bytes, duration and status. Default: ${DEFAULT-VALUE}")
+  private String output = "text";
+
+  @Option(names = {"--progress"}, description = "Redraw the progress line even when standard output is not a terminal.")
+  private boolean progress = false;
+
+  public S3Output.Format getFormat() {
+    return quiet ? S3Output.Format.QUIET : S3Output.Format.parse(output);
+  }
+
+  public S3TransferConfig apply(S3TransferConfig config) {
+    return config.withProgressBar(getFormat() == S3Output.Format.TEXT);
+  }
+
+  public S3Output createOutput() {
+    return createOutput(System.out);
+  }
+
+  public S3Output createOutput(OutputStream out) {
+    return progress ? new S3Output(out, getFormat(), true) : new S3Output(out, getFormat());
+  }
+}
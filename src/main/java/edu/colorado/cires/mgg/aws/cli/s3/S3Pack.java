@@ -0,0 +1,344 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Small files packed into tar archives, so a tree of many tiny files is uploaded as a few objects.
+ * <p>
+ * The archives of one upload are written under a .s3pack/ directory in the target prefix, named by a timestamp of the upload and a
+ * number, each next to an index object of the same name. An index has one line per member: the member's path relative to the target
+ * prefix, the archive's name in the .s3pack/ directory, and the offset and length of the member's data in the archive, separated by
+ * tabs. A member is read back with a ranged GET of its data alone. A later upload's index overrides the members of an earlier one.
+ */
+public final class S3Pack {
+
+  public static final String DIRECTORY = ".s3pack/";
+
+  private static final String ARCHIVE_SUFFIX = ".tar";
+  private static final String INDEX_SUFFIX = ".index";
+  private static final String INDEX_HEADER = "# s3pack 1";
+  private static final DateTimeFormatter RUN_ID = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'").withZone(ZoneOffset.UTC);
+
+  private static final int BLOCK_SIZE = 512;
+  private static final int NAME_LENGTH = 100;
+  // the end of an archive is two empty blocks
+  private static final int END_LENGTH = 2 * BLOCK_SIZE;
+
+  private S3Pack() {
+
+  }
+
+  /**
+   * A file in an archive.
+   */
+  public static final class Member {
+
+    private final String path;
+    private final Path file;
+    private final long size;
+    private final long lastModified;
+    private String archive;
+    private long offset;
+
+    private Member(String path, Path file, long size, long lastModified, String archive, long offset) {
+      this.path = path;
+      this.file = file;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.archive = archive;
+      this.offset = offset;
+    }
+
+    /**
+     * @return the path relative to the pack's prefix, with / separators
+     */
+    public String getPath() {
+      return path;
+    }
+
+    /**
+     * @return the local file, null for a member read from an index
+     */
+    public Path getFile() {
+      return file;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the name of the archive in the .s3pack/ directory
+     */
+    public String getArchive() {
+      return archive;
+    }
+
+    /**
+     * @return the offset of the data in the archive, known once the archive has been written
+     */
+    public long getOffset() {
+      return offset;
+    }
+
+    // the bytes this member adds to an archive
+    long getArchiveLength() {
+      byte[] name = path.getBytes(StandardCharsets.UTF_8);
+      long headers = name.length > NAME_LENGTH ? 2 * BLOCK_SIZE + padded(paxRecord(path).length) : BLOCK_SIZE;
+      return headers + padded(size);
+    }
+  }
+
+  /**
+   * @param file a file found by a walk, its key is the path relative to the pack's prefix and its size and modification time are used
+   *     as the walk read them
+   * @return the file as a member, or null if it is larger than the largest size packed or its path cannot be written to the index
+   */
+  public static Member member(S3LocalFile file, long maxSize) {
+    String name = file.getKey();
+    if (name.isEmpty() || name.indexOf('\t') != -1 || name.indexOf('\n') != -1 || name.indexOf('\r') != -1
+        || file.getSize() > maxSize) {
+      return null;
+    }
+    return new Member(name, file.getPath(), file.getSize(), file.getLastModified(), null, -1L);
+  }
+
+  /**
+   * @return a sortable name for a new upload, later uploads sort after earlier ones
+   */
+  public static String newRunId() {
+    return RUN_ID.format(Instant.now());
+  }
+
+  /**
+   * @param prefix the pack's prefix, empty or ending with /
+   */
+  public static String archiveKey(String prefix, String runId, int number) {
+    return prefix + DIRECTORY + runId + "-" + number + ARCHIVE_SUFFIX;
+  }
+
+  /**
+   * @param prefix the pack's prefix, empty or ending with /
+   */
+  public static String indexKey(String prefix, String runId, int number) {
+    return prefix + DIRECTORY + runId + "-" + number + INDEX_SUFFIX;
+  }
+
+  /**
+   * @return true if the key is an archive or index in a .s3pack/ directory
+   */
+  public static boolean isPacked(String key) {
+    return key.startsWith(DIRECTORY) || key.contains("/" + DIRECTORY);
+  }
+
+  public static boolean isIndex(String key) {
+    return isPacked(key) && key.endsWith(INDEX_SUFFIX);
+  }
+
+  /**
+   * @return the prefix of the pack an archive or index belongs to, empty or ending with /
+   */
+  public static String prefixOf(String key) {
+    int directory = key.startsWith(DIRECTORY) ? 0 : key.lastIndexOf("/" + DIRECTORY) + 1;
+    return key.substring(0, directory);
+  }
+
+  /**
+   * Writes the members as a tar archive while it is read, setting each member's archive and the offset of its data. Files are read
+   * one at a time as the archive reaches them.
+   */
+  public static InputStream tar(List<Member> members, String archive) {
+    return new TarInputStream(members, archive);
+  }
+
+  /**
+   * @return the index of members that have been written to archives
+   */
+  public static byte[] index(List<Member> members) {
+    StringBuilder index = new StringBuilder(INDEX_HEADER).append('\n');
+    for (Member member : members) {
+      index.append(member.path).append('\t')
+          .append(member.archive).append('\t')
+          .append(member.offset).append('\t')
+          .append(member.size).append('\n');
+    }
+    return index.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static List<Member> readIndex(byte[] index) {
+    List<Member> members = new ArrayList<>();
+    for (String line : new String(index, StandardCharsets.UTF_8).split("\n")) {
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\t");
+      try {
+        if (fields.length != 4) {
+          throw new NumberFormatException();
+        }
+        members.add(new Member(fields[0], null, Long.parseLong(fields[3]), 0L, fields[1], Long.parseLong(fields[2])));
+      } catch (NumberFormatException e) {
+        throw new RuntimeException("Invalid pack index line: " + line);
+      }
+    }
+    return members;
+  }
+
+  private static long padded(long length) {
+    return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+  }
+
+  // a pax extended header record holding a path too long for the ustar name field, its length counts its own digits
+  private static byte[] paxRecord(String path) {
+    int length = (" path=" + path + "\n").getBytes(StandardCharsets.UTF_8).length;
+    int digits = Integer.toString(length).length();
+    if (Integer.toString(length + digits).length() > digits) {
+      digits++;
+    }
+    return ((length + digits) + " path=" + path + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  // the headers of a member, a pax header and its record first if the path is too long for ustar
+  private static byte[] headers(Member member) {
+    byte[] name = member.path.getBytes(StandardCharsets.UTF_8);
+    byte[] header = header(name, member.size, member.lastModified / 1000L, '0');
+    if (name.length <= NAME_LENGTH) {
+      return header;
+    }
+    byte[] record = paxRecord(member.path);
+    byte[] pax = header(("PaxHeaders/" + member.path).getBytes(StandardCharsets.UTF_8), record.length, member.lastModified / 1000L, 'x');
+    byte[] headers = new byte[(int) (BLOCK_SIZE + padded(record.length) + BLOCK_SIZE)];
+    System.arraycopy(pax, 0, headers, 0, BLOCK_SIZE);
+    System.arraycopy(record, 0, headers, BLOCK_SIZE, record.length);
+    System.arraycopy(header, 0, headers, headers.length - BLOCK_SIZE, BLOCK_SIZE);
+    return headers;
+  }
+
+  // a ustar header, a name too long for it is cut short
+  private static byte[] header(byte[] name, long size, long mtime, char type) {
+    byte[] header = new byte[BLOCK_SIZE];
+    System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+    octal(header, 100, 8, 0644);
+    octal(header, 108, 8, 0);
+    octal(header, 116, 8, 0);
+    octal(header, 124, 12, size);
+    octal(header, 136, 12, Math.max(0L, mtime));
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    header[156] = (byte) type;
+    System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+    long checksum = 0L;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    octal(header, 148, 7, checksum);
+    return header;
+  }
+
+  // zero padded octal digits ending in a NUL
+  private static void octal(byte[] header, int offset, int length, long value) {
+    String digits = Long.toOctalString(value);
+    if (digits.length() > length - 1) {
+      throw new IllegalArgumentException("Value too large for tar header: " + value);
+    }
+    for (int i = 0; i < length - 1; i++) {
+      int digit = i - (length - 1 - digits.length());
+      header[offset + i] = (byte) (digit < 0 ? '0' : digits.charAt(digit));
+    }
+    header[offset + length - 1] = 0;
+  }
+
+  private static final class TarInputStream extends InputStream {
+
+    private final List<Member> members;
+    private final String archive;
+    private int next = 0;
+    private boolean ended = false;
+    private long position = 0L;
+    private byte[] pending = new byte[0];
+    private int pendingPosition = 0;
+    private Member member;
+    private InputStream file;
+    private long fileRemaining;
+
+    private TarInputStream(List<Member> members, String archive) {
+      this.members = members;
+      this.archive = archive;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] bytes = new byte[1];
+      return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        if (pendingPosition < pending.length) {
+          int count = Math.min(len, pending.length - pendingPosition);
+          System.arraycopy(pending, pendingPosition, bytes, off, count);
+          pendingPosition += count;
+          position += count;
+          return count;
+        }
+        if (file != null) {
+          if (fileRemaining > 0L) {
+            int count = file.read(bytes, off, (int) Math.min(len, fileRemaining));
+            if (count == -1) {
+              throw new IOException("File changed while packing: " + member.file);
+            }
+            fileRemaining -= count;
+            position += count;
+            return count;
+          }
+          boolean longer = file.read() != -1;
+          file.close();
+          file = null;
+          if (longer) {
+            throw new IOException("File changed while packing: " + member.file);
+          }
+          setPending(new byte[(int) (padded(member.size) - member.size)]);
+        } else if (next < members.size()) {
+          member = members.get(next++);
+          byte[] headers = headers(member);
+          member.archive = archive;
+          member.offset = position + headers.length;
+          setPending(headers);
+          file = Files.newInputStream(member.file);
+          fileRemaining = member.size;
+        } else if (!ended) {
+          ended = true;
+          setPending(new byte[END_LENGTH]);
+        } else {
+          return -1;
+        }
+      }
+    }
+
+    private void setPending(byte[] bytes) {
+      pending = bytes;
+      pendingPosition = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (file != null) {
+        file.close();
+        file = null;
+      }
+    }
+  }
+}
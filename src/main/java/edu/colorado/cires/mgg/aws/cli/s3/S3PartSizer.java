@@ -0,0 +1,93 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chooses the part size of multipart uploads and ranged downloads. A fixed part size is only raised as far as the 10,000 part limit
+ * requires. In automatic mode a part is sized to take about {@link #TARGET_PART_SECONDS} on one connection at the throughput measured
+ * from the parts transferred so far, but never so large that an object has fewer parts than there are transfer threads. Until a
+ * throughput has been measured an object is split into about {@link #INITIAL_PARTS_PER_THREAD} parts per thread, so a large object
+ * does not start with thousands of minimum sized parts.
+ */
+final class S3PartSizer {
+
+  static final long MIN_PART_SIZE = 5L * 1024L * 1024L;
+  static final long MAX_PART_SIZE = 5L * 1024L * 1024L * 1024L;
+  static final int MAX_PARTS = 10000;
+  // the part size used until a throughput has been measured, the smallest for an object of known size
+  static final long INITIAL_PART_SIZE = 8L * 1024L * 1024L;
+  static final int INITIAL_PARTS_PER_THREAD = 16;
+  // a failed part is sent again whole, so the guess stays well below the largest part size
+  static final long MAX_INITIAL_PART_SIZE = 256L * 1024L * 1024L;
+  static final long TARGET_PART_SECONDS = 4L;
+  private static final long ALIGNMENT = 1024L * 1024L;
+
+  private final long partSize;
+  private final int threads;
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+
+  /**
+   * @param partSize the part size, or {@link S3TransferConfig#AUTO_PART_SIZE} to choose it from the object size and throughput
+   * @param threads the number of transfer threads the parts of an object are spread across
+   */
+  S3PartSizer(long partSize, int threads) {
+    this.partSize = partSize;
+    this.threads = threads;
+  }
+
+  /**
+   * @return the smallest part size that keeps an object of the given size within the part limit
+   */
+  static long minimumPartSize(long size) {
+    return Math.max(MIN_PART_SIZE, (size + MAX_PARTS - 1) / MAX_PARTS);
+  }
+
+  /**
+   * Records a part transferred over one connection.
+   */
+  void record(long partBytes, long partNanos) {
+    if (partBytes > 0 && partNanos > 0) {
+      bytes.add(partBytes);
+      nanos.add(partNanos);
+    }
+  }
+
+  /**
+   * @return the throughput of one connection in bytes per second, or 0 if no part has been recorded
+   */
+  long getConnectionBytesPerSecond() {
+    long elapsed = nanos.sum();
+    return elapsed == 0L ? 0L : (long) (bytes.sum() * 1e9 / elapsed);
+  }
+
+  long partSize(long size) {
+    long minimum = minimumPartSize(size);
+    if (partSize != S3TransferConfig.AUTO_PART_SIZE) {
+      return Math.max(partSize, minimum);
+    }
+    long rate = getConnectionBytesPerSecond();
+    long target = rate == 0L ? initialPartSize(size) : Math.max(MIN_PART_SIZE, rate * TARGET_PART_SECONDS);
+    return align(Math.max(Math.min(target, (size + threads - 1) / threads), minimum));
+  }
+
+  private long initialPartSize(long size) {
+    long perThread = size / ((long) Math.max(1, threads) * INITIAL_PARTS_PER_THREAD);
+    return Math.min(Math.max(INITIAL_PART_SIZE, perThread), MAX_INITIAL_PART_SIZE);
+  }
+
+  /**
+   * @return the part size for an object of unknown length, such as a stream
+   */
+  long streamPartSize() {
+    if (partSize != S3TransferConfig.AUTO_PART_SIZE) {
+      return partSize;
+    }
+    long rate = getConnectionBytesPerSecond();
+    return align(Math.max(MIN_PART_SIZE, rate == 0L ? INITIAL_PART_SIZE : rate * TARGET_PART_SECONDS));
+  }
+
+  private static long align(long size) {
+    return Math.min((size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT, MAX_PART_SIZE);
+  }
+}
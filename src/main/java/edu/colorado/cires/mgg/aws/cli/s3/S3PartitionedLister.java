@@ -0,0 +1,328 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists a prefix with several LIST cursors at once. The common prefixes found with a "/" delimiter become partitions that are listed
+ * concurrently, descending a few levels when a level is a single page with fewer common prefixes than threads.
+ * <p>
+ * Discovery runs on its own thread and lists each level a page at a time in key order, so a partition is listed as soon as it is found
+ * and the keys directly under a level are streamed like any other page. A prefix without common prefixes is listed as a single cursor,
+ * never held in memory.
+ * <p>
+ * Unordered, pages are handed to the consumer as soon as any cursor returns them. Ordered, discovery hands the consumer its keys and
+ * partitions in key order and each partition has its own small queue, so the output matches a single ListObjectsV2 cursor while later
+ * partitions are listed ahead. Partitions are listed in the order they are found, so the one being read has always been started.
+ */
+final class S3PartitionedLister implements S3ObjectIterator {
+
+  private static final String DELIMITER = "/";
+  private static final int MAX_DEPTH = 3;
+
+  private final AmazonS3 s3;
+  private final String bucket;
+  private final int pageSize;
+  private final int prefetchPages;
+  private final int parallelism;
+  private final boolean ordered;
+  private final S3Stats stats;
+  private final ExecutorService executor;
+  private final Thread discoverer;
+  // ordered, the keys and partitions found in key order
+  private final BlockingQueue<Item> items;
+  // unordered, pages from discovery and every partition
+  private final BlockingQueue<Page> shared;
+
+  // partitions found, only used by the discovery thread
+  private int discoveredPartitions = 0;
+  private Item currentPartition = null;
+  private boolean ended = false;
+  private int expectedPartitions = -1;
+  private int finishedPartitions = 0;
+  private Iterator<S3ObjectSummary> current = Collections.emptyIterator();
+  private volatile boolean closed = false;
+
+  S3PartitionedLister(AmazonS3 s3, String bucket, String prefix, int pageSize, int prefetchPages, int parallelism, boolean ordered) {
+    this(s3, bucket, prefix, pageSize, prefetchPages, parallelism, ordered, new S3Stats());
+  }
+
+  S3PartitionedLister(AmazonS3 s3, String bucket, String prefix, int pageSize, int prefetchPages, int parallelism, boolean ordered,
+      S3Stats stats) {
+    this.s3 = s3;
+    this.stats = stats;
+    this.bucket = bucket;
+    this.pageSize = pageSize;
+    this.prefetchPages = Math.max(1, prefetchPages);
+    this.parallelism = Math.max(1, parallelism);
+    this.ordered = ordered;
+    items = ordered ? new ArrayBlockingQueue<>(this.prefetchPages + this.parallelism) : null;
+    shared = ordered ? null : new ArrayBlockingQueue<>(this.prefetchPages * (this.parallelism + 1));
+    AtomicInteger count = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(this.parallelism, r -> {
+      Thread thread = new Thread(r, "s3-list-" + bucket + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    discoverer = new Thread(() -> discoverAll(prefix), "s3-list-" + bucket + "-discover");
+    discoverer.setDaemon(true);
+    discoverer.start();
+  }
+
+  private void discoverAll(String prefix) {
+    try {
+      try {
+        discover(prefix, 0);
+        end(null);
+      } catch (RuntimeException | Error e) {
+        end(e);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void end(Throwable error) throws InterruptedException {
+    if (ordered) {
+      items.put(new Item(null, null, error, true));
+    } else {
+      shared.put(new Page(Collections.emptyList(), error, true, discoveredPartitions));
+    }
+  }
+
+  /*
+   * Lists a level with the delimiter a page at a time. A key never starts with a sibling common prefix, so comparing a key to a prefix
+   * orders it against every key in that partition, and sorting the keys and prefixes of a page together keeps key order.
+   */
+  private void discover(String prefix, int depth) throws InterruptedException {
+    ListObjectsV2Request request = new ListObjectsV2Request()
+        .withBucketName(bucket)
+        .withPrefix(prefix)
+        .withDelimiter(DELIMITER)
+        .withMaxKeys(pageSize);
+    request.setGeneralProgressListener(stats.listener());
+    ListObjectsV2Result result;
+    boolean first = true;
+    do {
+      result = stats.time(S3Stats.Operation.LIST, () -> s3.listObjectsV2(request));
+      // only a level that fits in one page is known to be small enough to be worth descending into
+      boolean descend = first && !result.isTruncated() && depth + 1 < MAX_DEPTH && result.getCommonPrefixes().size() < parallelism;
+      first = false;
+      List<Object> entries = new ArrayList<>(result.getObjectSummaries());
+      entries.addAll(result.getCommonPrefixes());
+      entries.sort((a, b) -> S3Utils.compareKeys(sortKey(a), sortKey(b)));
+      List<S3ObjectSummary> keys = new ArrayList<>();
+      for (Object entry : entries) {
+        if (entry instanceof S3ObjectSummary) {
+          keys.add((S3ObjectSummary) entry);
+          continue;
+        }
+        keys = emitKeys(keys);
+        if (descend) {
+          discover((String) entry, depth + 1);
+        } else {
+          emitPartition((String) entry);
+        }
+      }
+      emitKeys(keys);
+      request.setContinuationToken(result.getNextContinuationToken());
+    } while (result.isTruncated() && !closed);
+  }
+
+  private static String sortKey(Object entry) {
+    return entry instanceof S3ObjectSummary ? ((S3ObjectSummary) entry).getKey() : (String) entry;
+  }
+
+  // hands over keys found directly under a level, returning a list for the keys that follow
+  private List<S3ObjectSummary> emitKeys(List<S3ObjectSummary> keys) throws InterruptedException {
+    if (keys.isEmpty()) {
+      return keys;
+    }
+    if (ordered) {
+      items.put(new Item(keys, null, null, false));
+    } else {
+      shared.put(new Page(keys, null, false, -1));
+    }
+    return new ArrayList<>();
+  }
+
+  private void emitPartition(String prefix) throws InterruptedException {
+    Item partition = new Item(null, prefix, null, false);
+    if (ordered) {
+      items.put(partition);
+    }
+    discoveredPartitions++;
+    executor.execute(() -> listPartition(partition));
+  }
+
+  private void listPartition(Item partition) {
+    if (closed) {
+      return;
+    }
+    BlockingQueue<Page> queue = ordered ? partition.pages : shared;
+    try {
+      try {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+            .withBucketName(bucket)
+            .withPrefix(partition.prefix)
+            .withMaxKeys(pageSize);
+        request.setGeneralProgressListener(stats.listener());
+        ListObjectsV2Result result;
+        do {
+          result = stats.time(S3Stats.Operation.LIST, () -> s3.listObjectsV2(request));
+          queue.put(new Page(result.getObjectSummaries(), null, false, -1));
+          request.setContinuationToken(result.getNextContinuationToken());
+        } while (result.isTruncated() && !closed);
+        queue.put(new Page(Collections.emptyList(), null, true, -1));
+      } catch (RuntimeException | Error e) {
+        queue.put(new Page(Collections.emptyList(), e, true, -1));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!current.hasNext()) {
+      if (ordered) {
+        if (!advanceOrdered()) {
+          return false;
+        }
+      } else if (!advanceUnordered()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean advanceOrdered() {
+    if (currentPartition != null) {
+      Page page = take(currentPartition.pages);
+      if (page.last) {
+        currentPartition = null;
+      }
+      current = page.objects.iterator();
+      return true;
+    }
+    if (ended) {
+      return false;
+    }
+    Item item;
+    try {
+      item = items.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    rethrow(item.error);
+    if (item.end) {
+      ended = true;
+      return false;
+    }
+    if (item.prefix == null) {
+      current = item.objects.iterator();
+    } else {
+      currentPartition = item;
+    }
+    return true;
+  }
+
+  private boolean advanceUnordered() {
+    if (expectedPartitions == finishedPartitions) {
+      return false;
+    }
+    Page page = take(shared);
+    if (page.partitions >= 0) {
+      expectedPartitions = page.partitions;
+    } else if (page.last) {
+      finishedPartitions++;
+    }
+    current = page.objects.iterator();
+    return true;
+  }
+
+  private static Page take(BlockingQueue<Page> queue) {
+    Page page;
+    try {
+      page = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    rethrow(page.error);
+    return page;
+  }
+
+  private static void rethrow(Throwable error) {
+    if (error instanceof Error) {
+      throw (Error) error;
+    }
+    if (error != null) {
+      throw (RuntimeException) error;
+    }
+  }
+
+  @Override
+  public S3ObjectSummary next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return current.next();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    discoverer.interrupt();
+    executor.shutdownNow();
+  }
+
+  /**
+   * Keys found directly under a level, a partition, or the end of discovery.
+   */
+  private final class Item {
+
+    private final List<S3ObjectSummary> objects;
+    private final String prefix;
+    private final Throwable error;
+    private final boolean end;
+    private final BlockingQueue<Page> pages;
+
+    private Item(List<S3ObjectSummary> objects, String prefix, Throwable error, boolean end) {
+      this.objects = objects;
+      this.prefix = prefix;
+      this.error = error;
+      this.end = end;
+      pages = prefix != null && ordered ? new ArrayBlockingQueue<>(prefetchPages) : null;
+    }
+  }
+
+  private static final class Page {
+
+    private final List<S3ObjectSummary> objects;
+    private final Throwable error;
+    private final boolean last;
+    // on the last page of discovery the number of partitions found, otherwise -1
+    private final int partitions;
+
+    private Page(List<S3ObjectSummary> objects, Throwable error, boolean last, int partitions) {
+      this.objects = objects;
+      this.error = error;
+      this.last = last;
+      this.partitions = partitions;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.SyncProgressListener;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregate progress of every transfer made by a command. Transfers report bytes through {@link #listener()} or
+ * {@link #transferred(long)} and only touch lock-free counters, so progress costs the transfers nothing and works for any number of
+ * concurrent transfers.
+ * <p>
+ * {@link #status()} summarizes the objects finished, bytes transferred, throughput and estimated time left, for {@link S3Output} to
+ * redraw at a fixed rate. The totals cover the transfers started so far, a recursive command finds its objects as it goes.
+ */
+public final class S3ProgressMonitor implements S3TransferProgress {
+
+  private static final double SMOOTHING = 0.2;
+
+  private final LongAdder objectsStarted = new LongAdder();
+  private final LongAdder objectsDone = new LongAdder();
+  private final LongAdder objectsFailed = new LongAdder();
+  private final LongAdder bytesTotal = new LongAdder();
+  private final LongAdder bytesTransferred = new LongAdder();
+  private final ProgressListener listener = new SyncProgressListener() {
+    @Override
+    public void progressChanged(ProgressEvent event) {
+      S3ProgressMonitor.this.progressChanged(event);
+    }
+  };
+  private long lastNanos = System.nanoTime();
+  private long lastBytes;
+  private volatile double bytesPerSecond = 0.0;
+
+  /**
+   * @return a listener for SDK requests that counts the bytes they send or receive, taking back bytes resent after a retry
+   */
+  public ProgressListener listener() {
+    return listener;
+  }
+
+  private void progressChanged(ProgressEvent event) {
+    switch (event.getEventType()) {
+      case REQUEST_BYTE_TRANSFER_EVENT:
+      case RESPONSE_BYTE_TRANSFER_EVENT:
+        bytesTransferred.add(event.getBytes());
+        break;
+      case HTTP_REQUEST_CONTENT_RESET_EVENT:
+      case HTTP_RESPONSE_CONTENT_RESET_EVENT:
+      case RESPONSE_BYTE_DISCARD_EVENT:
+        bytesTransferred.add(-event.getBytes());
+        break;
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Counts a transfer of the given number of bytes as started.
+   */
+  public void started(long size) {
+    objectsStarted.increment();
+    bytesTotal.add(size);
+  }
+
+  /**
+   * Adds bytes to the total, for a transfer whose size is only known as it is read.
+   */
+  public void grow(long bytes) {
+    bytesTotal.add(bytes);
+  }
+
+  public void transferred(long bytes) {
+    bytesTransferred.add(bytes);
+  }
+
+  /**
+   * Adds bytes to both the total and the transferred count, for work whose size is only known once it is done.
+   */
+  public void completedBytes(long bytes) {
+    bytesTotal.add(bytes);
+    bytesTransferred.add(bytes);
+  }
+
+  public void finished(boolean success) {
+    if (success) {
+      objectsDone.increment();
+    } else {
+      objectsFailed.increment();
+    }
+  }
+
+  /**
+   * Updates the throughput from the bytes transferred since the previous sample. Called at a fixed rate by the one thread rendering
+   * progress.
+   */
+  synchronized void sample() {
+    long now = System.nanoTime();
+    long bytes = bytesTransferred.sum();
+    if (now > lastNanos) {
+      double rate = (bytes - lastBytes) * 1e9 / (now - lastNanos);
+      bytesPerSecond = bytesPerSecond == 0.0 ? rate : bytesPerSecond + SMOOTHING * (rate - bytesPerSecond);
+    }
+    lastNanos = now;
+    lastBytes = bytes;
+  }
+
+  boolean isStarted() {
+    return objectsStarted.sum() > 0;
+  }
+
+  String status() {
+    long total = bytesTotal.sum();
+    long bytes = Math.min(total, Math.max(0L, bytesTransferred.sum()));
+    StringBuilder sb = new StringBuilder();
+    sb.append(objectsDone.sum()).append('/').append(objectsStarted.sum()).append(" objects");
+    long failed = objectsFailed.sum();
+    if (failed > 0) {
+      sb.append(", ").append(failed).append(" failed");
+    }
+    sb.append("  ").append(formatBytes(bytes)).append(" / ").append(formatBytes(total));
+    double rate = bytesPerSecond;
+    sb.append("  ").append(formatBytes((long) rate)).append("/s");
+    sb.append("  ETA ").append(rate < 1.0 ? "--:--" : formatDuration((long) ((total - bytes) / rate)));
+    return sb.toString();
+  }
+
+  static String formatBytes(long bytes) {
+    if (bytes < 1024L) {
+      return bytes + " B";
+    }
+    String[] units = {"KiB", "MiB", "GiB", "TiB", "PiB", "EiB"};
+    double value = bytes;
+    int unit = -1;
+    while (value >= 1024.0 && unit < units.length - 1) {
+      value /= 1024.0;
+      unit++;
+    }
+    return String.format("%.1f %s", value, units[unit]);
+  }
+
+  static String formatDuration(long seconds) {
+    long hours = seconds / 3600L;
+    long minutes = seconds / 60L % 60L;
+    long secs = seconds % 60L;
+    return hours > 0 ? String.format("%d:%02d:%02d", hours, minutes, secs) : String.format("%d:%02d", minutes, secs);
+  }
+
+  @Override
+  public long getTotalBytesToTransfer() {
+    return bytesTotal.sum();
+  }
+
+  @Override
+  public long getBytesTransferred() {
+    return bytesTransferred.sum();
+  }
+
+  public long getObjectsDone() {
+    return objectsDone.sum();
+  }
+
+  public long getObjectsFailed() {
+    return objectsFailed.sum();
+  }
+}
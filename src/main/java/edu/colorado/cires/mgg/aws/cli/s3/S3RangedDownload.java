@@ -0,0 +1,255 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads an object as byte ranges fetched in parallel. The target file is allocated at its full size up front and every range is
+ * written at its own offset, so ranges can complete in any order.
+ * <p>
+ * A sidecar file next to the target records the object's ETag, size and range size followed by the index of each range once it is on
+ * disk. A later download of the same object version fetches only the ranges missing from the sidecar, keeping the range size recorded in
+ * it, and the sidecar is deleted when the download completes.
+ * <p>
+ * With a checksum each range is checksummed from the bytes as they are written, and ranges found already downloaded are checksummed
+ * from the file.
+ */
+final class S3RangedDownload implements AutoCloseable {
+
+  static final String SIDECAR_SUFFIX = ".s3download";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final AmazonS3 s3;
+  private final String bucket;
+  private final String key;
+  private final Path target;
+  private final Path sidecar;
+  private final long size;
+  private final String eTag;
+  private final S3PartSizer partSizer;
+  private long rangeSize;
+  private int ranges;
+  private final BitSet completed = new BitSet();
+  private final LongConsumer progress;
+  private final S3Stats stats;
+  private FileChannel channel;
+  private Writer sidecarWriter;
+  private S3Checksum.Algorithm checksum;
+  private long checksumRangeSize;
+  private S3Checksum.Digest[] digests;
+
+  /**
+   * @param partSizer chooses the range size of a new download and is given the time taken by each range
+   * @param progress is given the number of bytes written as they are written, and the size of ranges found already downloaded
+   * @param stats records the time to fetch each range as a GET
+   */
+  S3RangedDownload(AmazonS3 s3, String bucket, String key, Path target, long size, String eTag, S3PartSizer partSizer, LongConsumer progress,
+      S3Stats stats) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.key = key;
+    this.target = target;
+    this.sidecar = target.resolveSibling(String.valueOf(target.getFileName()) + SIDECAR_SUFFIX);
+    this.size = size;
+    this.eTag = eTag;
+    this.partSizer = partSizer;
+    this.progress = progress;
+    this.stats = stats;
+  }
+
+  private void setRangeSize(long rangeSize) {
+    this.rangeSize = rangeSize;
+    ranges = (int) ((size + rangeSize - 1) / rangeSize);
+  }
+
+  /**
+   * Checksums every range, called before {@link #start(Executor)}.
+   *
+   * @param rangeSize the range size a checksum that depends on how the object is split was computed with, or 0 to choose it as usual.
+   *     A download in the sidecar with a different range size starts over.
+   */
+  void checksum(S3Checksum.Algorithm checksum, long rangeSize) {
+    this.checksum = checksum;
+    checksumRangeSize = rangeSize;
+  }
+
+  /**
+   * @return the checksum of each range in order, once every range is written
+   */
+  List<S3Checksum.Digest> getDigests() {
+    return Arrays.asList(digests);
+  }
+
+  private String header() {
+    return eTag + "\t" + size + "\t" + rangeSize;
+  }
+
+  /**
+   * Opens the target and sidecar and submits every range not already downloaded.
+   *
+   * @return completes when all ranges are written
+   */
+  CompletableFuture<Void> start(Executor executor) {
+    try {
+      boolean resume = readSidecar() && Files.isRegularFile(target) && Files.size(target) == size
+          && (checksumRangeSize == 0L || checksumRangeSize == rangeSize);
+      if (!resume) {
+        completed.clear();
+        setRangeSize(checksumRangeSize == 0L ? partSizer.partSize(size) : checksumRangeSize);
+      }
+      digests = new S3Checksum.Digest[checksum == null ? 0 : ranges];
+      channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      if (resume) {
+        sidecarWriter = Files.newBufferedWriter(sidecar, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+      } else {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(new byte[1]), size - 1);
+        sidecarWriter = Files.newBufferedWriter(sidecar, StandardCharsets.UTF_8);
+        sidecarWriter.write(header() + "\n");
+        sidecarWriter.flush();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write file: " + target.toAbsolutePath().toString(), e);
+    }
+    List<CompletableFuture<Void>> futures = new ArrayList<>(ranges);
+    for (int i = 0; i < ranges; i++) {
+      long start = i * rangeSize;
+      long end = Math.min(size, start + rangeSize) - 1;
+      if (completed.get(i)) {
+        if (checksum != null) {
+          digests[i] = S3Checksum.digest(checksum, target, start, end - start + 1);
+        }
+        progress.accept(end - start + 1);
+      } else {
+        int range = i;
+        futures.add(CompletableFuture.runAsync(() -> stats.time(S3Stats.Operation.GET, () -> fetch(range, start, end)), executor));
+      }
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  // only lines ending in a newline count, a range whose record was cut short by a crash is fetched again
+  private boolean readSidecar() throws IOException {
+    if (!Files.isRegularFile(sidecar)) {
+      return false;
+    }
+    String content = new String(Files.readAllBytes(sidecar), StandardCharsets.UTF_8);
+    String[] lines = content.split("\n", -1);
+    String[] header = lines[0].split("\t", -1);
+    if (lines.length < 2 || header.length != 3 || !header[0].equals(eTag) || !header[1].equals(Long.toString(size))) {
+      return false;
+    }
+    try {
+      long recorded = Long.parseLong(header[2]);
+      if (recorded < 1) {
+        return false;
+      }
+      setRangeSize(recorded);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    for (int i = 1; i < lines.length - 1; i++) {
+      try {
+        int range = Integer.parseInt(lines[i]);
+        if (range >= 0 && range < ranges) {
+          completed.set(range);
+        }
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void fetch(int range, long start, long end) {
+    long startNanos = System.nanoTime();
+    GetObjectRequest request = new GetObjectRequest(bucket, key)
+        .withRange(start, end)
+        .withMatchingETagConstraint(eTag);
+    request.setGeneralProgressListener(stats.listener());
+    S3Object object = s3.getObject(request);
+    if (object == null) {
+      throw new RuntimeException("Object changed during download: s3://" + bucket + "/" + key);
+    }
+    long position = start;
+    S3Checksum.Digest digest = checksum == null ? null : S3Checksum.digest(checksum);
+    try (S3ObjectInputStream in = object.getObjectContent()) {
+      byte[] bytes = new byte[BUFFER_SIZE];
+      int read;
+      while (position <= end && (read = in.read(bytes, 0, (int) Math.min(bytes.length, end - position + 1))) != -1) {
+        if (digest != null) {
+          digest.update(bytes, 0, read);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+        progress.accept(read);
+      }
+      if (position != end + 1) {
+        throw new RuntimeException("Incomplete range " + start + "-" + end + " for s3://" + bucket + "/" + key);
+      }
+      // the range must be on disk before the sidecar says so
+      channel.force(false);
+      if (digest != null) {
+        digests[range] = digest;
+      }
+      completed(range);
+      partSizer.record(end - start + 1, System.nanoTime() - startNanos);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to download s3://" + bucket + "/" + key + " to " + target.toAbsolutePath().toString(), e);
+    }
+  }
+
+  private synchronized void completed(int range) throws IOException {
+    completed.set(range);
+    sidecarWriter.write(range + "\n");
+    sidecarWriter.flush();
+  }
+
+  /**
+   * Closes the target and removes the sidecar once every range has been written.
+   */
+  void complete() {
+    close();
+    try {
+      Files.deleteIfExists(sidecar);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to delete: " + sidecar.toAbsolutePath().toString(), e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      if (channel != null) {
+        channel.close();
+      }
+      if (sidecarWriter != null) {
+        sidecarWriter.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write file: " + target.toAbsolutePath().toString(), e);
+    } finally {
+      channel = null;
+      sidecarWriter = null;
+    }
+  }
+}
@@ -3,9 +3,14 @@ package edu.colorado.cires.mgg.aws.cli.s3;
 import com.amazonaws.services.s3.AmazonS3URI;
 import edu.colorado.cires.mgg.aws.cli.AwsCommands;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import org.apache.commons.lang3.StringUtils;
+import picocli.CommandLine.ArgGroup;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
@@ -22,20 +27,38 @@ public class S3RmCommands implements Runnable {
   @Option(names = {"-r", "--recursive"}, description = "Command is  performed  on all files or objects under the specified prefix.")
   private boolean recursive = false;
 
-  @Option(names = {"-i", "--include"}, description = "When recursive, don't exclude files or objects in the command that match the specified pattern. See https://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob")
-  private String include;
+  @ArgGroup(exclusive = true, multiplicity = "0..*")
+  private List<S3FilterRule> filterRules = new ArrayList<>();
 
-  @Option(names = {"-e", "--exclude"}, description = "When recursive, exclude all files or objects from the command that matches the specified pattern. IMPORTANT: Pay attention to the difference between '**' and '*'. Using '*' could delete more than expected.  a See https://docs.oracle.com/javase/tutorial/essential/io/fileOps.html#glob")
-  private String exclude;
+  @Option(names = {"-c", "--concurrency"}, description = "When recursive, the number of delete batches of up to 1000 objects run in parallel. Default: ${DEFAULT-VALUE}")
+  private int concurrency = 1;
+
+  @Option(names = {"--journal"}, description = "A file recording deleted objects. Running the same command again with the same journal skips them.")
+  private Path journalFile;
+
+  @Mixin
+  private S3ListOptions listOptions = new S3ListOptions();
+
+  @Mixin
+  private S3OutputOptions outputOptions = new S3OutputOptions();
+
+  @Mixin
+  private S3StatsOptions statsOptions = new S3StatsOptions();
 
   @Override
   public void run() {
-    new S3RmCommandsHandler(new S3OperationsImpl(AwsCommands.getS3()),
-        path,
-        recursive,
-        include,
-        exclude
-    ).run();
+    try (S3Output output = outputOptions.createOutput();
+        S3Journal journal = journalFile == null ? null : new S3Journal(journalFile);
+        S3OperationsImpl s3 = new S3OperationsImpl(AwsCommands.getS3(), outputOptions.apply(listOptions.apply(new S3TransferConfig())), null,
+            output)) {
+      statsOptions.run(s3.getStats(), output, () -> new S3RmCommandsHandler(s3,
+          path,
+          recursive,
+          S3Filter.compile(filterRules),
+          concurrency,
+          journal
+      ).run());
+    }
   }
 
   static class S3RmCommandsHandler {
@@ -43,16 +66,25 @@ public class S3RmCommands implements Runnable {
     private final S3Operations s3;
     private final String path;
     private final boolean recursive;
-    private final String include;
-    private final String exclude;
-
+    private final S3Filter filter;
+    private final int concurrency;
+    private final S3Journal journal;
 
     S3RmCommandsHandler(S3Operations s3, String path, boolean recursive, String include, String exclude) {
+      this(s3, path, recursive, include, exclude, 1);
+    }
+
+    S3RmCommandsHandler(S3Operations s3, String path, boolean recursive, String include, String exclude, int concurrency) {
+      this(s3, path, recursive, S3Filter.of(include, exclude), concurrency, null);
+    }
+
+    S3RmCommandsHandler(S3Operations s3, String path, boolean recursive, S3Filter filter, int concurrency, S3Journal journal) {
       this.s3 = s3;
       this.path = path;
       this.recursive = recursive;
-      this.include = include;
-      this.exclude = exclude;
+      this.filter = filter;
+      this.concurrency = concurrency;
+      this.journal = journal;
     }
 
     public void run() {
@@ -67,20 +99,60 @@ public class S3RmCommands implements Runnable {
 
       if (recursive) {
         String prefix = victim.isEmpty() ? victim : victim + "/";
-        s3.forEachKey(bucket, prefix, key -> {
-          String resolvedPath = prefix.isEmpty() ? key : S3Utils.normalize(key).replaceAll("^" + prefix, "");
-          if(incExc(Paths.get(resolvedPath))) {
-            s3.deleteObject(bucket, key);
+        try (S3WorkerPool pool = new S3WorkerPool(concurrency)) {
+          List<String> batch = new ArrayList<>(S3Operations.MAX_DELETE_KEYS);
+          for (String filterPrefix : filter.listPrefixes()) {
+            s3.forEachKey(bucket, prefix + filterPrefix, key -> {
+              String resolvedPath = S3Utils.relativePath(prefix, key);
+              if (filter.matches(resolvedPath) && !isDone(bucket, key)) {
+                batch.add(key);
+                if (batch.size() == S3Operations.MAX_DELETE_KEYS) {
+                  deleteBatch(pool, bucket, batch);
+                }
+              }
+
+            });
           }
+          deleteBatch(pool, bucket, batch);
+          pool.awaitCompletion(s3::failed);
+        }
+      } else if (!isDone(bucket, victim)) {
+        s3.deleteObject(bucket, victim);
+        if (journal != null) {
+          journal.done("s3://" + bucket + "/" + victim);
+        }
+      }
+    }
 
+    private void deleteBatch(S3WorkerPool pool, String bucket, List<String> batch) {
+      if (!batch.isEmpty()) {
+        List<String> keys = new ArrayList<>(batch);
+        batch.clear();
+        String objects = "s3://" + bucket + "/" + keys.get(0) + " (" + keys.size() + " objects)";
+        pool.submitBatch(objects, keys.size(), () -> {
+          List<S3Failure> failures = s3.deleteObjects(bucket, keys);
+          if (journal != null) {
+            Set<String> failed = new HashSet<>();
+            for (S3Failure failure : failures) {
+              failed.add(failure.getObject());
+            }
+            List<String> deleted = new ArrayList<>(keys.size());
+            for (String key : keys) {
+              String object = "s3://" + bucket + "/" + key;
+              if (!failed.contains(object)) {
+                deleted.add(object);
+              }
+            }
+            journal.doneAll(deleted);
+          }
+          return failures;
         });
-      } else {
-        s3.deleteObject(bucket, victim);
       }
     }
 
-    private boolean incExc(Path path) {
-      return S3Utils.incExc(path, include, exclude);
+    // objects deleted by an earlier run with the same journal
+    private boolean isDone(String bucket, String key) {
+      return journal != null && journal.isDone("s3://" + bucket + "/" + key);
     }
 
   }
@@ -0,0 +1,55 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.regions.AwsProfileRegionProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import picocli.CommandLine.Option;
+
+public class S3SourceOptions {
+
+  private static final String DEFAULT_ENDPOINT_REGION = "us-east-1";
+
+  @Option(names = {"--source-endpoint"}, description = "The endpoint URL of the S3 service holding the source, ex. https://s3.example.org. Objects are copied to the target by streaming them through memory.")
+  private String endpoint;
+
+  @Option(names = {"--source-profile"}, description = "The credentials profile used to read the source. Objects are copied to the target by streaming them through memory.")
+  private String profile;
+
+  @Option(names = {"--source-region"}, description = "With --source-endpoint or --source-profile, the region of the source, by default the region of --source-profile or the default region.")
+  private String region;
+
+  @Option(names = {"--stream-buffer"}, description = "With --source-endpoint or --source-profile, the memory used for parts being streamed, ex. 512MB. Default: 256MB")
+  private String streamBuffer;
+
+  public S3TransferConfig apply(S3TransferConfig config) {
+    return streamBuffer == null ? config : config.withStreamBufferSize(S3Utils.parseSize(streamBuffer));
+  }
+
+  /**
+   * @return a client for the source, or null if no source options were given and the source is read with the same client as the
+   *     target
+   */
+  public AmazonS3 createS3() {
+    if (endpoint == null && profile == null) {
+      return null;
+    }
+    AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+    String sourceRegion = region;
+    if (profile != null) {
+      builder.withCredentials(new ProfileCredentialsProvider(profile));
+      if (sourceRegion == null) {
+        sourceRegion = new AwsProfileRegionProvider(profile).getRegion();
+      }
+    }
+    if (endpoint != null) {
+      // S3 compatible stores rarely resolve bucket subdomains
+      builder.withEndpointConfiguration(new EndpointConfiguration(endpoint, sourceRegion == null ? DEFAULT_ENDPOINT_REGION : sourceRegion))
+          .withPathStyleAccessEnabled(true);
+    } else if (sourceRegion != null) {
+      builder.withRegion(sourceRegion);
+    }
+    return builder.build();
+  }
+}
@@ -0,0 +1,204 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.SyncProgressListener;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Performance statistics for a command: the latency of every S3 request by operation type, the objects and bytes finished and the
+ * requests the SDK retried. Requests are timed where {@link S3OperationsImpl} and the listers make them, and recording is a few atomic
+ * increments, so statistics are always collected and only reported on request.
+ */
+public final class S3Stats {
+
+  public enum Operation {
+    LIST("list page"),
+    HEAD("head"),
+    PUT("put"),
+    PART("part upload"),
+    GET("get"),
+    COPY("copy"),
+    PART_COPY("part copy"),
+    DELETE("delete");
+
+    private final String label;
+
+    Operation(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private final long startNanos = System.nanoTime();
+  private final Map<Operation, S3Histogram> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LongAdder> failures = new EnumMap<>(Operation.class);
+  private final S3TransferProgress progress;
+  private final LongAdder objects = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final ProgressListener listener = new SyncProgressListener() {
+    @Override
+    public void progressChanged(ProgressEvent event) {
+      if (event.getEventType() == ProgressEventType.CLIENT_REQUEST_RETRY_EVENT) {
+        retries.increment();
+      }
+    }
+  };
+
+  public S3Stats() {
+    this(null);
+  }
+
+  /**
+   * @param progress the source of the bytes transferred, may be null
+   */
+  public S3Stats(S3TransferProgress progress) {
+    this.progress = progress;
+    for (Operation operation : Operation.values()) {
+      latencies.put(operation, new S3Histogram());
+      failures.put(operation, new LongAdder());
+    }
+  }
+
+  /**
+   * @return a listener for SDK requests that counts their retries
+   */
+  public ProgressListener listener() {
+    return listener;
+  }
+
+  /**
+   * Makes a request and records its latency, whether it succeeds or fails.
+   */
+  public <T> T time(Operation operation, Supplier<T> request) {
+    long start = System.nanoTime();
+    boolean success = false;
+    try {
+      T result = request.get();
+      success = true;
+      return result;
+    } finally {
+      record(operation, System.nanoTime() - start, success);
+    }
+  }
+
+  public void time(Operation operation, Runnable request) {
+    time(operation, () -> {
+      request.run();
+      return null;
+    });
+  }
+
+  public void record(Operation operation, long nanos, boolean success) {
+    latencies.get(operation).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    if (!success) {
+      failures.get(operation).increment();
+    }
+  }
+
+  /**
+   * Counts a finished object, transferred or deleted.
+   */
+  public void objectDone() {
+    objects.increment();
+  }
+
+  public long getObjects() {
+    return objects.sum();
+  }
+
+  public long getBytes() {
+    return progress == null ? 0L : progress.getBytesTransferred();
+  }
+
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  public long getCount(Operation operation) {
+    return latencies.get(operation).getCount();
+  }
+
+  /**
+   * @return the latency in microseconds at a percentile between 0 and 100
+   */
+  public long getLatencyMicros(Operation operation, double percentile) {
+    return latencies.get(operation).getValueAtPercentile(percentile);
+  }
+
+  public long getMaxLatencyMicros(Operation operation) {
+    return latencies.get(operation).getMax();
+  }
+
+  private long elapsedNanos() {
+    return Math.max(1L, System.nanoTime() - startNanos);
+  }
+
+  /**
+   * A table of the totals and, for each operation type used, the request count, failures and p50/p90/p99/max latency in milliseconds.
+   */
+  public String toText() {
+    long elapsed = elapsedNanos();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%d objects, %s in %s, %s/s, %d retries%n", getObjects(),
+        S3ProgressMonitor.formatBytes(getBytes()), S3ProgressMonitor.formatDuration(TimeUnit.NANOSECONDS.toSeconds(elapsed)),
+        S3ProgressMonitor.formatBytes((long) (getBytes() * 1e9 / elapsed)), getRetries()));
+    sb.append(String.format(Locale.ROOT, "%-12s %10s %8s %10s %10s %10s %10s%n", "operation", "requests", "failed", "p50 ms", "p90 ms",
+        "p99 ms", "max ms"));
+    for (Operation operation : Operation.values()) {
+      S3Histogram histogram = latencies.get(operation);
+      if (histogram.getCount() > 0) {
+        sb.append(String.format(Locale.ROOT, "%-12s %10d %8d %10.1f %10.1f %10.1f %10.1f%n", operation.getLabel(), histogram.getCount(),
+            failures.get(operation).sum(), millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+            millis(histogram.getValueAtPercentile(99)), millis(histogram.getMax())));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * The same report as a JSON object, operations keyed by name in lower case with latencies in milliseconds.
+   */
+  public String toJson() {
+    long elapsed = elapsedNanos();
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\"elapsedMs\":").append(TimeUnit.NANOSECONDS.toMillis(elapsed));
+    sb.append(",\"objects\":").append(getObjects());
+    sb.append(",\"bytes\":").append(getBytes());
+    sb.append(",\"bytesPerSecond\":").append((long) (getBytes() * 1e9 / elapsed));
+    sb.append(",\"retries\":").append(getRetries());
+    sb.append(",\"operations\":{");
+    boolean first = true;
+    for (Operation operation : Operation.values()) {
+      S3Histogram histogram = latencies.get(operation);
+      if (histogram.getCount() > 0) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        sb.append('"').append(operation.name().toLowerCase(Locale.ROOT)).append("\":{");
+        sb.append("\"requests\":").append(histogram.getCount());
+        sb.append(",\"failed\":").append(failures.get(operation).sum());
+        sb.append(String.format(Locale.ROOT, ",\"p50Ms\":%.3f,\"p90Ms\":%.3f,\"p99Ms\":%.3f,\"maxMs\":%.3f",
+            millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+            millis(histogram.getValueAtPercentile(99)), millis(histogram.getMax())));
+        sb.append('}');
+      }
+    }
+    sb.append("}}");
+    return sb.toString();
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+}
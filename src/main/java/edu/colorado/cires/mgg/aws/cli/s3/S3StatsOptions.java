@@ -0,0 +1,55 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import picocli.CommandLine.Option;
+
+public class S3StatsOptions {
+
+  @Option(names = {"--stats"}, description = "At the end, print the objects, bytes, throughput, retries and p50/p90/p99/max latency of each S3 operation type. Printed on standard error unless the output is text.")
+  private boolean stats = false;
+
+  @Option(names = {"--stats-file"}, description = "At the end, write the same statistics as --stats to this file as JSON.")
+  private Path statsFile;
+
+  /**
+   * Runs a command, then prints and writes the statistics as requested whether it succeeded or not. If the command failed, a failure to
+   * report is added to its exception as suppressed instead of replacing it.
+   */
+  public void run(S3Stats s3Stats, S3Output output, Runnable command) {
+    try {
+      command.run();
+    } catch (RuntimeException | Error e) {
+      try {
+        report(s3Stats, output);
+      } catch (RuntimeException reportError) {
+        e.addSuppressed(reportError);
+      }
+      throw e;
+    }
+    report(s3Stats, output);
+  }
+
+  /**
+   * Prints and writes the statistics as requested.
+   */
+  public void report(S3Stats s3Stats, S3Output output) {
+    if (stats) {
+      String text = s3Stats.toText();
+      if (output.getFormat() == S3Output.Format.TEXT) {
+        output.message(text.trim());
+      } else {
+        System.err.print(text);
+      }
+    }
+    if (statsFile != null) {
+      try {
+        Files.write(statsFile, (s3Stats.toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to write file: " + statsFile.toAbsolutePath().toString(), e);
+      }
+    }
+  }
+}
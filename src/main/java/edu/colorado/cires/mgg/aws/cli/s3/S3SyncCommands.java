@@ -0,0 +1,345 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import com.amazonaws.services.s3.AmazonS3URI;
+import edu.colorado.cires.mgg.aws.cli.AwsCommands;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.apache.commons.lang3.StringUtils;
+import picocli.CommandLine.ArgGroup;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Mixin;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+
+@Command(
+    name = "sync",
+    description = "Copies new and changed files between a local directory and an S3 prefix",
+    mixinStandardHelpOptions = true)
+public class S3SyncCommands implements Runnable {
+
+  @Parameters(index = "0", description = "A directory or S3 URL to sync from ex. s3://mybucket/data or mydir")
+  private String source;
+
+  @Parameters(index = "1", description = "A directory or S3 URL to sync to ex. s3://mybucket/data or mydir")
+  private String target;
+
+  @ArgGroup(exclusive = true, multiplicity = "0..*")
+  private List<S3FilterRule> filterRules = new ArrayList<>();
+
+  @Option(names = {"--delete"}, description = "Delete files or objects in the target that do not exist in the source. Excluded files or objects are never deleted.")
+  private boolean delete = false;
+
+  @Option(names = {"--etag"}, description = "Compare the MD5 of local files with the ETag of single part objects instead of the modification time. Files are hashed on the --concurrency threads.")
+  private boolean compareETag = false;
+
+  @Option(names = {"--fingerprint-index"}, description = "A file that keeps the MD5 of local files between runs for --etag, so only files whose size, modification time or inode changed are hashed again. Use one file per local directory.")
+  private Path fingerprintIndex;
+
+  @Option(names = {"-c", "--concurrency"}, description = "The number of objects transferred in parallel. Default: ${DEFAULT-VALUE}")
+  private int concurrency = 1;
+
+  @Mixin
+  private S3ListOptions listOptions = new S3ListOptions();
+
+  @Mixin
+  private S3TransferOptions transferOptions = new S3TransferOptions();
+
+  @Mixin
+  private S3OutputOptions outputOptions = new S3OutputOptions();
+
+  @Mixin
+  private S3StatsOptions statsOptions = new S3StatsOptions();
+
+  @Override
+  public void run() {
+    S3TransferConfig config = outputOptions.apply(transferOptions.apply(listOptions.apply(new S3TransferConfig())));
+    S3Filter filter = S3Filter.compile(filterRules);
+    try (S3Output output = outputOptions.createOutput();
+        S3OperationsImpl s3 = new S3OperationsImpl(AwsCommands.getS3(), config, null, output);
+        S3FingerprintIndex index = fingerprintIndex == null ? null : new S3FingerprintIndex(fingerprintIndex)) {
+      statsOptions.run(s3.getStats(), output, () -> new S3SyncCommandsHandler(s3,
+          source,
+          target,
+          filter,
+          delete,
+          compareETag,
+          index,
+          concurrency,
+          dir -> new SortedFileWalker(dir, filter::mayMatchUnder)
+      ).run());
+    }
+  }
+
+  static class S3SyncCommandsHandler {
+
+    private final S3Operations s3;
+    private final String source;
+    private final String target;
+    private final S3Filter filter;
+    private final boolean delete;
+    private final boolean compareETag;
+    private final S3FingerprintIndex index;
+    private final int concurrency;
+    private final Function<Path, Iterator<S3LocalFile>> listFiles;
+
+    S3SyncCommandsHandler(S3Operations s3, String source, String target, String include, String exclude, boolean delete, boolean compareETag,
+        int concurrency, Function<Path, Iterator<S3LocalFile>> listFiles) {
+      this(s3, source, target, S3Filter.of(include, exclude), delete, compareETag, null, concurrency, listFiles);
+    }
+
+    S3SyncCommandsHandler(S3Operations s3, String source, String target, S3Filter filter, boolean delete, boolean compareETag,
+        S3FingerprintIndex index, int concurrency, Function<Path, Iterator<S3LocalFile>> listFiles) {
+      this.s3 = s3;
+      this.source = source;
+      this.target = target;
+      this.filter = filter;
+      this.delete = delete;
+      this.compareETag = compareETag;
+      this.index = index;
+      this.concurrency = concurrency;
+      this.listFiles = listFiles;
+    }
+
+    public void run() {
+      if (StringUtils.isBlank(source)) {
+        throw new RuntimeException("source is required");
+      }
+
+      if (StringUtils.isBlank(target)) {
+        throw new RuntimeException("target is required");
+      }
+
+      String s = source.trim();
+      String t = target.trim();
+
+      if (!isS3Uri(s) && isS3Uri(t)) {
+        upload(s, t);
+      } else if (isS3Uri(s) && !isS3Uri(t)) {
+        download(s, t);
+      } else {
+        throw new RuntimeException("one of source or target must be a S3 URI and the other a directory");
+      }
+    }
+
+    private static boolean isS3Uri(String value) {
+      return value.startsWith("s3://");
+    }
+
+    private static String prefix(AmazonS3URI uri) {
+      String key = S3Utils.normalize(uri.getKey());
+      return key.isEmpty() ? key : key + "/";
+    }
+
+    // whether deciding if a file changed means reading it for its MD5
+    private boolean hashed(S3LocalFile local, S3ObjectInfo remote) {
+      return compareETag && local.getSize() == remote.getSize() && remote.getETag() != null && !remote.getETag().contains("-");
+    }
+
+    private boolean changed(S3LocalFile local, S3ObjectInfo remote, boolean localIsSource) {
+      if (local.getSize() != remote.getSize()) {
+        return true;
+      }
+      if (hashed(local, remote)) {
+        String md5 = index == null ? S3Utils.md5Hex(local.getPath()) : index.md5Hex(local);
+        return !md5.equalsIgnoreCase(remote.getETag().replace("\"", ""));
+      }
+      return localIsSource ? local.getLastModified() > remote.getLastModified() : remote.getLastModified() > local.getLastModified();
+    }
+
+    private void upload(String s, String t) {
+      AmazonS3URI uri = new AmazonS3URI(t);
+      String bucket = uri.getBucket();
+      String prefix = prefix(uri);
+      Path dir = Paths.get(s);
+
+      try (S3WorkerPool pool = new S3WorkerPool(concurrency)) {
+        List<String> deletes = new ArrayList<>(S3Operations.MAX_DELETE_KEYS);
+        Merge merge = new Merge(listFiles.apply(dir), prefix.length()) {
+
+          private void upload(S3LocalFile local, BooleanSupplier changed) {
+            String key = prefix + local.getKey();
+            pool.submit("s3://" + bucket + "/" + key, () -> {
+              if (changed.getAsBoolean()) {
+                s3.upload(local.getPath(), bucket, key);
+              }
+            });
+          }
+
+          @Override
+          void localOnly(S3LocalFile local) {
+            upload(local, () -> true);
+          }
+
+          @Override
+          void both(S3LocalFile local, S3ObjectInfo remote) {
+            // a file is hashed on the workers, so the merge and listing never wait on reading it
+            if (hashed(local, remote)) {
+              upload(local, () -> changed(local, remote, true));
+            } else if (changed(local, remote, true)) {
+              upload(local, () -> true);
+            }
+          }
+
+          @Override
+          void remoteOnly(S3ObjectInfo remote) {
+            if (delete) {
+              deletes.add(remote.getKey());
+              if (deletes.size() == S3Operations.MAX_DELETE_KEYS) {
+                deleteBatch(pool, bucket, deletes);
+              }
+            }
+          }
+        };
+        forEachObject(bucket, prefix, merge);
+        merge.finish();
+        deleteBatch(pool, bucket, deletes);
+        pool.awaitCompletion(s3::failed);
+      }
+    }
+
+    // the filter prefixes are disjoint and sorted, so listing them one after another keeps the key order the merge relies on
+    private void forEachObject(String bucket, String prefix, Consumer<S3ObjectInfo> consumer) {
+      for (String filterPrefix : filter.listPrefixes()) {
+        s3.forEachObject(bucket, prefix + filterPrefix, consumer);
+      }
+    }
+
+    private void deleteBatch(S3WorkerPool pool, String bucket, List<String> batch) {
+      if (!batch.isEmpty()) {
+        List<String> keys = new ArrayList<>(batch);
+        batch.clear();
+        String objects = "s3://" + bucket + "/" + keys.get(0) + " (" + keys.size() + " objects)";
+        pool.submitBatch(objects, keys.size(), () -> s3.deleteObjects(bucket, keys));
+      }
+    }
+
+    private void download(String s, String t) {
+      AmazonS3URI uri = new AmazonS3URI(s);
+      String bucket = uri.getBucket();
+      String prefix = prefix(uri);
+      Path dir = Paths.get(t);
+
+      try (S3WorkerPool pool = new S3WorkerPool(concurrency)) {
+        Merge merge = new Merge(listFiles.apply(dir), prefix.length()) {
+
+          private void download(S3ObjectInfo remote, Path dest, BooleanSupplier changed) {
+            pool.submit("s3://" + bucket + "/" + remote.getKey(), () -> {
+              if (!changed.getAsBoolean()) {
+                return;
+              }
+              s3.download(bucket, remote.getKey(), dest);
+              try {
+                Files.setLastModifiedTime(dest, FileTime.fromMillis(remote.getLastModified()));
+              } catch (IOException e) {
+                throw new RuntimeException("Unable to set modification time: " + dest.toAbsolutePath().toString(), e);
+              }
+            });
+          }
+
+          @Override
+          void localOnly(S3LocalFile local) {
+            if (delete) {
+              pool.submit(local.getPath().toString(), () -> s3.deleteLocal(local.getPath()));
+            }
+          }
+
+          @Override
+          void both(S3LocalFile local, S3ObjectInfo remote) {
+            if (hashed(local, remote)) {
+              download(remote, local.getPath(), () -> changed(local, remote, false));
+            } else if (changed(local, remote, false)) {
+              download(remote, local.getPath(), () -> true);
+            }
+          }
+
+          @Override
+          void remoteOnly(S3ObjectInfo remote) {
+            download(remote, dir.resolve(remote.getKey().substring(prefix.length())), () -> true);
+          }
+        };
+        forEachObject(bucket, prefix, merge);
+        merge.finish();
+        pool.awaitCompletion(s3::failed);
+      }
+    }
+
+    /**
+     * Merge-joins the sorted local walk with the sorted listing. The listing drives the merge and the walk is advanced up to each key, so
+     * only the current entry of each side is held in memory.
+     */
+    private abstract class Merge implements Consumer<S3ObjectInfo> {
+
+      private final Iterator<S3LocalFile> files;
+      private final int prefixLength;
+      private S3LocalFile local;
+
+      private Merge(Iterator<S3LocalFile> files, int prefixLength) {
+        this.files = files;
+        this.prefixLength = prefixLength;
+        local = nextFile();
+      }
+
+      private S3LocalFile nextFile() {
+        while (files.hasNext()) {
+          S3LocalFile file = files.next();
+          if (filter.matches(file.getKey())) {
+            if (index != null) {
+              index.seen(file.getKey());
+            }
+            return file;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public void accept(S3ObjectInfo remote) {
+        if (remote.getKey().endsWith("/")) {
+          return;
+        }
+        String relativePath = remote.getKey().substring(prefixLength);
+        if (!filter.matches(relativePath)) {
+          return;
+        }
+        while (local != null && S3Utils.compareKeys(local.getKey(), relativePath) < 0) {
+          localOnly(local);
+          local = nextFile();
+        }
+        if (local != null && local.getKey().equals(relativePath)) {
+          both(local, remote);
+          local = nextFile();
+        } else {
+          remoteOnly(remote);
+        }
+      }
+
+      void finish() {
+        while (local != null) {
+          localOnly(local);
+          local = nextFile();
+        }
+        // every local file has been walked, so entries for the rest were deleted
+        if (index != null) {
+          index.pruneUnseen();
+        }
+      }
+
+      abstract void localOnly(S3LocalFile local);
+
+      abstract void both(S3LocalFile local, S3ObjectInfo remote);
+
+      abstract void remoteOnly(S3ObjectInfo remote);
+    }
+
+  }
+}
@@ -0,0 +1,179 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+public class S3TransferConfig {
+
+  public static final int DEFAULT_THREADS = 10;
+  public static final int DEFAULT_QUEUE_DEPTH = 1000;
+  public static final long DEFAULT_MULTIPART_THRESHOLD = 16L * 1024L * 1024L;
+  public static final long AUTO_PART_SIZE = 0L;
+  public static final long DEFAULT_STREAM_BUFFER_SIZE = 256L * 1024L * 1024L;
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+  public static final int DEFAULT_PREFETCH_PAGES = 2;
+
+  private int threads = DEFAULT_THREADS;
+  private int queueDepth = DEFAULT_QUEUE_DEPTH;
+  private long multipartThreshold = DEFAULT_MULTIPART_THRESHOLD;
+  private long partSize = AUTO_PART_SIZE;
+  private long streamBufferSize = DEFAULT_STREAM_BUFFER_SIZE;
+  private boolean memoryMappedParts = true;
+  private S3Checksum.Algorithm checksum;
+  private S3Compression compression;
+  private boolean progressBar = true;
+  private int pageSize = DEFAULT_PAGE_SIZE;
+  private int prefetchPages = DEFAULT_PREFETCH_PAGES;
+  private int listParallelism = 1;
+  private boolean orderedListing = false;
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public S3TransferConfig withThreads(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("threads must be at least 1");
+    }
+    this.threads = threads;
+    return this;
+  }
+
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  public S3TransferConfig withQueueDepth(int queueDepth) {
+    if (queueDepth < 1) {
+      throw new IllegalArgumentException("queue depth must be at least 1");
+    }
+    this.queueDepth = queueDepth;
+    return this;
+  }
+
+  public long getMultipartThreshold() {
+    return multipartThreshold;
+  }
+
+  public S3TransferConfig withMultipartThreshold(long multipartThreshold) {
+    if (multipartThreshold < 1) {
+      throw new IllegalArgumentException("multipart threshold must be positive");
+    }
+    this.multipartThreshold = multipartThreshold;
+    return this;
+  }
+
+  public long getPartSize() {
+    return partSize;
+  }
+
+  /**
+   * @param partSize between 5 MiB and 5 GiB, or {@link #AUTO_PART_SIZE} to size parts from the object size and measured throughput
+   */
+  public S3TransferConfig withPartSize(long partSize) {
+    if (partSize != AUTO_PART_SIZE && (partSize < S3PartSizer.MIN_PART_SIZE || partSize > S3PartSizer.MAX_PART_SIZE)) {
+      throw new IllegalArgumentException("part size must be between 5 MiB and 5 GiB");
+    }
+    this.partSize = partSize;
+    return this;
+  }
+
+  public long getStreamBufferSize() {
+    return streamBufferSize;
+  }
+
+  /**
+   * @param streamBufferSize the memory for parts in transit when copying between two S3 clients
+   */
+  public S3TransferConfig withStreamBufferSize(long streamBufferSize) {
+    if (streamBufferSize < S3PartSizer.MIN_PART_SIZE) {
+      throw new IllegalArgumentException("stream buffer must be at least 5 MiB");
+    }
+    this.streamBufferSize = streamBufferSize;
+    return this;
+  }
+
+  public boolean isMemoryMappedParts() {
+    return memoryMappedParts;
+  }
+
+  public S3TransferConfig withMemoryMappedParts(boolean memoryMappedParts) {
+    this.memoryMappedParts = memoryMappedParts;
+    return this;
+  }
+
+  public S3Checksum.Algorithm getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * @param checksum the checksum computed during each transfer and verified against S3, or null for none
+   */
+  public S3TransferConfig withChecksum(S3Checksum.Algorithm checksum) {
+    this.checksum = checksum;
+    return this;
+  }
+
+  public S3Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * @param compression the compression applied to uploads, or null to upload files as they are
+   */
+  public S3TransferConfig withCompression(S3Compression compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  public boolean isProgressBar() {
+    return progressBar;
+  }
+
+  public S3TransferConfig withProgressBar(boolean progressBar) {
+    this.progressBar = progressBar;
+    return this;
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  public S3TransferConfig withPageSize(int pageSize) {
+    if (pageSize < 1 || pageSize > 1000) {
+      throw new IllegalArgumentException("page size must be between 1 and 1000");
+    }
+    this.pageSize = pageSize;
+    return this;
+  }
+
+  public int getPrefetchPages() {
+    return prefetchPages;
+  }
+
+  public S3TransferConfig withPrefetchPages(int prefetchPages) {
+    if (prefetchPages < 1) {
+      throw new IllegalArgumentException("prefetch pages must be at least 1");
+    }
+    this.prefetchPages = prefetchPages;
+    return this;
+  }
+
+  public int getListParallelism() {
+    return listParallelism;
+  }
+
+  public S3TransferConfig withListParallelism(int listParallelism) {
+    if (listParallelism < 1) {
+      throw new IllegalArgumentException("list parallelism must be at least 1");
+    }
+    this.listParallelism = listParallelism;
+    return this;
+  }
+
+  public boolean isOrderedListing() {
+    return orderedListing;
+  }
+
+  public S3TransferConfig withOrderedListing(boolean orderedListing) {
+    this.orderedListing = orderedListing;
+    return this;
+  }
+}
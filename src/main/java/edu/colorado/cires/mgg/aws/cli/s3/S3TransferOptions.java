@@ -0,0 +1,31 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import picocli.CommandLine.Option;
+
+public class S3TransferOptions {
+
+  private static final String AUTO = "auto";
+
+  @Option(names = {"--multipart-threshold"}, description = "Files and objects of at least this size are uploaded, copied and downloaded in parts, ex. 64MB. Default: 16MB")
+  private String multipartThreshold;
+
+  @Option(names = {"--part-size"}, description = "The size of each part of a multipart upload, copy or download, from 5MB to 5GB, ex. 64MB. auto sizes parts from the object size, the number of threads and the throughput measured so far. Default: ${DEFAULT-VALUE}")
+  private String partSize = AUTO;
+
+  @Option(names = {"--mmap"}, negatable = true, description = "Read the parts of multipart uploads through memory mappings rather than file streams, which takes less CPU. --no-mmap reads them as streams. Default: ${DEFAULT-VALUE}")
+  private boolean mmap = true;
+
+  @Option(names = {"--checksum"}, description = "Checksum every object as it is transferred and verify it against S3: crc32c, sha256 or md5. md5 is checked against the ETag, crc32c and sha256 are stored in an object tag on upload and checked on download")
+  private String checksum;
+
+  public S3TransferConfig apply(S3TransferConfig config) {
+    config.withMemoryMappedParts(mmap);
+    if (checksum != null) {
+      config.withChecksum(S3Checksum.Algorithm.parse(checksum));
+    }
+    if (multipartThreshold != null) {
+      config.withMultipartThreshold(S3Utils.parseSize(multipartThreshold));
+    }
+    return config.withPartSize(AUTO.equalsIgnoreCase(partSize.trim()) ? S3TransferConfig.AUTO_PART_SIZE : S3Utils.parseSize(partSize));
+  }
+}
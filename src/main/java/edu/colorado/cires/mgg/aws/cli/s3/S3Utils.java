@@ -1,8 +1,12 @@
 package edu.colorado.cires.mgg.aws.cli.s3;
 
+import com.amazonaws.util.BinaryUtils;
+import com.amazonaws.util.Md5Utils;
+import java.io.IOException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.util.Locale;
 import org.apache.commons.lang3.StringUtils;
 
 public final class S3Utils {
@@ -14,6 +18,19 @@ public final class S3Utils {
     return key.replaceAll("/+$", "");
   }
 
+  /**
+   * Returns the path of a listed key relative to the prefix it was listed under, without trailing slashes. The prefix is matched literally.
+   *
+   * @param prefix empty or ending with /
+   */
+  public static String relativePath(String prefix, String key) {
+    if (prefix.isEmpty()) {
+      return key;
+    }
+    String normalized = normalize(key);
+    return normalized.startsWith(prefix) ? normalized.substring(prefix.length()) : normalized;
+  }
+
   public static boolean incExc(Path path, String include, String exclude) {
     boolean go = true;
     if(StringUtils.isNotBlank(include)) {
@@ -33,6 +50,60 @@ public final class S3Utils {
     return go;
   }
 
+  /**
+   * Orders keys the way S3 lists them, by UTF-8 bytes. Comparing code points gives the same order without encoding each key.
+   */
+  public static int compareKeys(String a, String b) {
+    int i = 0;
+    int j = 0;
+    while (i < a.length() && j < b.length()) {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(j);
+      if (ca != cb) {
+        return Integer.compare(ca, cb);
+      }
+      i += Character.charCount(ca);
+      j += Character.charCount(cb);
+    }
+    return Integer.compare(a.length() - i, b.length() - j);
+  }
+
+  /**
+   * Parses a size in bytes with an optional binary unit, such as 8MB, 8MiB or 1.5GB. As in the AWS CLI, KB, MB, GB and TB are powers
+   * of 1024.
+   */
+  public static long parseSize(String value) {
+    String trimmed = value.trim().toUpperCase(Locale.ROOT);
+    String[] units = {"TB", "GB", "MB", "KB"};
+    long multiplier = 1L;
+    String number = trimmed;
+    for (int i = 0; i < units.length; i++) {
+      String unit = units[i];
+      String binary = unit.charAt(0) + "IB";
+      if (trimmed.endsWith(unit) || trimmed.endsWith(binary)) {
+        multiplier = 1L << (10 * (units.length - i));
+        number = trimmed.substring(0, trimmed.length() - (trimmed.endsWith(unit) ? unit.length() : binary.length()));
+        break;
+      }
+    }
+    if (multiplier == 1L && number.endsWith("B")) {
+      number = number.substring(0, number.length() - 1);
+    }
+    try {
+      return (long) (Double.parseDouble(number.trim()) * multiplier);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid size: " + value, e);
+    }
+  }
+
+  public static String md5Hex(Path path) {
+    try {
+      return BinaryUtils.toHex(Md5Utils.computeMD5Hash(path.toFile()));
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read file: " + path.toAbsolutePath().toString(), e);
+    }
+  }
+
   private S3Utils() {
 
   }
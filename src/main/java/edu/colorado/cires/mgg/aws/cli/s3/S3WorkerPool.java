@@ -0,0 +1,138 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs per-object work on a fixed number of threads. Submitting blocks once the queue capacity (twice the concurrency unless given) is in
+ * flight, so a producer such as a directory walk or key listing can never run far ahead of the transfers. Failures are collected rather
+ * than thrown so that every object gets a chance to complete.
+ */
+public final class S3WorkerPool implements AutoCloseable {
+
+  private final int capacity;
+  private final ExecutorService executor;
+  private final Semaphore inFlight;
+  private final Queue<S3Failure> failures = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger submitted = new AtomicInteger();
+  private final AtomicInteger failedObjects = new AtomicInteger();
+
+  public S3WorkerPool(int concurrency) {
+    this(concurrency, concurrency * 2);
+  }
+
+  public S3WorkerPool(int concurrency, int capacity) {
+    if (concurrency < 1) {
+      throw new IllegalArgumentException("concurrency must be at least 1");
+    }
+    if (capacity < concurrency) {
+      throw new IllegalArgumentException("capacity must be at least the concurrency");
+    }
+    this.capacity = capacity;
+    AtomicInteger count = new AtomicInteger();
+    executor = concurrency == 1 ? null : Executors.newFixedThreadPool(concurrency, r -> {
+      Thread thread = new Thread(r, "s3-worker-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    inFlight = new Semaphore(capacity);
+  }
+
+  public void submit(String object, Runnable task) {
+    submitBatch(object, 1, () -> {
+      task.run();
+      return Collections.emptyList();
+    });
+  }
+
+  /**
+   * Submits work covering several objects at once. The batch reports the objects that failed individually, an exception fails all of
+   * them.
+   */
+  public void submitBatch(String objects, int count, Supplier<List<S3Failure>> batch) {
+    submitted.addAndGet(count);
+    if (executor == null) {
+      execute(objects, count, batch);
+      return;
+    }
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          execute(objects, count, batch);
+        } finally {
+          inFlight.release();
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  private void execute(String objects, int count, Supplier<List<S3Failure>> batch) {
+    try {
+      List<S3Failure> failed = batch.get();
+      failures.addAll(failed);
+      failedObjects.addAndGet(failed.size());
+    } catch (Exception e) {
+      failures.add(new S3Failure(objects, e));
+      failedObjects.addAndGet(count);
+    }
+  }
+
+  /**
+   * Waits for all submitted work to finish, then reports every failed object and throws if there were any.
+   *
+   * @param report given each failed object and its error, such as {@link S3Operations#failed(String, String)}
+   */
+  public void awaitCompletion(BiConsumer<String, String> report) {
+    if (executor != null) {
+      try {
+        inFlight.acquire(capacity);
+        inFlight.release(capacity);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+    List<S3Failure> failed = getFailures();
+    if (!failed.isEmpty()) {
+      for (S3Failure failure : failed) {
+        report.accept(failure.getObject(), failure.getMessage());
+      }
+      throw new RuntimeException(failedObjects.get() + " of " + submitted.get() + " objects failed");
+    }
+  }
+
+  public List<S3Failure> getFailures() {
+    return new ArrayList<>(failures);
+  }
+
+  @Override
+  public void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Walks a directory tree depth first, returning regular files in the same order S3 lists their keys. Each directory is read and sorted
+ * on its own, with subdirectories sorted as if their name ended in '/', so memory holds one listing per level of depth rather than the
+ * whole tree. Symbolic links to files are followed, links to directories are not. Directories rejected by the optional predicate are not
+ * read at all.
+ */
+public class SortedFileWalker implements Iterator<S3LocalFile> {
+
+  private final Deque<Frame> stack = new ArrayDeque<>();
+  private final Predicate<String> descend;
+  private S3LocalFile next;
+
+  public SortedFileWalker(Path root) {
+    this(root, dir -> true);
+  }
+
+  /**
+   * @param descend tests a directory key relative to the root, without a trailing '/', before the directory is read
+   */
+  public SortedFileWalker(Path root, Predicate<String> descend) {
+    this.descend = descend;
+    if (Files.isDirectory(root)) {
+      stack.push(new Frame(root, ""));
+    }
+    advance();
+  }
+
+  private void advance() {
+    next = null;
+    while (next == null && !stack.isEmpty()) {
+      Frame frame = stack.peek();
+      if (frame.index == frame.entries.size()) {
+        stack.pop();
+        continue;
+      }
+      Entry entry = frame.entries.get(frame.index++);
+      String key = frame.prefix + entry.name;
+      if (entry.directory) {
+        if (!descend.test(key)) {
+          continue;
+        }
+        stack.push(new Frame(entry.path, key + "/"));
+      } else {
+        next = new S3LocalFile(key, entry.path, entry.size, entry.lastModified);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    return next != null;
+  }
+
+  @Override
+  public S3LocalFile next() {
+    if (next == null) {
+      throw new NoSuchElementException();
+    }
+    S3LocalFile file = next;
+    advance();
+    return file;
+  }
+
+  private static final class Frame {
+
+    private final String prefix;
+    private final List<Entry> entries = new ArrayList<>();
+    private int index = 0;
+
+    private Frame(Path dir, String prefix) {
+      this.prefix = prefix;
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+        for (Path child : children) {
+          BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          if (attributes.isSymbolicLink()) {
+            attributes = Files.readAttributes(child, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+              continue;
+            }
+          }
+          if (attributes.isDirectory() || attributes.isRegularFile()) {
+            entries.add(new Entry(child, attributes));
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to read directory: " + dir.toAbsolutePath().toString(), e);
+      }
+      entries.sort((a, b) -> S3Utils.compareKeys(a.sortName, b.sortName));
+    }
+  }
+
+  private static class Entry {
+
+    private final Path path;
+    private final String name;
+    private final String sortName;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+
+    private Entry(Path path, BasicFileAttributes attributes) {
+      this.path = path;
+      name = String.valueOf(path.getFileName());
+      directory = attributes.isDirectory();
+      sortName = directory ? name + "/" : name;
+      size = attributes.size();
+      lastModified = attributes.lastModifiedTime().toMillis();
+    }
+  }
+}
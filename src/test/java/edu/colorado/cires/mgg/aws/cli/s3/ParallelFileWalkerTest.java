@@ -0,0 +1,98 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ParallelFileWalkerTest {
+
+  private static final Path DIR = Paths.get("target/test-parallel-file-walker");
+
+  @BeforeEach
+  void before() throws Exception {
+    FileUtils.deleteQuietly(DIR.toFile());
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 60; j++) {
+        Path file = DIR.resolve("d" + i + "/sub/f" + j + ".txt");
+        Files.createDirectories(file.getParent());
+        Files.write(file, ("file " + i + " " + j).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    Files.write(DIR.resolve("top.txt"), "top".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @AfterEach
+  void after() {
+    FileUtils.deleteQuietly(DIR.toFile());
+  }
+
+  @Test
+  void testWalk() throws Exception {
+    Set<String> keys = new TreeSet<>();
+    try (ParallelFileWalker walker = new ParallelFileWalker(DIR, 4, dir -> true)) {
+      walker.forEachRemaining(file -> {
+        assertEquals(DIR.resolve(file.getKey()), file.getPath());
+        keys.add(file.getKey());
+      });
+    }
+    // more files than the queue holds, so the walk must have paused for the consumer
+    assertEquals(20 * 60 + 1, keys.size());
+  }
+
+  @Test
+  void testPrune() {
+    List<String> keys = new ArrayList<>();
+    try (ParallelFileWalker walker = new ParallelFileWalker(DIR, 4, dir -> dir.equals("d3") || dir.equals("d3/sub"))) {
+      walker.forEachRemaining(file -> keys.add(file.getKey()));
+    }
+    assertEquals(61, keys.size());
+    keys.remove("top.txt");
+    keys.forEach(key -> assertEquals("d3/sub/", key.substring(0, 7)));
+  }
+
+  @Test
+  void testMissingRoot() {
+    try (ParallelFileWalker walker = new ParallelFileWalker(DIR.resolve("missing"), 2, dir -> true)) {
+      assertFalse(walker.hasNext());
+    }
+  }
+
+  @Test
+  void testFileRoot() {
+    List<S3LocalFile> files = new ArrayList<>();
+    try (ParallelFileWalker walker = new ParallelFileWalker(DIR.resolve("top.txt"), 2, dir -> true)) {
+      walker.forEachRemaining(files::add);
+    }
+    assertEquals(1, files.size());
+    assertEquals("top.txt", files.get(0).getKey());
+    assertEquals(DIR.resolve("top.txt"), files.get(0).getPath());
+    assertEquals(3, files.get(0).getSize());
+  }
+
+  @Test
+  void testError() {
+    try (ParallelFileWalker walker = new ParallelFileWalker(DIR, 2, dir -> {
+      if (dir.equals("d7/sub")) {
+        throw new IllegalStateException("boom");
+      }
+      return true;
+    })) {
+      IllegalStateException e = assertThrows(IllegalStateException.class, () -> walker.forEachRemaining(Arrays.asList()::contains));
+      assertEquals("boom", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+class S3BufferPoolTest {
+
+  private static final int CHUNK = S3BufferPool.CHUNK_SIZE;
+
+  @Test
+  void testFillAndReread() throws Exception {
+    byte[] content = new byte[CHUNK * 2 + 123];
+    new Random(7).nextBytes(content);
+    S3BufferPool pool = new S3BufferPool(4L * CHUNK);
+    try (S3BufferPool.Buffer buffer = pool.acquire(content.length)) {
+      buffer.fill(new ByteArrayInputStream(content), content.length);
+      assertEquals(content.length, buffer.getLength());
+      InputStream in = buffer.newInputStream();
+      assertTrue(in.markSupported());
+      in.mark(Integer.MAX_VALUE);
+      assertEquals(CHUNK + 10, in.skip(CHUNK + 10));
+      in.reset();
+      assertArrayEquals(content, IOUtils.toByteArray(in));
+      assertArrayEquals(content, IOUtils.toByteArray(buffer.newInputStream()));
+    }
+  }
+
+  @Test
+  void testMemoryIsBounded() throws Exception {
+    S3BufferPool pool = new S3BufferPool(3L * CHUNK);
+    S3BufferPool.Buffer first = pool.acquire(2L * CHUNK);
+    CompletableFuture<S3BufferPool.Buffer> second = CompletableFuture.supplyAsync(() -> pool.acquire(2L * CHUNK));
+    assertThrows(TimeoutException.class, () -> second.get(200, TimeUnit.MILLISECONDS));
+    first.close();
+    second.get(5, TimeUnit.SECONDS).close();
+    assertFalse(second.isCompletedExceptionally());
+  }
+
+  @Test
+  void testPartLargerThanPool() {
+    S3BufferPool pool = new S3BufferPool(2L * CHUNK);
+    assertThrows(IllegalArgumentException.class, () -> pool.acquire(2L * CHUNK + 1));
+  }
+
+  @Test
+  void testReservationsDoNotStarveEachOther() throws Exception {
+    S3BufferPool pool = new S3BufferPool(4L * CHUNK);
+    // the first reader takes the whole pool, the second waits for one buffer while holding nothing
+    S3BufferPool.Reservation first = pool.reserve(CHUNK, 8);
+    assertEquals(4, first.fits(CHUNK));
+    CompletableFuture<S3BufferPool.Reservation> second = CompletableFuture.supplyAsync(() -> pool.reserve(CHUNK, 8));
+    assertThrows(TimeoutException.class, () -> second.get(200, TimeUnit.MILLISECONDS));
+
+    // buffers taken from a reservation never wait, and return to it
+    S3BufferPool.Buffer buffer = first.acquire(2L * CHUNK);
+    assertEquals(2, first.fits(CHUNK));
+    assertThrows(IllegalStateException.class, () -> first.acquire(3L * CHUNK));
+    buffer.close();
+    assertEquals(4, first.fits(CHUNK));
+
+    // a buffer still held when its reservation closes returns to the pool
+    S3BufferPool.Buffer held = first.acquire(CHUNK);
+    first.close();
+    S3BufferPool.Reservation next = second.get(5, TimeUnit.SECONDS);
+    assertEquals(3, next.fits(CHUNK));
+    held.close();
+    next.close();
+    pool.acquire(4L * CHUNK).close();
+  }
+}
@@ -0,0 +1,80 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.amazonaws.util.BinaryUtils;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class S3ChecksumTest {
+
+  private static S3Checksum.Digest digest(S3Checksum.Algorithm algorithm, byte[] bytes, int offset, int length) {
+    S3Checksum.Digest digest = S3Checksum.digest(algorithm);
+    digest.update(bytes, offset, length);
+    return digest;
+  }
+
+  @Test
+  void testCrc32c() {
+    S3Crc32c crc = new S3Crc32c();
+    byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+    crc.update(check, 0, check.length);
+    assertEquals(0xE3069283, crc.getValue());
+
+    S3Crc32c direct = new S3Crc32c();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(check.length);
+    buffer.put(check);
+    buffer.flip();
+    direct.update(buffer);
+    assertEquals(0xE3069283, direct.getValue());
+  }
+
+  @Test
+  void testCrc32cOfPartsCombines() {
+    byte[] content = new byte[100_003];
+    new Random(7).nextBytes(content);
+    String whole = S3Checksum.combine(S3Checksum.Algorithm.CRC32C,
+        Collections.singletonList(digest(S3Checksum.Algorithm.CRC32C, content, 0, content.length)), false);
+
+    String parts = S3Checksum.combine(S3Checksum.Algorithm.CRC32C, Arrays.asList(
+        digest(S3Checksum.Algorithm.CRC32C, content, 0, 40_000),
+        digest(S3Checksum.Algorithm.CRC32C, content, 40_000, 1),
+        digest(S3Checksum.Algorithm.CRC32C, content, 40_001, 60_002)), true);
+
+    assertEquals(whole, parts);
+  }
+
+  @Test
+  void testMd5OfPartsIsETag() throws Exception {
+    byte[] content = new byte[3000];
+    new Random(7).nextBytes(content);
+    MessageDigest md5 = MessageDigest.getInstance("MD5");
+    md5.update(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(content, 0, 2000)));
+    md5.update(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(content, 2000, 3000)));
+    String eTag = BinaryUtils.toHex(md5.digest()) + "-2";
+
+    String computed = S3Checksum.combine(S3Checksum.Algorithm.MD5, Arrays.asList(
+        digest(S3Checksum.Algorithm.MD5, content, 0, 2000),
+        digest(S3Checksum.Algorithm.MD5, content, 2000, 1000)), true);
+
+    assertEquals(eTag, computed);
+    S3Checksum.verify("s3://foo-bucket/foo", S3Checksum.Algorithm.MD5, "\"" + eTag.toUpperCase() + "\"", computed);
+    assertEquals(BinaryUtils.toHex(MessageDigest.getInstance("MD5").digest(content)), S3Checksum.combine(S3Checksum.Algorithm.MD5,
+        Collections.singletonList(digest(S3Checksum.Algorithm.MD5, content, 0, content.length)), false));
+  }
+
+  @Test
+  void testVerifyReportsMismatch() {
+    RuntimeException e = assertThrows(RuntimeException.class,
+        () -> S3Checksum.verify("s3://foo-bucket/foo", S3Checksum.Algorithm.SHA256, "abc", "abd"));
+    assertEquals("Checksum mismatch for s3://foo-bucket/foo: sha256 expected abc but was abd", e.getMessage());
+    assertThrows(IllegalArgumentException.class, () -> S3Checksum.Algorithm.parse("crc64"));
+    assertEquals(S3Checksum.Algorithm.CRC32C, S3Checksum.Algorithm.parse(" CRC32C"));
+  }
+}
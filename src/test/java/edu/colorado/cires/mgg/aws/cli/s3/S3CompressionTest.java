@@ -0,0 +1,114 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class S3CompressionTest {
+
+  private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  @AfterEach
+  void after() {
+    executor.shutdownNow();
+  }
+
+  // several blocks of compressible text, the last one short
+  private static byte[] xyz() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 3 * S3BlockCompressor.BLOCK_SIZE + 1000; i++) {
+      text.append(-105.0 + i * 1e-5).append(' ').append(40.0 - i * 1e-5).append(' ').append(-1000 - i % 700).append('\n');
+    }
+    return text.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private byte[] compress(S3Compression compression, byte[] data) throws IOException {
+    try (InputStream in = new S3BlockCompressor(new ByteArrayInputStream(data), compression, executor, 3)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  private byte[] decompress(S3Compression compression, byte[] data) throws IOException {
+    try (InputStream in = new S3BlockDecompressor(new ByteArrayInputStream(data), compression, executor, 3)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Test
+  void testGzipBlocks() throws Exception {
+    byte[] data = xyz();
+    byte[] compressed = compress(S3Compression.GZIP, data);
+
+    assertTrue(compressed.length * 3 < data.length);
+    assertArrayEquals(data, decompress(S3Compression.GZIP, compressed));
+    // an ordinary multi-member gzip stream
+    assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  void testZstdBlocks() throws Exception {
+    byte[] data = xyz();
+    byte[] compressed = compress(S3Compression.ZSTD, data);
+
+    assertTrue(compressed.length * 3 < data.length);
+    assertArrayEquals(data, decompress(S3Compression.ZSTD, compressed));
+    assertArrayEquals(data, IOUtils.toByteArray(new ZstdInputStream(new ByteArrayInputStream(compressed))));
+  }
+
+  @Test
+  void testEmptyStreamIsValid() throws Exception {
+    byte[] compressed = compress(S3Compression.GZIP, new byte[0]);
+
+    assertEquals(0, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))).length);
+    assertEquals(0, decompress(S3Compression.GZIP, compressed).length);
+  }
+
+  @Test
+  void testDecompressesOtherTools() throws Exception {
+    byte[] data = xyz();
+    ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(gzip)) {
+      out.write(data);
+    }
+    ByteArrayOutputStream zstd = new ByteArrayOutputStream();
+    try (OutputStream out = new ZstdOutputStream(zstd)) {
+      out.write(data);
+    }
+
+    assertArrayEquals(data, decompress(S3Compression.GZIP, gzip.toByteArray()));
+    assertArrayEquals(data, decompress(S3Compression.ZSTD, zstd.toByteArray()));
+  }
+
+  @Test
+  void testCorruptBlockFails() throws Exception {
+    byte[] compressed = compress(S3Compression.GZIP, xyz());
+    compressed[100] ^= 0x55;
+
+    assertThrows(IOException.class, () -> decompress(S3Compression.GZIP, compressed));
+  }
+
+  @Test
+  void testContentEncoding() {
+    assertEquals(S3Compression.ZSTD, S3Compression.fromContentEncoding("zstd"));
+    assertEquals(S3Compression.GZIP, S3Compression.parse("GZIP"));
+    assertEquals(null, S3Compression.fromContentEncoding("identity"));
+    assertEquals(null, S3Compression.fromContentEncoding(null));
+  }
+}
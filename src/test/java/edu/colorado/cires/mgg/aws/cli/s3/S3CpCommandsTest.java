@@ -1,22 +1,51 @@
 package edu.colorado.cires.mgg.aws.cli.s3;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
 import edu.colorado.cires.mgg.aws.cli.s3.S3CpCommands.S3CpCommandsHandler;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
 class S3CpCommandsTest {
 
+  // walked files, sized from the disk where they exist
+  private static Stream<S3LocalFile> files(Path dir, String... keys) {
+    List<S3LocalFile> files = new ArrayList<>();
+    for (String key : keys) {
+      Path path = dir.resolve(key);
+      files.add(new S3LocalFile(key, path, path.toFile().length(), path.toFile().lastModified()));
+    }
+    return files.stream();
+  }
+
+  private static S3LocalFile file(Path path) {
+    return argThat(local -> local != null && local.getPath().equals(path));
+  }
 
   @Test
   void testUpload() {
@@ -33,7 +62,7 @@ class S3CpCommandsTest {
         recursive,
         include,
         exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).upload(eq(Paths.get(source)), eq("foo-bucket"), eq("bucket-file.txt"));
     verifyNoMoreInteractions(s3);
@@ -47,15 +76,85 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = null;
     String exclude = null;
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt"));
+    handler.run();
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("cats/dir/file2.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("cats/file3.txt"));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testUploadRecursiveConcurrent() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String source = "foo/bar";
+    String target = "s3://foo-bucket/cats";
+    boolean recursive = true;
+    String include = null;
+    String exclude = null;
+    int concurrency = 4;
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, concurrency, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "file4.txt",
+        "file5.txt"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("cats/dir/file2.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("cats/file3.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("cats/dir/file2.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("cats/file3.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file4.txt")), eq("foo-bucket"), eq("cats/file4.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file5.txt")), eq("foo-bucket"), eq("cats/file5.txt"));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testUploadRecursiveJournal() throws Exception {
+    Path journalFile = Paths.get("target/test-cp-journal/journal");
+    Files.deleteIfExists(journalFile);
+    try (S3Journal journal = new S3Journal(journalFile)) {
+      journal.done("s3://foo-bucket/cats/file1.txt");
+    }
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String source = "foo/bar";
+    try (S3Journal journal = new S3Journal(journalFile)) {
+      S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, "s3://foo-bucket/cats", true, S3Filter.ALL, 2, journal,
+          p -> files(p,"file1.txt", "file2.txt"));
+      handler.run();
+      assertTrue(journal.isDone("s3://foo-bucket/cats/file2.txt"));
+    }
+    verify(s3).upload(file(Paths.get(source).resolve("file2.txt")), eq("foo-bucket"), eq("cats/file2.txt"));
+    verify(s3).skip("s3://foo-bucket/cats/file1.txt", "already transferred");
+    verifyNoMoreInteractions(s3);
+    try (S3Journal journal = new S3Journal(journalFile)) {
+      assertTrue(journal.isDone("s3://foo-bucket/cats/file1.txt"));
+      assertTrue(journal.isDone("s3://foo-bucket/cats/file2.txt"));
+    }
+  }
+
+  @Test
+  void testUploadRecursiveFailure() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String source = "foo/bar";
+    String target = "s3://foo-bucket/cats";
+    boolean recursive = true;
+    String include = null;
+    String exclude = null;
+    int concurrency = 2;
+    doThrow(new RuntimeException("denied")).when(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, concurrency, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt"));
+    RuntimeException e = assertThrows(RuntimeException.class, handler::run);
+    assertEquals("1 of 3 objects failed", e.getMessage());
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("cats/dir/file2.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("cats/file3.txt"));
+    verify(s3).failed("s3://foo-bucket/cats/dir/file1.txt", "denied");
     verifyNoMoreInteractions(s3);
   }
 
@@ -67,15 +166,14 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = null;
     String exclude = null;
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("dir/file1.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("dir/file2.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("file3.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("dir/file1.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("dir/file2.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("file3.txt"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -87,15 +185,14 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = null;
     String exclude = null;
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("dir/file1.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("dir/file2.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("file3.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("dir/file1.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("dir/file2.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file3.txt")), eq("foo-bucket"), eq("file3.txt"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -107,15 +204,14 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = "*.zip";
     String exclude = null;
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt"),
-        p.resolve("dir/file4.zip"),
-        p.resolve("file5.zip")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "dir/file4.zip",
+        "file5.zip"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -127,16 +223,15 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = "**.zip";
     String exclude = null;
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt"),
-        p.resolve("dir/file4.zip"),
-        p.resolve("file5.zip")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "dir/file4.zip",
+        "file5.zip"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file4.zip")), eq("foo-bucket"), eq("cats/dir/file4.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file4.zip")), eq("foo-bucket"), eq("cats/dir/file4.zip"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -148,18 +243,17 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = null;
     String exclude = "*.txt";
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt"),
-        p.resolve("dir/file4.zip"),
-        p.resolve("file5.zip")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "dir/file4.zip",
+        "file5.zip"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("cats/dir/file2.txt"));
-    verify(s3).upload(eq(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file4.zip")), eq("foo-bucket"), eq("cats/dir/file4.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file1.txt")), eq("foo-bucket"), eq("cats/dir/file1.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file2.txt")), eq("foo-bucket"), eq("cats/dir/file2.txt"));
+    verify(s3).upload(file(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file4.zip")), eq("foo-bucket"), eq("cats/dir/file4.zip"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -171,16 +265,15 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = null;
     String exclude = "**.txt";
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt"),
-        p.resolve("dir/file4.zip"),
-        p.resolve("file5.zip")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "dir/file4.zip",
+        "file5.zip"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
-    verify(s3).upload(eq(Paths.get(source).resolve("dir/file4.zip")), eq("foo-bucket"), eq("cats/dir/file4.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("dir/file4.zip")), eq("foo-bucket"), eq("cats/dir/file4.zip"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -192,16 +285,15 @@ class S3CpCommandsTest {
     boolean recursive = true;
     String include = "*.zip";
     String exclude = "*cats*";
-    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> Arrays.asList(
-        p.resolve("dir/file1.txt"),
-        p.resolve("dir/file2.txt"),
-        p.resolve("file3.txt"),
-        p.resolve("dir/file4.zip"),
-        p.resolve("file5.zip"),
-        p.resolve("cats.zip")
-    ).stream());
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "dir/file4.zip",
+        "file5.zip",
+        "cats.zip"));
     handler.run();
-    verify(s3).upload(eq(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).upload(file(Paths.get(source).resolve("file5.zip")), eq("foo-bucket"), eq("cats/file5.zip"));
     verifyNoMoreInteractions(s3);
   }
 
@@ -214,7 +306,7 @@ class S3CpCommandsTest {
     String include = null;
     String exclude = null;
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).download(eq("foo-bucket"), eq("bucket-file.txt"), eq(Paths.get(target)));
     verifyNoMoreInteractions(s3);
@@ -239,7 +331,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("cats/dir/file1.txt"), eq(Paths.get(target).resolve("dir/file1.txt")));
@@ -248,6 +340,72 @@ class S3CpCommandsTest {
     verifyNoMoreInteractions(s3);
   }
 
+  @Test
+  void testDownloadRecursivePrefixes() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String target = "foo/bar/";
+    String source = "s3://foo-bucket/cats/";
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "cats/cruise1/file1.txt",
+          "cats/cruise1/tmp/file2.txt"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/cruise1/"), any(Consumer.class));
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Collections.singletonList("cats/cruise2/file3.txt").forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/cruise2/"), any(Consumer.class));
+    S3Filter filter = S3Filter.compile(Arrays.asList(
+        new S3FilterRule("{cruise1,cruise2}/**", null),
+        new S3FilterRule(null, "*/tmp/**")));
+
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, true, filter, 1, null,
+        p -> Collections.<S3LocalFile>emptyList().stream());
+    handler.run();
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/cruise1/"), any(Consumer.class));
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/cruise2/"), any(Consumer.class));
+    verify(s3).download(eq("foo-bucket"), eq("cats/cruise1/file1.txt"), eq(Paths.get(target).resolve("cruise1/file1.txt")));
+    verify(s3).download(eq("foo-bucket"), eq("cats/cruise2/file3.txt"), eq(Paths.get(target).resolve("cruise2/file3.txt")));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testDownloadRecursiveConcurrent() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String target = "foo/bar/";
+    String source = "s3://foo-bucket/cats/";
+    boolean recursive = true;
+    String include = null;
+    String exclude = null;
+    int concurrency = 3;
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "cats/dir/file1.txt",
+          "cats/dir/file2.txt",
+          "cats/file3.txt",
+          "cats/file4.txt"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    doThrow(new RuntimeException("not found")).when(s3).download(eq("foo-bucket"), eq("cats/file3.txt"), any(Path.class));
+
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, concurrency,
+        p -> Collections.<S3LocalFile>emptyList().stream());
+    RuntimeException e = assertThrows(RuntimeException.class, handler::run);
+    assertEquals("1 of 4 objects failed", e.getMessage());
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    verify(s3).download(eq("foo-bucket"), eq("cats/dir/file1.txt"), eq(Paths.get(target).resolve("dir/file1.txt")));
+    verify(s3).download(eq("foo-bucket"), eq("cats/dir/file2.txt"), eq(Paths.get(target).resolve("dir/file2.txt")));
+    verify(s3).download(eq("foo-bucket"), eq("cats/file3.txt"), eq(Paths.get(target).resolve("file3.txt")));
+    verify(s3).download(eq("foo-bucket"), eq("cats/file4.txt"), eq(Paths.get(target).resolve("file4.txt")));
+    verify(s3).failed("s3://foo-bucket/cats/file3.txt", "not found");
+    verifyNoMoreInteractions(s3);
+  }
+
   @Test
   void testDownloadRecursiveRoot() {
     S3Operations s3 = Mockito.mock(S3Operations.class);
@@ -267,7 +425,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq(""), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq(""), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("dir/file1.txt"), eq(Paths.get(target).resolve("dir/file1.txt")));
@@ -295,7 +453,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq(""), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq(""), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("dir/file1.txt"), eq(Paths.get(target).resolve("dir/file1.txt")));
@@ -325,7 +483,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("cats/file5.zip"), eq(Paths.get(target).resolve("file5.zip")));
@@ -353,7 +511,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("cats/dir/file4.zip"), eq(Paths.get(target).resolve("dir/file4.zip")));
@@ -382,7 +540,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("cats/dir/file1.txt"), eq(Paths.get(target).resolve("dir/file1.txt")));
@@ -413,7 +571,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("cats/dir/file4.zip"), eq(Paths.get(target).resolve("dir/file4.zip")));
@@ -443,7 +601,7 @@ class S3CpCommandsTest {
     }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
 
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
     verify(s3).download(eq("foo-bucket"), eq("cats/file5.zip"), eq(Paths.get(target).resolve("file5.zip")));
@@ -459,7 +617,7 @@ class S3CpCommandsTest {
     String include = null;
     String exclude = null;
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).copy(eq("source-bucket"), eq("source-file.txt"), eq("target-bucket"), eq("target-file.txt"));
     verifyNoMoreInteractions(s3);
@@ -483,7 +641,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("source-dir/dir/file1.txt"), eq("target-bucket"), eq("target-dir/dir/file1.txt"));
@@ -492,6 +650,36 @@ class S3CpCommandsTest {
     verifyNoMoreInteractions(s3);
   }
 
+  @Test
+  void testCopyRecursiveConcurrent() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String target = "s3://target-bucket/target-dir";
+    String source = "s3://source-bucket/source-dir";
+    boolean recursive = true;
+    String include = null;
+    String exclude = null;
+    int concurrency = 3;
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "source-dir/dir/file1.txt",
+          "source-dir/dir/file2.txt",
+          "source-dir/file3.txt",
+          "source-dir/file4.txt"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude, concurrency,
+        p -> Collections.<S3LocalFile>emptyList().stream());
+    handler.run();
+    verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
+    verify(s3).copy(eq("source-bucket"), eq("source-dir/dir/file1.txt"), eq("target-bucket"), eq("target-dir/dir/file1.txt"));
+    verify(s3).copy(eq("source-bucket"), eq("source-dir/dir/file2.txt"), eq("target-bucket"), eq("target-dir/dir/file2.txt"));
+    verify(s3).copy(eq("source-bucket"), eq("source-dir/file3.txt"), eq("target-bucket"), eq("target-dir/file3.txt"));
+    verify(s3).copy(eq("source-bucket"), eq("source-dir/file4.txt"), eq("target-bucket"), eq("target-dir/file4.txt"));
+    verifyNoMoreInteractions(s3);
+  }
+
   @Test
   void testCopyRecursiveRoot() {
     S3Operations s3 = Mockito.mock(S3Operations.class);
@@ -510,7 +698,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq(""), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq(""), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("dir/file1.txt"), eq("target-bucket"), eq("dir/file1.txt"));
@@ -537,7 +725,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq(""), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq(""), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("dir/file1.txt"), eq("target-bucket"), eq("dir/file1.txt"));
@@ -566,7 +754,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("source-dir/file5.zip"), eq("target-bucket"), eq("target-dir/file5.zip"));
@@ -593,7 +781,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("source-dir/dir/file4.zip"), eq("target-bucket"), eq("target-dir/dir/file4.zip"));
@@ -621,7 +809,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("source-dir/dir/file1.txt"), eq("target-bucket"), eq("target-dir/dir/file1.txt"));
@@ -651,7 +839,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("source-dir/dir/file4.zip"), eq("target-bucket"), eq("target-dir/dir/file4.zip"));
@@ -680,7 +868,7 @@ class S3CpCommandsTest {
       return null;
     }).when(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, source, target, recursive, include, exclude,
-        p -> Collections.<Path>emptyList().stream());
+        p -> Collections.<S3LocalFile>emptyList().stream());
     handler.run();
     verify(s3).forEachKey(eq("source-bucket"), eq("source-dir/"), any(Consumer.class));
     verify(s3).copy(eq("source-bucket"), eq("source-dir/file5.zip"), eq("target-bucket"), eq("target-dir/file5.zip"));
@@ -688,4 +876,142 @@ class S3CpCommandsTest {
   }
 
 
-}
\ No newline at end of file
+
+  @Test
+  void testUploadStandardInput() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, "-", "s3://foo-bucket/out.csv.gz", false, null, null,
+        p -> Collections.<S3LocalFile>emptyList().stream());
+    handler.run();
+    verify(s3).uploadStream(any(InputStream.class), eq("foo-bucket"), eq("out.csv.gz"));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testDownloadStandardOutput() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    S3CpCommandsHandler handler = new S3CpCommandsHandler(s3, "s3://foo-bucket/in.csv.gz", "-", false, null, null,
+        p -> Collections.<S3LocalFile>emptyList().stream());
+    handler.run();
+    verify(s3).downloadStream(eq("foo-bucket"), eq("in.csv.gz"), any(OutputStream.class));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testStandardStreamsNotRecursive() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    assertThrows(RuntimeException.class, () -> new S3CpCommandsHandler(s3, "-", "s3://foo-bucket/cats", true, null, null,
+        p -> Collections.<S3LocalFile>emptyList().stream()).run());
+    assertThrows(RuntimeException.class, () -> new S3CpCommandsHandler(s3, "-", "local.txt", false, null, null,
+        p -> Collections.<S3LocalFile>emptyList().stream()).run());
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testUploadRecursivePacked() throws Exception {
+    Path source = Paths.get("target/test-cp-pack");
+    FileUtils.deleteQuietly(source.toFile());
+    Files.createDirectories(source.resolve("dir"));
+    Files.write(source.resolve("dir/file1.txt"), new byte[600]);
+    Files.write(source.resolve("dir/file2.txt"), new byte[600]);
+    Files.write(source.resolve("file3.txt"), new byte[10]);
+    Files.write(source.resolve("big.bin"), new byte[5000]);
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    List<String> archives = Collections.synchronizedList(new ArrayList<>());
+    doAnswer(invocation -> {
+      List<S3Pack.Member> members = invocation.getArgument(0);
+      archives.add(invocation.getArgument(3) + " " + members.size());
+      try (InputStream in = S3Pack.tar(members, invocation.getArgument(1))) {
+        IOUtils.toByteArray(in);
+      }
+      return null;
+    }).when(s3).uploadArchive(any(), any(), eq("foo-bucket"), any());
+
+    new S3CpCommandsHandler(s3, source.toString(), "s3://foo-bucket/cats", true, S3Filter.ALL, 2, null, p -> files(p,
+        "dir/file1.txt",
+        "dir/file2.txt",
+        "file3.txt",
+        "big.bin")).withPack(3000, 1000).run();
+
+    verify(s3).upload(file(source.resolve("big.bin")), eq("foo-bucket"), eq("cats/big.bin"));
+    // members take 1536 bytes each, so only one fits the first archive
+    assertEquals(2, archives.size());
+    assertTrue(archives.stream().anyMatch(archive -> archive.matches("cats/\\.s3pack/.*-0\\.tar 1")));
+    assertTrue(archives.stream().anyMatch(archive -> archive.matches("cats/\\.s3pack/.*-1\\.tar 2")));
+    // each archive is indexed on its own
+    ArgumentCaptor<byte[]> index = ArgumentCaptor.forClass(byte[].class);
+    verify(s3).uploadBytes(index.capture(), eq("foo-bucket"), Mockito.matches("cats/\\.s3pack/.*-0\\.index"));
+    assertEquals(Collections.singletonList("dir/file1.txt"),
+        S3Pack.readIndex(index.getValue()).stream().map(S3Pack.Member::getPath).collect(Collectors.toList()));
+    verify(s3).uploadBytes(index.capture(), eq("foo-bucket"), Mockito.matches("cats/\\.s3pack/.*-1\\.index"));
+    List<S3Pack.Member> members = S3Pack.readIndex(index.getValue());
+    assertEquals(Arrays.asList("dir/file2.txt", "file3.txt"),
+        members.stream().map(S3Pack.Member::getPath).collect(Collectors.toList()));
+    assertEquals(2048, members.get(1).getOffset());
+    assertEquals(10, members.get(1).getSize());
+  }
+
+  @Test
+  void testDownloadRecursiveUnpack() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String target = "foo/bar/";
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "cats/.s3pack/20260101T000000000Z-0.tar",
+          "cats/.s3pack/20260101T000000000Z.index",
+          "cats/big.bin",
+          "cats/dir/.s3pack/20250101T000000000Z-0.tar",
+          "cats/dir/.s3pack/20250101T000000000Z.index"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    doAnswer(invocation -> {
+      invocation.getArgument(2, Consumer.class).accept("cats/.s3pack/20260101T000000000Z.index");
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/.s3pack/"), any(Consumer.class));
+    Mockito.when(s3.downloadBytes("foo-bucket", "cats/.s3pack/20260101T000000000Z.index")).thenReturn(
+        "# s3pack 1\ndir/file1.txt\t20260101T000000000Z-0.tar\t512\t600\nbig.bin\t20260101T000000000Z-0.tar\t1536\t5\n"
+            .getBytes(StandardCharsets.UTF_8));
+    Mockito.when(s3.downloadBytes("foo-bucket", "cats/dir/.s3pack/20250101T000000000Z.index")).thenReturn(
+        "# s3pack 1\nfile1.txt\t20250101T000000000Z-0.tar\t512\t700\nfile2.txt\t20250101T000000000Z-0.tar\t1536\t20\n"
+            .getBytes(StandardCharsets.UTF_8));
+
+    new S3CpCommandsHandler(s3, "s3://foo-bucket/cats", target, true, S3Filter.ALL, 1, null,
+        p -> Collections.<S3LocalFile>emptyList().stream()).withUnpack(true).run();
+
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/.s3pack/"), any(Consumer.class));
+    verify(s3).forEachKey(eq("foo-bucket"), eq(".s3pack/"), any(Consumer.class));
+    verify(s3).downloadBytes("foo-bucket", "cats/.s3pack/20260101T000000000Z.index");
+    verify(s3).downloadBytes("foo-bucket", "cats/dir/.s3pack/20250101T000000000Z.index");
+    verify(s3).download(eq("foo-bucket"), eq("cats/big.bin"), eq(Paths.get(target).resolve("big.bin")));
+    // the later upload replaces dir/file1.txt
+    verify(s3).downloadRange("foo-bucket", "cats/.s3pack/20260101T000000000Z-0.tar", 512, 600, Paths.get(target).resolve("dir/file1.txt"));
+    verify(s3).downloadRange("foo-bucket", "cats/dir/.s3pack/20250101T000000000Z-0.tar", 1536, 20, Paths.get(target).resolve("dir/file2.txt"));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testDownloadUnpack() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    doAnswer(invocation -> {
+      invocation.getArgument(2, Consumer.class).accept(".s3pack/20260101T000000000Z.index");
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq(".s3pack/"), any(Consumer.class));
+    Mockito.when(s3.downloadBytes("foo-bucket", ".s3pack/20260101T000000000Z.index")).thenReturn(
+        "# s3pack 1\ncats/file1.txt\t20260101T000000000Z-0.tar\t512\t600\n".getBytes(StandardCharsets.UTF_8));
+
+    new S3CpCommandsHandler(s3, "s3://foo-bucket/cats/file1.txt", "file1.txt", false, S3Filter.ALL, 1, null,
+        p -> Collections.<S3LocalFile>emptyList().stream()).withUnpack(true).run();
+    new S3CpCommandsHandler(s3, "s3://foo-bucket/cats/file2.txt", "file2.txt", false, S3Filter.ALL, 1, null,
+        p -> Collections.<S3LocalFile>emptyList().stream()).withUnpack(true).run();
+
+    verify(s3, Mockito.times(2)).forEachKey(eq("foo-bucket"), eq("cats/.s3pack/"), any(Consumer.class));
+    verify(s3, Mockito.times(2)).forEachKey(eq("foo-bucket"), eq(".s3pack/"), any(Consumer.class));
+    verify(s3, Mockito.times(2)).downloadBytes("foo-bucket", ".s3pack/20260101T000000000Z.index");
+    verify(s3).downloadRange("foo-bucket", ".s3pack/20260101T000000000Z-0.tar", 512, 600, Paths.get("file1.txt"));
+    verify(s3).download("foo-bucket", "cats/file2.txt", Paths.get("file2.txt"));
+    verifyNoMoreInteractions(s3);
+  }
+}
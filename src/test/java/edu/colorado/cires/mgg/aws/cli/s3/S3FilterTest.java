@@ -0,0 +1,146 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+class S3FilterTest {
+
+  @Test
+  void testGlobMatchesPathMatcher() {
+    List<String> globs = Arrays.asList("*.zip", "**.zip", "*", "**", "dir/*", "dir/**", "*cats*", "**/file?.txt", "file[12].txt",
+        "file[!1].txt", "file[a-c].txt", "*.{zip,txt}", "dir/{a,b}/**", "a.b+c(1)", "\\*.zip", "**/dir/**");
+    List<String> keys = Arrays.asList("file1.txt", "file2.txt", "filea.txt", "file.zip", "dir/file1.txt", "dir/file.zip", "dir/a/x.zip",
+        "dir/b/c/x.txt", "cats/dir/file3.txt", "mycats.txt", "a.b+c(1)", "*.zip", "x/dir/y");
+    for (String glob : globs) {
+      PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+      S3Filter filter = S3Filter.of(glob, null);
+      for (String key : keys) {
+        assertEquals(matcher.matches(Paths.get(key)), filter.matches(key), glob + " " + key);
+      }
+    }
+  }
+
+  @Test
+  void testSingleIncludeExclude() {
+    S3Filter filter = S3Filter.of("*.zip", "*cats*");
+    assertTrue(filter.matches("file.zip"));
+    assertFalse(filter.matches("cats.zip"));
+    assertFalse(filter.matches("file.txt"));
+    assertFalse(filter.matches("dir/file.zip"));
+
+    assertTrue(S3Filter.of(null, "*.txt").matches("file.zip"));
+    assertFalse(S3Filter.of(null, "*.txt").matches("file.txt"));
+    assertTrue(S3Filter.ALL.matches("anything/at/all"));
+  }
+
+  @Test
+  void testLastMatchWins() {
+    S3Filter filter = S3Filter.compile(Arrays.asList(
+        new S3FilterRule(null, "**"),
+        new S3FilterRule("**.zip", null),
+        new S3FilterRule(null, "tmp/**")));
+    assertTrue(filter.matches("a/b.zip"));
+    assertFalse(filter.matches("a/b.txt"));
+    assertFalse(filter.matches("tmp/b.zip"));
+
+    filter = S3Filter.compile(Arrays.asList(
+        new S3FilterRule(null, "*.log"),
+        new S3FilterRule("keep.log", null)));
+    assertTrue(filter.matches("data.txt"));
+    assertFalse(filter.matches("debug.log"));
+    assertTrue(filter.matches("keep.log"));
+  }
+
+  @Test
+  void testListPrefixes() {
+    assertEquals(Collections.singletonList(""), S3Filter.ALL.listPrefixes());
+    assertEquals(Collections.singletonList(""), S3Filter.of(null, "*.txt").listPrefixes());
+    assertEquals(Collections.singletonList(""), S3Filter.of("*.zip", null).listPrefixes());
+    assertEquals(Collections.singletonList("cruise123/"), S3Filter.of("cruise123/**", null).listPrefixes());
+    assertEquals(Collections.singletonList("cruise12"), S3Filter.of("cruise12*/**", null).listPrefixes());
+    assertEquals(Arrays.asList("a*b/", "cruise1/", "cruise2/"), S3Filter.compile(Arrays.asList(
+        new S3FilterRule("{cruise2,cruise1}/**", null),
+        new S3FilterRule("cruise1/data/**", "cruise1/tmp/**"),
+        new S3FilterRule("a\\*b/*.txt", null))).listPrefixes());
+    assertEquals(Arrays.asList("x/a/", "x/b/", "y/a/", "y/b/"), S3Filter.of("{x,y}/{a,b}/*", null).listPrefixes());
+  }
+
+  @Test
+  void testMayMatchUnder() {
+    assertTrue(S3Filter.ALL.mayMatchUnder("a/b"));
+    S3Filter filter = S3Filter.of("cruise123/**", null);
+    assertTrue(filter.mayMatchUnder("cruise123"));
+    assertTrue(filter.mayMatchUnder("cruise123/raw"));
+    assertFalse(filter.mayMatchUnder("cruise124"));
+
+    filter = S3Filter.of("*.zip", null);
+    assertFalse(filter.mayMatchUnder("dir"));
+    filter = S3Filter.of("**.zip", null);
+    assertTrue(filter.mayMatchUnder("dir"));
+    filter = S3Filter.of("dir/*/*.zip", null);
+    assertTrue(filter.mayMatchUnder("dir"));
+    assertTrue(filter.mayMatchUnder("dir/x"));
+    assertFalse(filter.mayMatchUnder("dir/x/y"));
+    assertFalse(filter.mayMatchUnder("other"));
+
+    filter = S3Filter.of(null, "tmp/**");
+    assertFalse(filter.mayMatchUnder("tmp"));
+    assertFalse(filter.mayMatchUnder("tmp/a"));
+    assertTrue(filter.mayMatchUnder("data"));
+
+    filter = S3Filter.compile(Arrays.asList(new S3FilterRule(null, "tmp/**"), new S3FilterRule("tmp/keep/*", null)));
+    assertTrue(filter.mayMatchUnder("tmp"));
+    assertTrue(filter.mayMatchUnder("tmp/keep"));
+    assertFalse(filter.mayMatchUnder("tmp/other"));
+  }
+
+  @Test
+  void testPruningAgreesWithMatches() {
+    List<S3Filter> filters = Arrays.asList(
+        S3Filter.of("cruise1/**", "**/tmp/**"),
+        S3Filter.of("{a,b}/*.txt", null),
+        S3Filter.of("a*/**", "a/b/*"),
+        S3Filter.compile(Arrays.asList(new S3FilterRule(null, "**"), new S3FilterRule("*/b/**", null), new S3FilterRule(null, "a/b/c/**"))));
+    List<String> keys = Arrays.asList("cruise1/x.txt", "cruise1/tmp/x.txt", "cruise2/x.txt", "a/x.txt", "a/b/x.txt", "a/b/c/x.txt",
+        "b/x.txt", "b/b/x.txt", "ab/x.txt", "c/b/c/x.txt", "x.txt");
+    for (S3Filter filter : filters) {
+      for (String key : keys) {
+        if (filter.matches(key)) {
+          assertTrue(filter.listPrefixes().stream().anyMatch(key::startsWith), key);
+          String dir = key;
+          while (dir.lastIndexOf('/') > 0) {
+            dir = dir.substring(0, dir.lastIndexOf('/'));
+            assertTrue(filter.mayMatchUnder(dir), dir);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testOptionsKeepOrder() throws Exception {
+    S3RmCommands command = new S3RmCommands();
+    new CommandLine(command).parseArgs("s3://foo-bucket/cats", "-r", "-e", "**", "--include", "**.zip", "-e", "tmp/**", "-i", "tmp/keep.zip");
+    Field field = S3RmCommands.class.getDeclaredField("filterRules");
+    field.setAccessible(true);
+    List<S3FilterRule> filterRules = (List<S3FilterRule>) field.get(command);
+    S3Filter filter = S3Filter.compile(filterRules);
+    assertEquals(4, filterRules.size());
+    assertTrue(filter.matches("a/b.zip"));
+    assertFalse(filter.matches("a/b.txt"));
+    assertFalse(filter.matches("tmp/b.zip"));
+    assertTrue(filter.matches("tmp/keep.zip"));
+  }
+}
@@ -0,0 +1,141 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class S3FingerprintIndexTest {
+
+  private static final Path DIR = Paths.get("target/test-fingerprint-index");
+
+  @BeforeEach
+  void before() throws Exception {
+    FileUtils.deleteQuietly(DIR.toFile());
+    Files.createDirectories(DIR.resolve("data"));
+  }
+
+  @AfterEach
+  void after() {
+    FileUtils.deleteQuietly(DIR.toFile());
+  }
+
+  private static S3LocalFile write(String key, String content, long lastModified) throws Exception {
+    Path path = DIR.resolve("data").resolve(key);
+    Files.createDirectories(path.getParent());
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+    return new S3LocalFile(key, path, Files.size(path), lastModified);
+  }
+
+  @Test
+  void testReusesUnchangedFiles() throws Exception {
+    Path indexFile = DIR.resolve("index");
+    S3LocalFile a = write("a.txt", "aaaa", 1000000);
+    S3LocalFile b = write("b/b.txt", "bbbb", 1000000);
+    String md5A = S3Utils.md5Hex(a.getPath());
+    String md5B = S3Utils.md5Hex(b.getPath());
+
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      assertEquals(md5A, index.md5Hex(a));
+      assertEquals(md5B, index.md5Hex(b));
+    }
+    assertTrue(Files.isRegularFile(indexFile));
+
+    // same size and modification time, so the stored hash is returned without reading the new content
+    S3LocalFile sameStat = write("a.txt", "cccc", 1000000);
+    S3LocalFile newer = write("b/b.txt", "dddd", 2000000);
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      assertEquals(md5A, index.md5Hex(sameStat));
+      assertEquals(S3Utils.md5Hex(newer.getPath()), index.md5Hex(newer));
+    }
+
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      assertEquals(S3Utils.md5Hex(newer.getPath()), index.md5Hex(newer));
+    }
+  }
+
+  @Test
+  void testMergesManyEntries() throws Exception {
+    Path indexFile = DIR.resolve("index");
+    S3LocalFile[] files = new S3LocalFile[300];
+    String[] md5s = new String[files.length];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = write(String.format("d%d/f%03d.txt", i % 7, i), "content " + i, 1000000);
+      md5s[i] = S3Utils.md5Hex(files[i].getPath());
+    }
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      for (int i = 0; i < files.length; i += 2) {
+        index.md5Hex(files[i]);
+      }
+    }
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      for (int i = 1; i < files.length; i += 2) {
+        index.md5Hex(files[i]);
+      }
+    }
+    // rewrite every file keeping its size and modification time, then every entry must still be found in the merged index
+    for (S3LocalFile file : files) {
+      Files.write(file.getPath(), new String(new char[(int) file.getSize()]).replace('\0', 'x').getBytes(StandardCharsets.UTF_8));
+      Files.setLastModifiedTime(file.getPath(), FileTime.fromMillis(1000000));
+    }
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      for (int i = 0; i < files.length; i++) {
+        assertEquals(md5s[i], index.md5Hex(files[i]));
+      }
+    }
+  }
+
+  @Test
+  void testPrunesUnseenEntries() throws Exception {
+    Path indexFile = DIR.resolve("index");
+    S3LocalFile a = write("a.txt", "aaaa", 1000000);
+    S3LocalFile b = write("b.txt", "bbbb", 1000000);
+    String md5A = S3Utils.md5Hex(a.getPath());
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      index.md5Hex(a);
+      index.md5Hex(b);
+    }
+    long size = Files.size(indexFile);
+
+    // b.txt was deleted, a walk that only sees a.txt drops its entry
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      index.seen("a.txt");
+      index.pruneUnseen();
+    }
+    assertTrue(Files.size(indexFile) < size);
+
+    S3LocalFile sameStat = write("a.txt", "cccc", 1000000);
+    S3LocalFile sameStatB = write("b.txt", "dddd", 1000000);
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      assertEquals(S3Utils.md5Hex(sameStatB.getPath()), index.md5Hex(sameStatB));
+      assertEquals(md5A, index.md5Hex(sameStat));
+    }
+  }
+
+  @Test
+  void testRebuildsTruncatedIndex() throws Exception {
+    Path indexFile = DIR.resolve("index");
+    S3LocalFile a = write("a.txt", "aaaa", 1000000);
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      index.md5Hex(a);
+    }
+    byte[] bytes = Files.readAllBytes(indexFile);
+    Files.write(indexFile, Arrays.copyOf(bytes, bytes.length - 5));
+
+    S3LocalFile changed = write("a.txt", "cccc", 1000000);
+    try (S3FingerprintIndex index = new S3FingerprintIndex(indexFile)) {
+      assertEquals(S3Utils.md5Hex(changed.getPath()), index.md5Hex(changed));
+    }
+    assertEquals(bytes.length, Files.size(indexFile));
+  }
+}
@@ -0,0 +1,123 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class S3JournalTest {
+
+  private static final Path DIR = Paths.get("target/test-journal");
+  private static final Path FILE = DIR.resolve("journal");
+
+  @BeforeEach
+  void before() {
+    FileUtils.deleteQuietly(DIR.toFile());
+  }
+
+  @AfterEach
+  void after() {
+    FileUtils.deleteQuietly(DIR.toFile());
+  }
+
+  @Test
+  void testDoneAll() {
+    List<String> objects = new ArrayList<>();
+    for (int i = 0; i < S3Journal.SYNC_RECORDS * 2 + 1; i++) {
+      objects.add("s3://foo-bucket/key-" + i);
+    }
+    try (S3Journal journal = new S3Journal(FILE)) {
+      journal.doneAll(objects.subList(0, 10));
+      journal.doneAll(objects.subList(5, objects.size()));
+      journal.doneAll(Collections.emptyList());
+    }
+    try (S3Journal journal = new S3Journal(FILE)) {
+      for (String object : objects) {
+        assertTrue(journal.isDone(object), object);
+      }
+      assertFalse(journal.isDone("s3://foo-bucket/other"));
+    }
+  }
+
+  @Test
+  void testReload() {
+    try (S3Journal journal = new S3Journal(FILE)) {
+      journal.done("s3://foo-bucket/a.txt");
+      journal.done("s3://foo-bucket/tab\there\\.txt");
+      journal.startUpload("s3://foo-bucket/big.bin", "upload-1", 100, 2000, 10);
+      journal.partDone("s3://foo-bucket/big.bin", "upload-1", 2, "etag-2");
+      journal.partDone("s3://foo-bucket/big.bin", "upload-1", 1, "etag-1");
+      journal.partDone("s3://foo-bucket/big.bin", "stale-upload", 3, "etag-3");
+      journal.startUpload("s3://foo-bucket/done.bin", "upload-2", 100, 2000, 10);
+      journal.partDone("s3://foo-bucket/done.bin", "upload-2", 1, "etag-1");
+      journal.done("s3://foo-bucket/done.bin");
+    }
+    try (S3Journal journal = new S3Journal(FILE)) {
+      assertTrue(journal.isDone("s3://foo-bucket/a.txt"));
+      assertTrue(journal.isDone("s3://foo-bucket/tab\there\\.txt"));
+      assertTrue(journal.isDone("s3://foo-bucket/done.bin"));
+      assertFalse(journal.isDone("s3://foo-bucket/big.bin"));
+      assertNull(journal.getUpload("s3://foo-bucket/done.bin"));
+      S3Journal.Upload upload = journal.getUpload("s3://foo-bucket/big.bin");
+      assertEquals("upload-1", upload.getUploadId());
+      assertEquals(100, upload.getSize());
+      assertEquals(2000, upload.getLastModified());
+      assertEquals(10, upload.getPartSize());
+      assertEquals(2, upload.getParts().size());
+      assertEquals("etag-1", upload.getParts().get(1));
+      assertEquals("etag-2", upload.getParts().get(2));
+    }
+  }
+
+  @Test
+  void testPartialLastLine() throws Exception {
+    try (S3Journal journal = new S3Journal(FILE)) {
+      journal.done("s3://foo-bucket/a.txt");
+    }
+    Files.write(FILE, "D\ts3://foo-bucket/b".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    try (S3Journal journal = new S3Journal(FILE)) {
+      assertTrue(journal.isDone("s3://foo-bucket/a.txt"));
+      assertFalse(journal.isDone("s3://foo-bucket/b"));
+      journal.done("s3://foo-bucket/b.txt");
+    }
+    try (S3Journal journal = new S3Journal(FILE)) {
+      assertTrue(journal.isDone("s3://foo-bucket/b.txt"));
+      assertFalse(journal.isDone("s3://foo-bucket/b"));
+    }
+  }
+
+  @Test
+  void testCompaction() throws Exception {
+    try (S3Journal journal = new S3Journal(FILE)) {
+      for (int i = 0; i < 200; i++) {
+        String object = "s3://foo-bucket/" + i + ".bin";
+        journal.startUpload(object, "upload-" + i, 100, 2000, 10);
+        for (int part = 1; part <= 10; part++) {
+          journal.partDone(object, "upload-" + i, part, "etag-" + part);
+        }
+        journal.done(object);
+      }
+      // 2200 upload and part records are obsolete, compaction keeps the journal near the 200 done records
+      assertTrue(Files.readAllLines(FILE).size() < 1500);
+    }
+    try (S3Journal journal = new S3Journal(FILE)) {
+      for (int i = 0; i < 200; i++) {
+        assertTrue(journal.isDone("s3://foo-bucket/" + i + ".bin"));
+      }
+    }
+    assertEquals(200, Files.readAllLines(FILE).size());
+  }
+}
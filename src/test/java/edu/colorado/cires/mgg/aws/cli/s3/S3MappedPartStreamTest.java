@@ -0,0 +1,75 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class S3MappedPartStreamTest {
+
+  private static final Path DIR = Paths.get("target/test-mapped");
+
+  @AfterEach
+  void after() {
+    FileUtils.deleteQuietly(DIR.toFile());
+  }
+
+  @Test
+  void testReadsPartAndRereadsAfterReset() throws Exception {
+    Files.createDirectories(DIR);
+    Path file = DIR.resolve("data.bin");
+    byte[] content = new byte[100_000];
+    new Random(11).nextBytes(content);
+    Files.write(file, content);
+
+    InputStream in = S3MappedPartStream.open(file, 30_000, 50_000, new Semaphore(1));
+    in.mark(Integer.MAX_VALUE);
+    assertEquals(50_000, in.available());
+    assertEquals(content[30_000] & 0xff, in.read());
+    assertEquals(1000, in.skip(1000));
+    in.reset();
+    byte[] expected = Arrays.copyOfRange(content, 30_000, 80_000);
+    assertArrayEquals(expected, IOUtils.toByteArray(in));
+    assertEquals(-1, in.read());
+    in.reset();
+    assertArrayEquals(expected, IOUtils.toByteArray(in));
+  }
+
+  @Test
+  void testHoldsPermitUntilClosed() throws Exception {
+    Files.createDirectories(DIR);
+    Path file = DIR.resolve("data.bin");
+    Files.write(file, new byte[1000]);
+    Semaphore permits = new Semaphore(2);
+
+    S3MappedPartStream first = S3MappedPartStream.open(file, 0, 500, permits);
+    S3MappedPartStream second = S3MappedPartStream.open(file, 500, 500, permits);
+    assertEquals(0, permits.availablePermits());
+    first.close();
+    first.close();
+    assertEquals(1, permits.availablePermits());
+    assertThrows(IOException.class, first::read);
+    second.close();
+    assertEquals(2, permits.availablePermits());
+  }
+
+  @Test
+  void testUnmappablePartReleasesPermit() {
+    Semaphore permits = new Semaphore(1);
+    assertNull(S3MappedPartStream.open(DIR.resolve("missing.bin"), 0, 500, permits));
+    assertEquals(1, permits.availablePermits());
+  }
+}
@@ -0,0 +1,73 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+class S3ObjectListerTest {
+
+  private static ListObjectsV2Result page(String nextToken, String... keys) {
+    ListObjectsV2Result result = new ListObjectsV2Result();
+    for (String key : keys) {
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setKey(key);
+      result.getObjectSummaries().add(summary);
+    }
+    result.setNextContinuationToken(nextToken);
+    result.setTruncated(nextToken != null);
+    return result;
+  }
+
+  @Test
+  void testFollowsContinuationTokens() {
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    List<String> requested = new ArrayList<>();
+    when(s3.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+      ListObjectsV2Request request = invocation.getArgument(0);
+      assertEquals("foo-bucket", request.getBucketName());
+      assertEquals("cats/", request.getPrefix());
+      assertEquals(Integer.valueOf(2), request.getMaxKeys());
+      requested.add(request.getContinuationToken());
+      if (request.getContinuationToken() == null) {
+        return page("t1", "cats/a", "cats/b");
+      }
+      if (request.getContinuationToken().equals("t1")) {
+        return page("t2", "cats/c", "cats/d");
+      }
+      return page(null, "cats/e");
+    });
+
+    List<String> keys = new ArrayList<>();
+    try (S3ObjectLister lister = new S3ObjectLister(s3, "foo-bucket", "cats/", 2, 1)) {
+      lister.forEachRemaining(summary -> keys.add(summary.getKey()));
+    }
+
+    assertEquals(Arrays.asList("cats/a", "cats/b", "cats/c", "cats/d", "cats/e"), keys);
+    assertEquals(Arrays.asList(null, "t1", "t2"), requested);
+  }
+
+  @Test
+  void testListingErrorReachesConsumer() {
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    when(s3.listObjectsV2(any(ListObjectsV2Request.class)))
+        .thenReturn(page("t1", "cats/a"))
+        .thenThrow(new AmazonS3Exception("Access Denied"));
+
+    try (S3ObjectLister lister = new S3ObjectLister(s3, "foo-bucket", "cats/", 1000, 2)) {
+      assertEquals("cats/a", lister.next().getKey());
+      assertThrows(AmazonS3Exception.class, lister::hasNext);
+    }
+  }
+}
@@ -0,0 +1,761 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.GetObjectTaggingResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.SetObjectTaggingRequest;
+import com.amazonaws.services.s3.model.Tag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.util.BinaryUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+class S3OperationsImplTest {
+
+  private static final Path DIR = Paths.get("target/test-operations");
+  private static final long MB = 1024L * 1024L;
+
+  private Path file;
+
+  @BeforeEach
+  void before() throws Exception {
+    FileUtils.deleteQuietly(DIR.toFile());
+    Files.createDirectories(DIR);
+    file = DIR.resolve("big.bin");
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.setLength(11 * MB);
+    }
+  }
+
+  @AfterEach
+  void after() {
+    FileUtils.deleteQuietly(DIR.toFile());
+  }
+
+  private static AmazonS3 mockS3(List<Integer> uploadedParts) {
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+    initiated.setUploadId("new-upload");
+    when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+    when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+      UploadPartRequest request = invocation.getArgument(0);
+      synchronized (uploadedParts) {
+        uploadedParts.add(request.getPartNumber());
+      }
+      // the part is read like the SDK sends it
+      if (request.getInputStream() != null) {
+        IOUtils.toByteArray(request.getInputStream(), request.getPartSize());
+      }
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag(request.getUploadId() + "-" + request.getPartNumber());
+      return result;
+    });
+    return s3;
+  }
+
+  private static S3TransferConfig config() {
+    return new S3TransferConfig().withProgressBar(false).withThreads(2).withMultipartThreshold(8 * MB).withPartSize(5 * MB);
+  }
+
+  @Test
+  void testMultipartUploadResumesFromJournal() throws Exception {
+    List<Integer> uploadedParts = new ArrayList<>();
+    AmazonS3 s3 = mockS3(uploadedParts);
+    long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+    try (S3Journal journal = new S3Journal(DIR.resolve("journal"))) {
+      journal.startUpload("s3://foo-bucket/big.bin", "old-upload", 11 * MB, lastModified, 5 * MB);
+      journal.partDone("s3://foo-bucket/big.bin", "old-upload", 1, "old-upload-1");
+      try (S3OperationsImpl operations = new S3OperationsImpl(s3, config(), journal)) {
+        operations.upload(file, "foo-bucket", "big.bin");
+      }
+      assertEquals(3, journal.getUpload("s3://foo-bucket/big.bin").getParts().size());
+    }
+
+    verify(s3, times(0)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    uploadedParts.sort(Integer::compare);
+    assertEquals(Arrays.asList(2, 3), uploadedParts);
+    ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(s3).completeMultipartUpload(complete.capture());
+    assertEquals("old-upload", complete.getValue().getUploadId());
+    List<PartETag> parts = complete.getValue().getPartETags();
+    assertEquals(3, parts.size());
+    for (int i = 0; i < parts.size(); i++) {
+      assertEquals(i + 1, parts.get(i).getPartNumber());
+      assertEquals("old-upload-" + (i + 1), parts.get(i).getETag());
+    }
+  }
+
+  @Test
+  void testMultipartUploadRestartsChangedFile() throws Exception {
+    List<Integer> uploadedParts = new ArrayList<>();
+    AmazonS3 s3 = mockS3(uploadedParts);
+
+    try (S3Journal journal = new S3Journal(DIR.resolve("journal"))) {
+      journal.startUpload("s3://foo-bucket/big.bin", "old-upload", 10 * MB, 0, 5 * MB);
+      journal.partDone("s3://foo-bucket/big.bin", "old-upload", 1, "old-upload-1");
+      try (S3OperationsImpl operations = new S3OperationsImpl(s3, config(), journal)) {
+        operations.upload(file, "foo-bucket", "big.bin");
+      }
+      assertEquals("new-upload", journal.getUpload("s3://foo-bucket/big.bin").getUploadId());
+    }
+
+    assertEquals(3, uploadedParts.size());
+    ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(s3).completeMultipartUpload(complete.capture());
+    assertEquals("new-upload", complete.getValue().getUploadId());
+  }
+
+  @Test
+  void testMultipartUploadAbortsWithoutJournal() {
+    AmazonS3 s3 = mockS3(new ArrayList<>());
+    when(s3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenThrow(new IllegalStateException("boom"));
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      IllegalStateException e = assertThrows(IllegalStateException.class, () -> operations.upload(file, "foo-bucket", "big.bin"));
+      assertEquals("boom", e.getMessage());
+    }
+
+    ArgumentCaptor<AbortMultipartUploadRequest> abort = ArgumentCaptor.forClass(AbortMultipartUploadRequest.class);
+    verify(s3).abortMultipartUpload(abort.capture());
+    assertEquals("new-upload", abort.getValue().getUploadId());
+  }
+
+  private static AmazonS3 mockObject(byte[] content, List<Long> requestedRanges) {
+    return mockObject(content, "etag-1", requestedRanges);
+  }
+
+  private static AmazonS3 mockObject(byte[] content, String eTag, List<Long> requestedRanges) {
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(content.length);
+    metadata.setHeader("ETag", eTag);
+    when(s3.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata);
+    when(s3.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> {
+      GetObjectRequest request = invocation.getArgument(0);
+      assertEquals(Collections.singletonList(eTag), request.getMatchingETagConstraints());
+      long[] range = request.getRange();
+      synchronized (requestedRanges) {
+        requestedRanges.add(range[0]);
+      }
+      S3Object object = new S3Object();
+      object.setObjectContent(new ByteArrayInputStream(content, (int) range[0], (int) (range[1] - range[0] + 1)));
+      return object;
+    });
+    return s3;
+  }
+
+  private static byte[] content() {
+    byte[] content = new byte[(int) (11 * MB)];
+    new Random(42).nextBytes(content);
+    return content;
+  }
+
+  @Test
+  void testRangedDownload() throws Exception {
+    byte[] content = content();
+    List<Long> requestedRanges = new ArrayList<>();
+    AmazonS3 s3 = mockObject(content, requestedRanges);
+    Path target = DIR.resolve("download/big.bin");
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      operations.download("foo-bucket", "big.bin", target);
+    }
+
+    requestedRanges.sort(Long::compare);
+    assertEquals(Arrays.asList(0L, 5 * MB, 10 * MB), requestedRanges);
+    assertArrayEquals(content, Files.readAllBytes(target));
+    assertFalse(Files.exists(DIR.resolve("download/big.bin" + S3RangedDownload.SIDECAR_SUFFIX)));
+  }
+
+  @Test
+  void testRangedDownloadResumes() throws Exception {
+    byte[] content = content();
+    List<Long> requestedRanges = new ArrayList<>();
+    AmazonS3 s3 = mockObject(content, requestedRanges);
+    Path target = DIR.resolve("big-download.bin");
+    byte[] partial = new byte[content.length];
+    System.arraycopy(content, (int) (5 * MB), partial, (int) (5 * MB), (int) (5 * MB));
+    Files.write(target, partial);
+    // range 1 is complete, the record for range 2 was cut short
+    Files.write(DIR.resolve("big-download.bin" + S3RangedDownload.SIDECAR_SUFFIX),
+        ("etag-1\t" + content.length + "\t" + 5 * MB + "\n1\n2").getBytes(StandardCharsets.UTF_8));
+
+    // the range size recorded in the sidecar is kept whatever size would be chosen now
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withPartSize(S3TransferConfig.AUTO_PART_SIZE))) {
+      operations.download("foo-bucket", "big.bin", target);
+    }
+
+    requestedRanges.sort(Long::compare);
+    assertEquals(Arrays.asList(0L, 10 * MB), requestedRanges);
+    assertArrayEquals(content, Files.readAllBytes(target));
+    assertFalse(Files.exists(DIR.resolve("big-download.bin" + S3RangedDownload.SIDECAR_SUFFIX)));
+  }
+
+  @Test
+  void testDeleteLocalReportsResult() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (S3Output output = new S3Output(bytes, S3Output.Format.JSONL);
+        S3OperationsImpl operations = new S3OperationsImpl(Mockito.mock(AmazonS3.class), config(), null, output)) {
+      operations.deleteLocal(file);
+      operations.skip("s3://foo-bucket/done.bin", "already transferred");
+    }
+    assertFalse(Files.exists(file));
+    String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    assertEquals(2, lines.length);
+    assertTrue(lines[0].startsWith("{\"op\":\"delete\",\"key\":\"" + file + "\",\"bytes\":0,\"durationMs\":"), lines[0]);
+    assertTrue(lines[0].endsWith(",\"status\":\"ok\"}"), lines[0]);
+    assertEquals("{\"op\":\"skip\",\"key\":\"s3://foo-bucket/done.bin\",\"bytes\":0,\"durationMs\":0,\"status\":\"skipped\"}", lines[1]);
+  }
+
+  @Test
+  void testFailedReportsResult() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (S3Output output = new S3Output(bytes, S3Output.Format.JSONL);
+        S3OperationsImpl operations = new S3OperationsImpl(Mockito.mock(AmazonS3.class), config(), null, output)) {
+      operations.failed("s3://foo-bucket/denied.bin", "AccessDenied: Access Denied");
+    }
+    assertEquals("{\"op\":\"fail\",\"key\":\"s3://foo-bucket/denied.bin\",\"bytes\":0,\"durationMs\":0,\"status\":\"failed\","
+        + "\"error\":\"AccessDenied: Access Denied\"}\n", new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static AmazonS3 mockCopy(long size, List<Long> copiedRanges) {
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(size);
+    metadata.setContentType("text/csv");
+    metadata.addUserMetadata("survey", "EX1234");
+    metadata.setHeader("ETag", "etag-1");
+    when(s3.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata);
+    InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+    initiated.setUploadId("copy-upload");
+    when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+    when(s3.copyPart(any(CopyPartRequest.class))).thenAnswer(invocation -> {
+      CopyPartRequest request = invocation.getArgument(0);
+      assertEquals(Collections.singletonList("etag-1"), request.getMatchingETagConstraints());
+      synchronized (copiedRanges) {
+        copiedRanges.add(request.getFirstByte());
+      }
+      CopyPartResult result = new CopyPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("part-" + request.getPartNumber());
+      return result;
+    });
+    return s3;
+  }
+
+  @Test
+  void testCopy() {
+    AmazonS3 s3 = mockCopy(MB, new ArrayList<>());
+    when(s3.copyObject(any(CopyObjectRequest.class))).thenReturn(new CopyObjectResult());
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      operations.copy("foo-bucket", "small.csv", "bar-bucket", "copy/small.csv");
+      assertEquals(MB, operations.getProgress().getBytesTransferred());
+    }
+
+    ArgumentCaptor<CopyObjectRequest> copy = ArgumentCaptor.forClass(CopyObjectRequest.class);
+    verify(s3).copyObject(copy.capture());
+    assertEquals("copy/small.csv", copy.getValue().getDestinationKey());
+    assertEquals(Collections.singletonList("etag-1"), copy.getValue().getMatchingETagConstraints());
+    verify(s3, times(0)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testMultipartCopy() {
+    List<Long> copiedRanges = new ArrayList<>();
+    AmazonS3 s3 = mockCopy(11 * MB, copiedRanges);
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      operations.copy("foo-bucket", "big.bin", "bar-bucket", "copy/big.bin");
+      assertEquals(11 * MB, operations.getProgress().getBytesTransferred());
+      assertEquals(3, operations.getStats().getCount(S3Stats.Operation.PART_COPY));
+    }
+
+    copiedRanges.sort(Long::compare);
+    assertEquals(Arrays.asList(0L, 5 * MB, 10 * MB), copiedRanges);
+    ArgumentCaptor<InitiateMultipartUploadRequest> initiate = ArgumentCaptor.forClass(InitiateMultipartUploadRequest.class);
+    verify(s3).initiateMultipartUpload(initiate.capture());
+    assertEquals("text/csv", initiate.getValue().getObjectMetadata().getContentType());
+    assertEquals("EX1234", initiate.getValue().getObjectMetadata().getUserMetaDataOf("survey"));
+    ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(s3).completeMultipartUpload(complete.capture());
+    assertEquals(3, complete.getValue().getPartETags().size());
+    verify(s3, times(0)).copyObject(any(CopyObjectRequest.class));
+  }
+
+  @Test
+  void testCopyAboveSingleRequestLimitIsMultipart() {
+    long size = 6L * 1024L * MB;
+    AmazonS3 s3 = mockCopy(size, new ArrayList<>());
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withMultipartThreshold(Long.MAX_VALUE))) {
+      operations.copy("foo-bucket", "huge.bin", "bar-bucket", "copy/huge.bin");
+      assertEquals(size, operations.getProgress().getBytesTransferred());
+    }
+
+    verify(s3).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    verify(s3).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+    verify(s3, times(0)).copyObject(any(CopyObjectRequest.class));
+  }
+
+  @Test
+  void testMultipartCopyAbortsWhenSourceChanges() {
+    AmazonS3 s3 = mockCopy(11 * MB, new ArrayList<>());
+    // S3 answers a failed ETag constraint with no result
+    when(s3.copyPart(any(CopyPartRequest.class))).thenReturn(null);
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      RuntimeException e = assertThrows(RuntimeException.class, () -> operations.copy("foo-bucket", "big.bin", "bar-bucket", "copy/big.bin"));
+      assertEquals("Object changed during copy: s3://foo-bucket/big.bin", e.getMessage());
+    }
+
+    verify(s3).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    verify(s3, times(0)).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testStreamingCopyBetweenClients() throws Exception {
+    byte[] content = content();
+    List<Long> requestedRanges = new ArrayList<>();
+    AmazonS3 source = mockObject(content, requestedRanges);
+    AmazonS3 target = Mockito.mock(AmazonS3.class);
+    InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+    initiated.setUploadId("stream-upload");
+    when(target.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+    byte[] uploaded = new byte[content.length];
+    when(target.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+      UploadPartRequest request = invocation.getArgument(0);
+      byte[] part = IOUtils.toByteArray(request.getInputStream());
+      assertEquals(request.getPartSize(), part.length);
+      System.arraycopy(part, 0, uploaded, (int) ((request.getPartNumber() - 1) * 5 * MB), part.length);
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("part-" + request.getPartNumber());
+      return result;
+    });
+
+    // room for two parts at once
+    try (S3OperationsImpl operations = new S3OperationsImpl(target, source, config().withStreamBufferSize(10 * MB), null, null)) {
+      operations.copy("foo-bucket", "big.bin", "bar-bucket", "big.bin");
+      assertEquals(11 * MB, operations.getProgress().getTotalBytesToTransfer());
+    }
+
+    requestedRanges.sort(Long::compare);
+    assertEquals(Arrays.asList(0L, 5 * MB, 10 * MB), requestedRanges);
+    assertArrayEquals(content, uploaded);
+    ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+    verify(target).completeMultipartUpload(complete.capture());
+    assertEquals(3, complete.getValue().getPartETags().size());
+    verify(target, times(0)).getObject(any(GetObjectRequest.class));
+    verify(source, times(0)).copyPart(any(CopyPartRequest.class));
+  }
+
+  @Test
+  void testStreamingCopySmallObject() throws Exception {
+    byte[] content = new byte[1000];
+    new Random(3).nextBytes(content);
+    AmazonS3 source = mockObject(content, new ArrayList<>());
+    AmazonS3 target = Mockito.mock(AmazonS3.class);
+    List<byte[]> put = new ArrayList<>();
+    when(target.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      PutObjectRequest request = invocation.getArgument(0);
+      assertEquals(content.length, request.getMetadata().getContentLength());
+      put.add(IOUtils.toByteArray(request.getInputStream()));
+      return new PutObjectResult();
+    });
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(target, source, config(), null, null)) {
+      operations.copy("foo-bucket", "small.bin", "bar-bucket", "small.bin");
+    }
+
+    assertEquals(1, put.size());
+    assertArrayEquals(content, put.get(0));
+  }
+
+  @Test
+  void testUploadStream() throws Exception {
+    byte[] content = content();
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+    initiated.setUploadId("stdin-upload");
+    when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+    byte[] uploaded = new byte[content.length];
+    List<Integer> parts = new ArrayList<>();
+    when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+      UploadPartRequest request = invocation.getArgument(0);
+      byte[] part = IOUtils.toByteArray(request.getInputStream());
+      System.arraycopy(part, 0, uploaded, (int) ((request.getPartNumber() - 1) * 5 * MB), part.length);
+      synchronized (parts) {
+        parts.add(request.getPartNumber());
+      }
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("part-" + request.getPartNumber());
+      return result;
+    });
+
+    // a stream that returns fewer bytes than asked, like a pipe
+    InputStream in = new FilterInputStream(new ByteArrayInputStream(content)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 4096));
+      }
+    };
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, null, config().withStreamBufferSize(10 * MB), null, null)) {
+      operations.uploadStream(in, "foo-bucket", "stdin.bin");
+      assertEquals(11 * MB, operations.getProgress().getTotalBytesToTransfer());
+    }
+
+    parts.sort(Integer::compare);
+    assertEquals(Arrays.asList(1, 2, 3), parts);
+    assertArrayEquals(content, uploaded);
+    verify(s3).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testUploadShortStream() throws Exception {
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    List<byte[]> put = new ArrayList<>();
+    when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      PutObjectRequest request = invocation.getArgument(0);
+      put.add(IOUtils.toByteArray(request.getInputStream()));
+      return new PutObjectResult();
+    });
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      operations.uploadStream(new ByteArrayInputStream("hello".getBytes(StandardCharsets.UTF_8)), "foo-bucket", "hello.txt");
+    }
+
+    assertEquals("hello", new String(put.get(0), StandardCharsets.UTF_8));
+    verify(s3, times(0)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testDownloadStream() throws Exception {
+    byte[] content = content();
+    List<Long> requestedRanges = new ArrayList<>();
+    AmazonS3 s3 = mockObject(content, requestedRanges);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // room for two ranges ahead of the one being written
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, null, config().withStreamBufferSize(10 * MB), null, null)) {
+      operations.downloadStream("foo-bucket", "big.bin", out);
+    }
+
+    requestedRanges.sort(Long::compare);
+    assertEquals(Arrays.asList(0L, 5 * MB, 10 * MB), requestedRanges);
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  private byte[] uploadParts(S3TransferConfig config, byte[] content) throws Exception {
+    Files.write(file, content);
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+    initiated.setUploadId("new-upload");
+    when(s3.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+    byte[] uploaded = new byte[content.length];
+    when(s3.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+      UploadPartRequest request = invocation.getArgument(0);
+      byte[] part;
+      if (request.getFile() != null) {
+        part = Arrays.copyOfRange(content, (int) request.getFileOffset(), (int) (request.getFileOffset() + request.getPartSize()));
+      } else {
+        assertTrue(request.getInputStream() instanceof S3MappedPartStream);
+        part = IOUtils.toByteArray(request.getInputStream());
+      }
+      System.arraycopy(part, 0, uploaded, (int) ((request.getPartNumber() - 1) * 5 * MB), part.length);
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag("part-" + request.getPartNumber());
+      return result;
+    });
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config)) {
+      operations.upload(file, "foo-bucket", "big.bin");
+    }
+    return uploaded;
+  }
+
+  @Test
+  void testMultipartUploadReadsMappedParts() throws Exception {
+    byte[] content = content();
+    assertArrayEquals(content, uploadParts(config(), content));
+    assertArrayEquals(content, uploadParts(config().withMemoryMappedParts(false), content));
+  }
+
+  private static String crc32c(byte[] content) {
+    S3Checksum.Digest digest = S3Checksum.digest(S3Checksum.Algorithm.CRC32C);
+    digest.update(content, 0, content.length);
+    return S3Checksum.combine(S3Checksum.Algorithm.CRC32C, Collections.singletonList(digest), false);
+  }
+
+  // the ETag S3 gives an object uploaded in parts of the given size
+  private static String md5ETag(byte[] content, long partSize) throws Exception {
+    MessageDigest eTag = MessageDigest.getInstance("MD5");
+    int parts = 0;
+    for (int offset = 0; offset < content.length; offset += partSize) {
+      eTag.update(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(content, offset, (int) Math.min(content.length, offset + partSize))));
+      parts++;
+    }
+    return BinaryUtils.toHex(eTag.digest()) + "-" + parts;
+  }
+
+  @Test
+  void testMultipartUploadStoresChecksum() throws Exception {
+    byte[] content = content();
+    Files.write(file, content);
+    AmazonS3 s3 = mockS3(new ArrayList<>());
+    when(s3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(new CompleteMultipartUploadResult());
+    when(s3.getObjectTagging(any(GetObjectTaggingRequest.class)))
+        .thenReturn(new GetObjectTaggingResult(Arrays.asList(new Tag("project", "cats"), new Tag("checksum-crc32c", "old"))));
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withChecksum(S3Checksum.Algorithm.CRC32C))) {
+      operations.upload(file, "foo-bucket", "big.bin");
+    }
+
+    ArgumentCaptor<SetObjectTaggingRequest> tagging = ArgumentCaptor.forClass(SetObjectTaggingRequest.class);
+    verify(s3).setObjectTagging(tagging.capture());
+    assertEquals("big.bin", tagging.getValue().getKey());
+    // other tags are kept
+    List<Tag> tags = tagging.getValue().getTagging().getTagSet();
+    assertEquals(2, tags.size());
+    assertEquals("project", tags.get(0).getKey());
+    assertEquals("checksum-crc32c", tags.get(1).getKey());
+    assertEquals(crc32c(content), tags.get(1).getValue());
+  }
+
+  @Test
+  void testSmallUploadsAreSinglePuts() throws Exception {
+    Files.write(file, new byte[1000]);
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    when(s3.putObject(any(PutObjectRequest.class))).thenReturn(new PutObjectResult());
+
+    // every object goes through the one instance, closed once when the command is done
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      for (int i = 0; i < 3; i++) {
+        operations.upload(file, "foo-bucket", "small-" + i + ".bin");
+      }
+      assertEquals(3, operations.getStats().getObjects());
+    }
+
+    ArgumentCaptor<PutObjectRequest> put = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(s3, times(3)).putObject(put.capture());
+    assertEquals(Arrays.asList("small-0.bin", "small-1.bin", "small-2.bin"),
+        put.getAllValues().stream().map(PutObjectRequest::getKey).collect(Collectors.toList()));
+    verify(s3, times(0)).initiateMultipartUpload(any(InitiateMultipartUploadRequest.class));
+    // the client belongs to the command, closing only shuts down the transfer threads
+    verify(s3, times(0)).shutdown();
+  }
+
+  @Test
+  void testUploadChecksumsWhileSending() throws Exception {
+    byte[] content = new byte[100_000];
+    new Random(7).nextBytes(content);
+    Files.write(file, content);
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      // a retry resets the stream and sends it again
+      InputStream in = invocation.getArgument(0, PutObjectRequest.class).getInputStream();
+      in.mark(content.length);
+      IOUtils.toByteArray(in, 5000);
+      in.reset();
+      assertArrayEquals(content, IOUtils.toByteArray(in));
+      return new PutObjectResult();
+    });
+    when(s3.getObjectTagging(any(GetObjectTaggingRequest.class))).thenReturn(new GetObjectTaggingResult(new ArrayList<>()));
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withChecksum(S3Checksum.Algorithm.CRC32C))) {
+      operations.upload(file, "foo-bucket", "small.bin");
+    }
+
+    ArgumentCaptor<SetObjectTaggingRequest> tagging = ArgumentCaptor.forClass(SetObjectTaggingRequest.class);
+    verify(s3).setObjectTagging(tagging.capture());
+    assertEquals(crc32c(content), tagging.getValue().getTagging().getTagSet().get(0).getValue());
+  }
+
+  @Test
+  void testUploadWalkedFileUsesWalkedAttributes() throws Exception {
+    byte[] content = new byte[1000];
+    new Random(7).nextBytes(content);
+    Files.write(file, content);
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      PutObjectRequest request = invocation.getArgument(0, PutObjectRequest.class);
+      // sent from a stream, a request for the file would make the SDK read its length again
+      assertNull(request.getFile());
+      assertEquals(content.length, request.getMetadata().getContentLength());
+      assertArrayEquals(content, IOUtils.toByteArray(request.getInputStream()));
+      return new PutObjectResult();
+    });
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      operations.upload(new S3LocalFile("small.bin", file, content.length, 1000L), "foo-bucket", "small.bin");
+    }
+
+    verify(s3).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  void testMultipartUploadVerifiesMd5() throws Exception {
+    byte[] content = content();
+    Files.write(file, content);
+    AmazonS3 s3 = mockS3(new ArrayList<>());
+    CompleteMultipartUploadResult completed = new CompleteMultipartUploadResult();
+    completed.setETag(md5ETag(content, 5 * MB));
+    when(s3.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenReturn(completed);
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withChecksum(S3Checksum.Algorithm.MD5))) {
+      operations.upload(file, "foo-bucket", "big.bin");
+      completed.setETag(md5ETag(content, 4 * MB));
+      RuntimeException e = assertThrows(RuntimeException.class, () -> operations.upload(file, "foo-bucket", "big.bin"));
+      assertTrue(e.getMessage().startsWith("Checksum mismatch for s3://foo-bucket/big.bin: md5"));
+    }
+
+    verify(s3, times(0)).setObjectTagging(any(SetObjectTaggingRequest.class));
+  }
+
+  @Test
+  void testRangedDownloadVerifiesChecksum() {
+    byte[] content = content();
+    AmazonS3 s3 = mockObject(content, new ArrayList<>());
+    Path target = DIR.resolve("download/big.bin");
+    when(s3.getObjectTagging(any(GetObjectTaggingRequest.class)))
+        .thenReturn(new GetObjectTaggingResult(Collections.singletonList(new Tag("checksum-crc32c", crc32c(content)))));
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withChecksum(S3Checksum.Algorithm.CRC32C))) {
+      operations.download("foo-bucket", "big.bin", target);
+      when(s3.getObjectTagging(any(GetObjectTaggingRequest.class)))
+          .thenReturn(new GetObjectTaggingResult(Collections.singletonList(new Tag("checksum-crc32c", crc32c(new byte[1])))));
+      RuntimeException e = assertThrows(RuntimeException.class, () -> operations.download("foo-bucket", "big.bin", target));
+      assertTrue(e.getMessage().startsWith("Checksum mismatch for s3://foo-bucket/big.bin: crc32c"));
+    }
+  }
+
+  @Test
+  void testDownloadStreamChecksMd5OverUploadedParts() throws Exception {
+    byte[] content = content();
+    List<Long> requestedRanges = new ArrayList<>();
+    String eTag = md5ETag(content, 3 * MB);
+    AmazonS3 s3 = mockObject(content, eTag, requestedRanges);
+    ObjectMetadata firstPart = new ObjectMetadata();
+    firstPart.setContentLength(3 * MB);
+    when(s3.getObjectMetadata(Mockito.<GetObjectMetadataRequest>argThat(request -> request != null && request.getPartNumber() != null)))
+        .thenReturn(firstPart);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, null, config().withChecksum(S3Checksum.Algorithm.MD5), null, null)) {
+      operations.downloadStream("foo-bucket", "big.bin", out);
+    }
+
+    // ranges follow the parts the object was uploaded in
+    requestedRanges.sort(Long::compare);
+    assertEquals(Arrays.asList(0L, 3 * MB, 6 * MB, 9 * MB), requestedRanges);
+    assertArrayEquals(content, out.toByteArray());
+  }
+
+  private static byte[] text() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; text.length() < 12 * MB; i++) {
+      text.append(-105.0 + i * 1e-5).append(' ').append(40.0 - i * 1e-5).append(' ').append(-1000 - i % 700).append('\n');
+    }
+    return text.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  @Test
+  void testUploadCompressed() throws Exception {
+    byte[] content = text();
+    Files.write(file, content);
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+    when(s3.putObject(any(PutObjectRequest.class))).thenAnswer(invocation -> {
+      PutObjectRequest request = invocation.getArgument(0);
+      assertEquals("gzip", request.getMetadata().getContentEncoding());
+      IOUtils.copy(request.getInputStream(), uploaded);
+      return new PutObjectResult();
+    });
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config().withCompression(S3Compression.GZIP))) {
+      operations.upload(file, "foo-bucket", "data.xyz");
+    }
+
+    // the compressed text fits in one part
+    assertTrue(uploaded.size() < 5 * MB);
+    assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(uploaded.toByteArray()))));
+  }
+
+  @Test
+  void testDownloadDecompresses() throws Exception {
+    byte[] content = text();
+    byte[] compressed;
+    try (InputStream in = new S3BlockCompressor(new ByteArrayInputStream(content), S3Compression.ZSTD, Runnable::run, 1)) {
+      compressed = IOUtils.toByteArray(in);
+    }
+    List<Long> requestedRanges = new ArrayList<>();
+    AmazonS3 s3 = mockObject(compressed, requestedRanges);
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(compressed.length);
+    metadata.setContentEncoding("zstd");
+    metadata.setHeader("ETag", "etag-1");
+    when(s3.getObjectMetadata(any(GetObjectMetadataRequest.class))).thenReturn(metadata);
+    Path target = DIR.resolve("download/data.xyz");
+
+    try (S3OperationsImpl operations = new S3OperationsImpl(s3, config())) {
+      operations.download("foo-bucket", "data.xyz", target);
+      assertEquals(compressed.length, operations.getProgress().getBytesTransferred());
+    }
+
+    assertArrayEquals(content, Files.readAllBytes(target));
+  }
+}
@@ -0,0 +1,111 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class S3OutputTest {
+
+  private static String text(ByteArrayOutputStream bytes) {
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void testJsonLines() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    List<Thread> threads = new ArrayList<>();
+    try (S3Output output = new S3Output(bytes, S3Output.Format.JSONL)) {
+      output.message("Uploading a");
+      for (int t = 0; t < 4; t++) {
+        int thread = t;
+        threads.add(new Thread(() -> {
+          for (int i = 0; i < 5000; i++) {
+            output.result("upload", "s3://b/" + thread + "/" + i, i, TimeUnit.MILLISECONDS.toNanos(3), S3Output.OK, null);
+          }
+        }));
+      }
+      threads.forEach(Thread::start);
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      output.result("delete", "s3://b/\"odd\"\tkey", 0, 0, S3Output.FAILED, "AccessDenied: no");
+    }
+    List<String> lines = Arrays.asList(text(bytes).split("\n"));
+    assertEquals(20001, lines.size());
+    Set<String> unique = new HashSet<>(lines);
+    assertEquals(20001, unique.size());
+    assertTrue(unique.contains("{\"op\":\"upload\",\"key\":\"s3://b/2/17\",\"bytes\":17,\"durationMs\":3,\"status\":\"ok\"}"));
+    assertEquals("{\"op\":\"delete\",\"key\":\"s3://b/\\\"odd\\\"\\tkey\",\"bytes\":0,\"durationMs\":0,\"status\":\"failed\",\"error\":\"AccessDenied: no\"}",
+        lines.get(lines.size() - 1));
+  }
+
+  @Test
+  void testQuiet() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    S3ProgressMonitor progress = new S3ProgressMonitor();
+    try (S3Output output = new S3Output(bytes, S3Output.Format.QUIET)) {
+      output.showProgress(progress);
+      progress.started(10);
+      output.message("Uploading a");
+      output.result("upload", "s3://b/a", 10, 0, S3Output.OK, null);
+    }
+    assertEquals("", text(bytes));
+  }
+
+  @Test
+  void testTextWithProgress() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    S3ProgressMonitor progress = new S3ProgressMonitor();
+    try (S3Output output = new S3Output(bytes, S3Output.Format.TEXT, true)) {
+      output.showProgress(progress);
+      output.message("Uploading a");
+      progress.started(3L * 1024L * 1024L);
+      progress.completedBytes(512);
+      progress.finished(true);
+      output.result("upload", "s3://b/a", 10, 0, S3Output.OK, null);
+      output.message("Uploading b");
+    }
+    String output = text(bytes);
+    assertTrue(output.startsWith("Uploading a\n"), output);
+    assertTrue(output.contains("Uploading b\n"), output);
+    assertTrue(output.endsWith("\n"), output);
+    // closing leaves the final status on its own line
+    String lines = output.substring(0, output.length() - 1);
+    String last = lines.substring(Math.max(lines.lastIndexOf('\r'), lines.lastIndexOf('\n')) + 1);
+    assertTrue(last.startsWith("1/1 objects  512 B / 3.0 MiB  "), output);
+  }
+
+  @Test
+  void testTextWithoutTerminal() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    S3ProgressMonitor progress = new S3ProgressMonitor();
+    try (S3Output output = new S3Output(bytes, S3Output.Format.TEXT, false)) {
+      output.showProgress(progress);
+      progress.started(1024L);
+      output.message("Uploading a");
+      progress.completedBytes(1024);
+      progress.finished(true);
+      output.message("Uploading b");
+    }
+    String output = text(bytes);
+    // no status line is redrawn, only the final status is printed
+    assertFalse(output.contains("\r"), output);
+    assertTrue(output.startsWith("Uploading a\nUploading b\n1/1 objects  "), output);
+  }
+
+  @Test
+  void testFormat() {
+    assertEquals(S3Output.Format.JSONL, S3Output.Format.parse("jsonl"));
+    assertEquals(S3Output.Format.TEXT, S3Output.Format.parse("TEXT"));
+  }
+}
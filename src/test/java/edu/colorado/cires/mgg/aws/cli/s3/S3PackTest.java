@@ -0,0 +1,114 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class S3PackTest {
+
+  private static final Path DIR = Paths.get("target/test-pack");
+
+  @BeforeEach
+  void before() throws Exception {
+    FileUtils.deleteQuietly(DIR.toFile());
+    Files.createDirectories(DIR);
+  }
+
+  private static S3LocalFile write(String name, String key, byte[] content) throws Exception {
+    Path file = DIR.resolve(name);
+    Files.createDirectories(file.getParent());
+    Files.write(file, content);
+    return new S3LocalFile(key, file, content.length, Files.getLastModifiedTime(file).toMillis());
+  }
+
+  @Test
+  void testTarOffsets() throws Exception {
+    byte[] random = new byte[1500];
+    new Random(7).nextBytes(random);
+    StringBuilder longName = new StringBuilder("dir");
+    while (longName.length() < 150) {
+      longName.append("/sub-directory");
+    }
+    longName.append("/deep.txt");
+    List<S3Pack.Member> members = Arrays.asList(
+        S3Pack.member(write("a.txt", "a.txt", "alpha".getBytes(StandardCharsets.UTF_8)), 1024 * 1024),
+        S3Pack.member(write("empty.txt", "empty.txt", new byte[0]), 1024 * 1024),
+        S3Pack.member(write("dir/random.bin", "dir/random.bin", random), 1024 * 1024),
+        S3Pack.member(write("deep.txt", longName.toString(), "deep".getBytes(StandardCharsets.UTF_8)), 1024 * 1024));
+
+    byte[] tar;
+    try (InputStream in = S3Pack.tar(members, "run-0.tar")) {
+      tar = IOUtils.toByteArray(in);
+    }
+
+    long length = 2 * 512;
+    for (S3Pack.Member member : members) {
+      length += member.getArchiveLength();
+      assertEquals("run-0.tar", member.getArchive());
+      assertEquals(0, member.getOffset() % 512);
+    }
+    assertEquals(length, tar.length);
+    assertArrayEquals("alpha".getBytes(StandardCharsets.UTF_8), range(tar, members.get(0)));
+    assertEquals(0, range(tar, members.get(1)).length);
+    assertArrayEquals(random, range(tar, members.get(2)));
+    assertArrayEquals("deep".getBytes(StandardCharsets.UTF_8), range(tar, members.get(3)));
+    // the first header is an ordinary ustar header
+    assertEquals("a.txt", new String(tar, 0, 5, StandardCharsets.US_ASCII));
+    assertEquals("ustar", new String(tar, 257, 5, StandardCharsets.US_ASCII));
+    // the long path is in a pax record before its header
+    String pax = new String(tar, (int) members.get(3).getOffset() - 1024, 512, StandardCharsets.UTF_8);
+    assertTrue(pax.startsWith(" path=" + longName + "\n", pax.indexOf(' ')));
+  }
+
+  @Test
+  void testIndex() throws Exception {
+    List<S3Pack.Member> members = Arrays.asList(
+        S3Pack.member(write("a.txt", "a.txt", "alpha".getBytes(StandardCharsets.UTF_8)), 1024 * 1024),
+        S3Pack.member(write("dir/b.txt", "dir/b.txt", "beta".getBytes(StandardCharsets.UTF_8)), 1024 * 1024));
+    try (InputStream in = S3Pack.tar(members, "run-0.tar")) {
+      IOUtils.toByteArray(in);
+    }
+
+    List<S3Pack.Member> read = S3Pack.readIndex(S3Pack.index(members));
+
+    assertEquals(2, read.size());
+    assertEquals("dir/b.txt", read.get(1).getPath());
+    assertEquals("run-0.tar", read.get(1).getArchive());
+    assertEquals(1536, read.get(1).getOffset());
+    assertEquals(4, read.get(1).getSize());
+    assertThrows(RuntimeException.class, () -> S3Pack.readIndex("a.txt\trun-0.tar\t512\n".getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  void testMembersAndKeys() throws Exception {
+    assertNull(S3Pack.member(write("big.bin", "big.bin", new byte[2000]), 1000));
+    assertNull(S3Pack.member(write("tab.txt", "a\tb.txt", new byte[1]), 1000));
+    assertEquals("cats/.s3pack/run-2.tar", S3Pack.archiveKey("cats/", "run", 2));
+    assertEquals(".s3pack/run-2.index", S3Pack.indexKey("", "run", 2));
+    assertTrue(S3Pack.isIndex("cats/.s3pack/run.index"));
+    assertFalse(S3Pack.isIndex("cats/run.index"));
+    assertFalse(S3Pack.isPacked("cats.s3pack/run.tar"));
+    assertEquals("cats/", S3Pack.prefixOf("cats/.s3pack/run.index"));
+    assertEquals("", S3Pack.prefixOf(".s3pack/run.index"));
+  }
+
+  private static byte[] range(byte[] tar, S3Pack.Member member) {
+    return Arrays.copyOfRange(tar, (int) member.getOffset(), (int) (member.getOffset() + member.getSize()));
+  }
+}
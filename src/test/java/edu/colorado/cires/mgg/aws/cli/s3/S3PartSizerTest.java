@@ -0,0 +1,67 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class S3PartSizerTest {
+
+  private static final long MB = 1024L * 1024L;
+  private static final long GB = 1024L * MB;
+
+  @Test
+  void testMinimumPartSize() {
+    assertEquals(5 * MB, S3PartSizer.minimumPartSize(11 * MB));
+    assertTrue(S3PartSizer.minimumPartSize(100_000 * MB) * 10000 >= 100_000 * MB);
+  }
+
+  @Test
+  void testFixedPartSize() {
+    S3PartSizer sizer = new S3PartSizer(64 * MB, 10);
+    assertEquals(64 * MB, sizer.partSize(6 * MB));
+    assertEquals(64 * MB, sizer.partSize(100 * GB));
+    // 10,000 parts of 64 MiB are not enough for 1 TiB
+    assertTrue(sizer.partSize(1024 * GB) * 10000 >= 1024 * GB);
+  }
+
+  @Test
+  void testAutoPartSize() {
+    S3PartSizer sizer = new S3PartSizer(S3TransferConfig.AUTO_PART_SIZE, 10);
+    // before a throughput is measured, about 16 parts per thread between 8 MiB and 256 MiB
+    assertEquals(S3PartSizer.INITIAL_PART_SIZE, sizer.partSize(1 * GB));
+    assertEquals(64 * MB, sizer.partSize(10 * GB));
+    assertEquals(S3PartSizer.MAX_INITIAL_PART_SIZE, sizer.partSize(100 * GB));
+    assertTrue(sizer.partSize(5000 * GB) * 10000 >= 5000 * GB);
+    // spread across the threads, but no smaller than the S3 minimum
+    assertEquals(5 * MB, sizer.partSize(20 * MB));
+    assertEquals(6 * MB, sizer.partSize(55 * MB));
+
+    // 16 MiB parts taking a second each
+    sizer.record(16 * MB, TimeUnit.SECONDS.toNanos(1));
+    sizer.record(16 * MB, TimeUnit.SECONDS.toNanos(1));
+    assertEquals(16 * MB, sizer.getConnectionBytesPerSecond());
+    assertEquals(16 * MB * S3PartSizer.TARGET_PART_SECONDS, sizer.partSize(100 * GB));
+    assertEquals(20 * MB, sizer.partSize(200 * MB));
+    assertTrue(sizer.partSize(5000 * GB) * 10000 >= 5000 * GB);
+  }
+
+  @Test
+  void testConfigRejectsInvalidPartSize() {
+    assertThrows(IllegalArgumentException.class, () -> new S3TransferConfig().withPartSize(MB));
+    assertThrows(IllegalArgumentException.class, () -> new S3TransferConfig().withPartSize(6 * GB));
+  }
+
+  @Test
+  void testParseSize() {
+    assertEquals(8 * MB, S3Utils.parseSize("8MB"));
+    assertEquals(8 * MB, S3Utils.parseSize("8mib"));
+    assertEquals(1536 * MB, S3Utils.parseSize("1.5GB"));
+    assertEquals(4096, S3Utils.parseSize("4 KB"));
+    assertEquals(1000, S3Utils.parseSize("1000"));
+    assertEquals(1000, S3Utils.parseSize("1000B"));
+    assertThrows(IllegalArgumentException.class, () -> S3Utils.parseSize("8 potatoes"));
+  }
+}
@@ -0,0 +1,126 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+class S3PartitionedListerTest {
+
+  private static final List<String> KEYS = Arrays.asList(
+      "root/a-c",
+      "root/a.txt",
+      "root/a/1/x.json",
+      "root/a/1/y.json",
+      "root/a/2.json",
+      "root/a/3/z.json",
+      "root/b",
+      "root/b/1.json",
+      "root/b/2.json",
+      "root/b/3/4/5.json",
+      "root/c.json",
+      "root/d/1.json",
+      "root/d/2.json",
+      "root/d/3.json",
+      "root/e/"
+  );
+
+  private static AmazonS3 bucket(List<String> keys) {
+    TreeSet<String> sorted = new TreeSet<>(S3Utils::compareKeys);
+    sorted.addAll(keys);
+    AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+    when(s3.listObjectsV2(any(ListObjectsV2Request.class))).thenAnswer(invocation -> {
+      ListObjectsV2Request request = invocation.getArgument(0);
+      List<String> entries = new ArrayList<>();
+      List<Boolean> common = new ArrayList<>();
+      for (String key : sorted) {
+        if (key.startsWith(request.getPrefix())) {
+          String entry = key;
+          int end = request.getDelimiter() == null ? -1 : key.indexOf(request.getDelimiter(), request.getPrefix().length());
+          if (end >= 0) {
+            entry = key.substring(0, end + 1);
+          }
+          if (entries.isEmpty() || !entries.get(entries.size() - 1).equals(entry)) {
+            entries.add(entry);
+            common.add(end >= 0);
+          }
+        }
+      }
+      int start = request.getContinuationToken() == null ? 0 : Integer.parseInt(request.getContinuationToken());
+      int end = Math.min(entries.size(), start + request.getMaxKeys());
+      ListObjectsV2Result result = new ListObjectsV2Result();
+      for (int i = start; i < end; i++) {
+        if (common.get(i)) {
+          result.getCommonPrefixes().add(entries.get(i));
+        } else {
+          S3ObjectSummary summary = new S3ObjectSummary();
+          summary.setKey(entries.get(i));
+          result.getObjectSummaries().add(summary);
+        }
+      }
+      result.setTruncated(end < entries.size());
+      result.setNextContinuationToken(end < entries.size() ? Integer.toString(end) : null);
+      return result;
+    });
+    return s3;
+  }
+
+  private static List<String> list(S3PartitionedLister lister) {
+    List<String> keys = new ArrayList<>();
+    try (S3PartitionedLister objects = lister) {
+      objects.forEachRemaining(summary -> keys.add(summary.getKey()));
+    }
+    return keys;
+  }
+
+  @Test
+  void testOrdered() {
+    List<String> keys = list(new S3PartitionedLister(bucket(KEYS), "foo-bucket", "root/", 2, 1, 4, true));
+    assertEquals(KEYS, keys);
+    // enough threads to descend into the partitions of the first level
+    assertEquals(KEYS, list(new S3PartitionedLister(bucket(KEYS), "foo-bucket", "root/", 1000, 1, 8, true)));
+  }
+
+  @Test
+  void testUnordered() {
+    List<String> keys = list(new S3PartitionedLister(bucket(KEYS), "foo-bucket", "root/", 2, 1, 4, false));
+    assertEquals(new TreeSet<>(KEYS), new TreeSet<>(keys));
+    assertEquals(KEYS.size(), keys.size());
+  }
+
+  @Test
+  void testNoPartitions() {
+    List<String> flat = Arrays.asList("root/1.json", "root/2.json", "root/3.json");
+    assertEquals(flat, list(new S3PartitionedLister(bucket(flat), "foo-bucket", "root/", 1000, 2, 4, true)));
+    assertEquals(flat, list(new S3PartitionedLister(bucket(flat), "foo-bucket", "root/", 1000, 2, 4, false)));
+  }
+
+  @Test
+  void testFlatPrefixIsStreamed() {
+    List<String> flat = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      flat.add(String.format("root/%03d.json", i));
+    }
+    AmazonS3 s3 = bucket(flat);
+    try (S3PartitionedLister lister = new S3PartitionedLister(s3, "foo-bucket", "root/", 1, 1, 4, true)) {
+      assertEquals("root/000.json", lister.next().getKey());
+      // discovery stops a few pages ahead of the consumer instead of listing the whole prefix first
+      assertTrue(Mockito.mockingDetails(s3).getInvocations().size() < 10);
+      List<String> keys = new ArrayList<>();
+      keys.add("root/000.json");
+      lister.forEachRemaining(summary -> keys.add(summary.getKey()));
+      assertEquals(flat, keys);
+    }
+  }
+}
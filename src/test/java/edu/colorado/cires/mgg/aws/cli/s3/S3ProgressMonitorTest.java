@@ -0,0 +1,75 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class S3ProgressMonitorTest {
+
+  @Test
+  void testCountsConcurrentTransfers() throws Exception {
+    S3ProgressMonitor monitor = new S3ProgressMonitor();
+    ProgressListener listener = monitor.listener();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      threads.add(new Thread(() -> {
+        for (int i = 0; i < 100; i++) {
+          monitor.started(1000);
+          for (int j = 0; j < 10; j++) {
+            listener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 100));
+          }
+          monitor.finished(true);
+        }
+      }));
+    }
+    threads.forEach(Thread::start);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(800, monitor.getObjectsDone());
+    assertEquals(800000, monitor.getTotalBytesToTransfer());
+    assertEquals(800000, monitor.getBytesTransferred());
+  }
+
+  @Test
+  void testRetriedBytesAreTakenBack() {
+    S3ProgressMonitor monitor = new S3ProgressMonitor();
+    ProgressListener listener = monitor.listener();
+    monitor.started(300);
+    listener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 200));
+    listener.progressChanged(new ProgressEvent(ProgressEventType.HTTP_REQUEST_CONTENT_RESET_EVENT, 200));
+    listener.progressChanged(new ProgressEvent(ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT, 300));
+    listener.progressChanged(new ProgressEvent(ProgressEventType.TRANSFER_COMPLETED_EVENT, 0));
+    monitor.finished(false);
+
+    assertEquals(300, monitor.getBytesTransferred());
+    assertEquals(0, monitor.getObjectsDone());
+    assertEquals(1, monitor.getObjectsFailed());
+  }
+
+  @Test
+  void testStatus() {
+    S3ProgressMonitor monitor = new S3ProgressMonitor();
+    monitor.started(3L * 1024L * 1024L);
+    monitor.started(1024L * 1024L);
+    monitor.completedBytes(512);
+    monitor.finished(true);
+    monitor.finished(false);
+    assertEquals("1/2 objects, 1 failed  512 B / 4.0 MiB  0 B/s  ETA --:--", monitor.status());
+  }
+
+  @Test
+  void testFormat() {
+    assertEquals("1023 B", S3ProgressMonitor.formatBytes(1023));
+    assertEquals("1.5 KiB", S3ProgressMonitor.formatBytes(1536));
+    assertEquals("2.0 GiB", S3ProgressMonitor.formatBytes(2L * 1024L * 1024L * 1024L));
+    assertEquals("0:59", S3ProgressMonitor.formatDuration(59));
+    assertEquals("1:01:05", S3ProgressMonitor.formatDuration(3665));
+  }
+}
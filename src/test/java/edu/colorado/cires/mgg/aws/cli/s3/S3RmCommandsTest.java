@@ -1,13 +1,24 @@
 package edu.colorado.cires.mgg.aws.cli.s3;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
 
 import edu.colorado.cires.mgg.aws.cli.s3.S3RmCommands.S3RmCommandsHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -47,9 +58,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file1.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file2.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file3.txt"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file1.txt", "cats/dir/file2.txt", "cats/file3.txt")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -73,9 +82,92 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file1.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file2.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file3.txt"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file1.txt", "cats/dir/file2.txt", "cats/file3.txt")));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  public void testDeleteRecursiveBatches() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String path = "s3://foo-bucket/cats";
+    boolean recursive = true;
+    String include = null;
+    String exclude = null;
+    int concurrency = 2;
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 2500; i++) {
+      keys.add("cats/file" + i + ".txt");
+    }
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      keys.forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+
+    S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude, concurrency);
+    handler.run();
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(keys.subList(0, 1000)));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(keys.subList(1000, 2000)));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(keys.subList(2000, 2500)));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  public void testDeleteRecursiveErrors() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String path = "s3://foo-bucket/cats";
+    boolean recursive = true;
+    String include = null;
+    String exclude = null;
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "cats/dir/file1.txt",
+          "cats/dir/file2.txt",
+          "cats/file3.txt"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    when(s3.deleteObjects(eq("foo-bucket"), any(List.class)))
+        .thenReturn(Collections.singletonList(new S3Failure("s3://foo-bucket/cats/file3.txt", "AccessDenied: Access Denied")));
+
+    S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
+    RuntimeException e = assertThrows(RuntimeException.class, handler::run);
+    assertEquals("1 of 3 objects failed", e.getMessage());
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file1.txt", "cats/dir/file2.txt", "cats/file3.txt")));
+    verify(s3).failed("s3://foo-bucket/cats/file3.txt", "AccessDenied: Access Denied");
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  public void testDeleteRecursiveJournal() throws Exception {
+    Path journalFile = Paths.get("target/test-rm-journal/journal");
+    Files.deleteIfExists(journalFile);
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "cats/dir/file1.txt",
+          "cats/dir/file2.txt",
+          "cats/file3.txt"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    when(s3.deleteObjects(eq("foo-bucket"), any(List.class)))
+        .thenReturn(Collections.singletonList(new S3Failure("s3://foo-bucket/cats/file3.txt", "AccessDenied: Access Denied")));
+
+    try (S3Journal journal = new S3Journal(journalFile)) {
+      journal.done("s3://foo-bucket/cats/dir/file1.txt");
+      S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, "s3://foo-bucket/cats", true, S3Filter.ALL, 1, journal);
+      assertThrows(RuntimeException.class, handler::run);
+      assertTrue(journal.isDone("s3://foo-bucket/cats/dir/file2.txt"));
+      assertFalse(journal.isDone("s3://foo-bucket/cats/file3.txt"));
+    }
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file2.txt", "cats/file3.txt")));
+    verify(s3).failed("s3://foo-bucket/cats/file3.txt", "AccessDenied: Access Denied");
     verifyNoMoreInteractions(s3);
   }
 
@@ -99,9 +191,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq(""), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("dir/file1.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("dir/file2.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("file3.txt"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("dir/file1.txt", "dir/file2.txt", "file3.txt")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -125,9 +215,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq(""), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("dir/file1.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("dir/file2.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("file3.txt"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("dir/file1.txt", "dir/file2.txt", "file3.txt")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -153,7 +241,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/file5.zip")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -179,8 +267,31 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file4.zip"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file4.zip", "cats/file5.zip")));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  public void testDeleteIncludeRegexPrefix() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    String path = "s3://foo-bucket/cats+(1)";
+    boolean recursive = true;
+    String include = "*.zip";
+    String exclude = null;
+    doAnswer(invocation -> {
+      Consumer<String> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(
+          "cats+(1)/dir/file4.zip",
+          "cats+(1)/file3.txt",
+          "cats+(1)/file5.zip"
+      ).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachKey(eq("foo-bucket"), eq("cats+(1)/"), any(Consumer.class));
+
+    S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
+    handler.run();
+    verify(s3).forEachKey(eq("foo-bucket"), eq("cats+(1)/"), any(Consumer.class));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats+(1)/file5.zip")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -206,10 +317,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file1.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file2.txt"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file4.zip"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file1.txt", "cats/dir/file2.txt", "cats/dir/file4.zip", "cats/file5.zip")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -235,8 +343,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/dir/file4.zip"));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/dir/file4.zip", "cats/file5.zip")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -263,7 +370,7 @@ class S3RmCommandsTest {
     S3RmCommandsHandler handler = new S3RmCommandsHandler(s3, path, recursive, include, exclude);
     handler.run();
     verify(s3).forEachKey(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
-    verify(s3).deleteObject(eq("foo-bucket"), eq("cats/file5.zip"));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("cats/file5.zip")));
     verifyNoMoreInteractions(s3);
   }
 
@@ -0,0 +1,98 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import picocli.CommandLine;
+
+class S3StatsTest {
+
+  @Test
+  void testHistogramBuckets() {
+    for (long value : new long[]{0, 1, 127, 128, 129, 255, 256, 1000, 123456789, Long.MAX_VALUE}) {
+      int index = S3Histogram.index(value);
+      assertTrue(S3Histogram.highestValue(index) >= value, Long.toString(value));
+      assertTrue(index == 0 || S3Histogram.highestValue(index - 1) < value, Long.toString(value));
+    }
+  }
+
+  @Test
+  void testHistogramPercentiles() {
+    Random random = new Random(7);
+    long[] values = new long[100000];
+    S3Histogram histogram = new S3Histogram();
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long) Math.exp(random.nextDouble() * 16);
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+    assertEquals(values.length, histogram.getCount());
+    assertEquals(values[values.length - 1], histogram.getMax());
+    for (double percentile : new double[]{50, 90, 99, 99.9}) {
+      long expected = values[(int) Math.ceil(percentile / 100.0 * values.length) - 1];
+      long actual = histogram.getValueAtPercentile(percentile);
+      assertTrue(actual >= expected && actual <= expected + Math.max(1, expected / 64), percentile + ": " + expected + " " + actual);
+    }
+    assertEquals(0, new S3Histogram().getValueAtPercentile(50));
+  }
+
+  @Test
+  void testReport() {
+    S3ProgressMonitor progress = new S3ProgressMonitor();
+    S3Stats stats = new S3Stats(progress);
+    stats.record(S3Stats.Operation.PUT, TimeUnit.MILLISECONDS.toNanos(20), true);
+    stats.record(S3Stats.Operation.PUT, TimeUnit.MILLISECONDS.toNanos(40), true);
+    assertThrows(IllegalStateException.class, () -> stats.time(S3Stats.Operation.DELETE, () -> {
+      throw new IllegalStateException("denied");
+    }));
+    assertEquals("listed", stats.time(S3Stats.Operation.LIST, () -> "listed"));
+    stats.listener().progressChanged(new ProgressEvent(ProgressEventType.CLIENT_REQUEST_RETRY_EVENT));
+    progress.transferred(2048);
+    stats.objectDone();
+    stats.objectDone();
+
+    assertEquals(2, stats.getCount(S3Stats.Operation.PUT));
+    assertEquals(40000, stats.getMaxLatencyMicros(S3Stats.Operation.PUT));
+    assertEquals(1, stats.getRetries());
+
+    String json = stats.toJson();
+    assertTrue(json.startsWith("{\"elapsedMs\":"), json);
+    assertTrue(json.contains(",\"objects\":2,\"bytes\":2048,\"bytesPerSecond\":"), json);
+    assertTrue(json.contains(",\"retries\":1,\"operations\":{\"list\":{\"requests\":1,\"failed\":0,"), json);
+    assertTrue(json.contains("\"put\":{\"requests\":2,\"failed\":0,\"p50Ms\":20."), json);
+    assertTrue(json.contains("\"maxMs\":40.000}"), json);
+    assertTrue(json.contains("\"delete\":{\"requests\":1,\"failed\":1,"), json);
+    assertTrue(!json.contains("\"get\""), json);
+
+    String text = stats.toText();
+    assertTrue(text.startsWith("2 objects, 2.0 KiB in 0:00, "), text);
+    assertTrue(text.contains("1 retries"), text);
+    assertTrue(text.contains("\nput                   2        0       20."), text);
+  }
+
+  @Test
+  void testReportFailureDoesNotHideCommandFailure() {
+    S3StatsOptions options = new S3StatsOptions();
+    new CommandLine(options).parseArgs("--stats-file", "target/test-stats/missing/stats.json");
+    S3Output output = new S3Output(new ByteArrayOutputStream(), S3Output.Format.TEXT);
+    RuntimeException failure = new RuntimeException("command failed");
+
+    RuntimeException thrown = assertThrows(RuntimeException.class, () -> options.run(new S3Stats(), output, () -> {
+      throw failure;
+    }));
+
+    assertSame(failure, thrown);
+    assertEquals(1, thrown.getSuppressed().length);
+    assertThrows(RuntimeException.class, () -> options.run(new S3Stats(), output, () -> {
+    }));
+  }
+}
@@ -0,0 +1,189 @@
+package edu.colorado.cires.mgg.aws.cli.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import edu.colorado.cires.mgg.aws.cli.s3.S3SyncCommands.S3SyncCommandsHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+class S3SyncCommandsTest {
+
+  private static S3LocalFile local(Path dir, String key, long size, long lastModified) {
+    return new S3LocalFile(key, dir.resolve(key), size, lastModified);
+  }
+
+  private static void remote(S3Operations s3, String bucket, String prefix, S3ObjectInfo... objects) {
+    doAnswer(invocation -> {
+      Consumer<S3ObjectInfo> consumer = invocation.getArgument(2, Consumer.class);
+      Arrays.asList(objects).forEach(consumer::accept);
+      return null;
+    }).when(s3).forEachObject(eq(bucket), eq(prefix), any(Consumer.class));
+  }
+
+  @Test
+  void testUpload() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    Path dir = Paths.get("foo/bar");
+    List<S3LocalFile> files = Arrays.asList(
+        local(dir, "a.txt", 10, 1000),
+        local(dir, "a/changed.txt", 10, 1000),
+        local(dir, "a/newer.txt", 10, 5000),
+        local(dir, "a/same.txt", 10, 1000),
+        local(dir, "c/new.txt", 10, 1000)
+    );
+    remote(s3, "foo-bucket", "cats/",
+        new S3ObjectInfo("cats/a.txt", 10, 2000, "etag"),
+        new S3ObjectInfo("cats/a/changed.txt", 11, 2000, "etag"),
+        new S3ObjectInfo("cats/a/newer.txt", 10, 2000, "etag"),
+        new S3ObjectInfo("cats/a/same.txt", 10, 2000, "etag"),
+        new S3ObjectInfo("cats/b/gone.txt", 10, 2000, "etag")
+    );
+
+    new S3SyncCommandsHandler(s3, "foo/bar", "s3://foo-bucket/cats", null, null, false, false, 1, d -> files.iterator()).run();
+
+    verify(s3).forEachObject(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+    verify(s3).upload(eq(dir.resolve("a/changed.txt")), eq("foo-bucket"), eq("cats/a/changed.txt"));
+    verify(s3).upload(eq(dir.resolve("a/newer.txt")), eq("foo-bucket"), eq("cats/a/newer.txt"));
+    verify(s3).upload(eq(dir.resolve("c/new.txt")), eq("foo-bucket"), eq("cats/c/new.txt"));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testUploadETagHashesOnWorkers() throws Exception {
+    Path dir = Paths.get("target/test-sync-etag");
+    FileUtils.deleteQuietly(dir.toFile());
+    Files.createDirectories(dir);
+    try {
+      Files.write(dir.resolve("changed.txt"), "changed".getBytes(StandardCharsets.UTF_8));
+      Files.write(dir.resolve("same.txt"), "same".getBytes(StandardCharsets.UTF_8));
+      S3Operations s3 = Mockito.mock(S3Operations.class);
+      List<S3LocalFile> files = Arrays.asList(
+          local(dir, "changed.txt", 7, 1000),
+          local(dir, "missing.txt", 7, 1000),
+          local(dir, "same.txt", 4, 1000)
+      );
+      remote(s3, "foo-bucket", "cats/",
+          new S3ObjectInfo("cats/changed.txt", 7, 2000, "\"" + S3Utils.md5Hex(dir.resolve("same.txt")) + "\""),
+          new S3ObjectInfo("cats/missing.txt", 7, 2000, "etag"),
+          new S3ObjectInfo("cats/same.txt", 4, 2000, "\"" + S3Utils.md5Hex(dir.resolve("same.txt")) + "\"")
+      );
+
+      // a file that cannot be hashed fails on its own instead of stopping the merge
+      S3SyncCommandsHandler handler = new S3SyncCommandsHandler(s3, dir.toString(), "s3://foo-bucket/cats", null, null, false, true, 2,
+          d -> files.iterator());
+      RuntimeException e = assertThrows(RuntimeException.class, handler::run);
+      assertEquals("1 of 3 objects failed", e.getMessage());
+
+      verify(s3).forEachObject(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+      verify(s3).upload(eq(dir.resolve("changed.txt")), eq("foo-bucket"), eq("cats/changed.txt"));
+      verify(s3).failed(eq("s3://foo-bucket/cats/missing.txt"), any(String.class));
+      verifyNoMoreInteractions(s3);
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  void testUploadDelete() {
+    S3Operations s3 = Mockito.mock(S3Operations.class);
+    Path dir = Paths.get("foo/bar");
+    List<S3LocalFile> files = Arrays.asList(
+        local(dir, "a/same.txt", 10, 1000),
+        local(dir, "c/new.zip", 10, 1000)
+    );
+    remote(s3, "foo-bucket", "",
+        new S3ObjectInfo("a/gone.txt", 10, 2000, "etag"),
+        new S3ObjectInfo("a/same.txt", 10, 2000, "etag"),
+        new S3ObjectInfo("b/gone.txt", 10, 2000, "etag"),
+        new S3ObjectInfo("b/kept.zip", 10, 2000, "etag"),
+        new S3ObjectInfo("d/gone.txt", 10, 2000, "etag")
+    );
+
+    new S3SyncCommandsHandler(s3, "foo/bar", "s3://foo-bucket", null, "**.zip", true, false, 2, d -> files.iterator()).run();
+
+    verify(s3).forEachObject(eq("foo-bucket"), eq(""), any(Consumer.class));
+    verify(s3).deleteObjects(eq("foo-bucket"), eq(Arrays.asList("a/gone.txt", "b/gone.txt", "d/gone.txt")));
+    verifyNoMoreInteractions(s3);
+  }
+
+  @Test
+  void testDownload() throws Exception {
+    Path dir = Paths.get("target/test-sync-download");
+    FileUtils.deleteQuietly(dir.toFile());
+    Files.createDirectories(dir.resolve("a"));
+    try {
+      Files.write(dir.resolve("a/extra.txt"), new byte[10]);
+      S3Operations s3 = Mockito.mock(S3Operations.class);
+      doAnswer(invocation -> {
+        Path dest = invocation.getArgument(2);
+        Files.createDirectories(dest.getParent());
+        Files.write(dest, new byte[10]);
+        return null;
+      }).when(s3).download(eq("foo-bucket"), any(String.class), any(Path.class));
+      List<S3LocalFile> files = Arrays.asList(
+          local(dir, "a/extra.txt", 10, 1000),
+          local(dir, "a/same.txt", 10, 2000),
+          local(dir, "a/stale.txt", 10, 1000)
+      );
+      remote(s3, "foo-bucket", "cats/",
+          new S3ObjectInfo("cats/", 0, 2000, "etag"),
+          new S3ObjectInfo("cats/a/new.txt", 10, 2000, "etag"),
+          new S3ObjectInfo("cats/a/same.txt", 10, 2000, "etag"),
+          new S3ObjectInfo("cats/a/stale.txt", 10, 2000, "etag")
+      );
+
+      new S3SyncCommandsHandler(s3, "s3://foo-bucket/cats/", dir.toString(), null, null, true, false, 1, d -> files.iterator()).run();
+
+      verify(s3).forEachObject(eq("foo-bucket"), eq("cats/"), any(Consumer.class));
+      verify(s3).download(eq("foo-bucket"), eq("cats/a/new.txt"), eq(dir.resolve("a/new.txt")));
+      verify(s3).download(eq("foo-bucket"), eq("cats/a/stale.txt"), eq(dir.resolve("a/stale.txt")));
+      verify(s3).deleteLocal(dir.resolve("a/extra.txt"));
+      verifyNoMoreInteractions(s3);
+      assertTrue(Files.exists(dir.resolve("a/new.txt")));
+      assertEquals(2000, Files.getLastModifiedTime(dir.resolve("a/new.txt")).toMillis());
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+
+  @Test
+  void testSortedFileWalker() throws Exception {
+    Path dir = Paths.get("target/test-sorted-file-walker");
+    FileUtils.deleteQuietly(dir.toFile());
+    try {
+      for (String key : Arrays.asList("a/b/c.txt", "a.txt", "a-b.txt", "a/0.txt", "b", "ab/1.txt")) {
+        Files.createDirectories(dir.resolve(key).getParent());
+        Files.write(dir.resolve(key), key.getBytes("UTF-8"));
+      }
+      SortedFileWalker walker = new SortedFileWalker(dir);
+      StringBuilder keys = new StringBuilder();
+      walker.forEachRemaining(file -> keys.append(file.getKey()).append(','));
+      assertEquals("a-b.txt,a.txt,a/0.txt,a/b/c.txt,ab/1.txt,b,", keys.toString());
+
+      List<String> visited = new ArrayList<>();
+      walker = new SortedFileWalker(dir, d -> visited.add(d) && !d.equals("a/b"));
+      keys.setLength(0);
+      walker.forEachRemaining(file -> keys.append(file.getKey()).append(','));
+      assertEquals("a-b.txt,a.txt,a/0.txt,ab/1.txt,b,", keys.toString());
+      assertEquals(Arrays.asList("a", "a/b", "ab"), visited);
+    } finally {
+      FileUtils.deleteQuietly(dir.toFile());
+    }
+  }
+}